@@ -0,0 +1,350 @@
+package companion.support.v8.animation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import companion.support.v8.util.LatencyHistogram;
+import companion.support.v8.util.LogHelper;
+import companion.support.v8.util.StripedCounter;
+
+/**
+ * Optional instrumentation of the animation loop that runs every
+ * {@link ValueAnimatorCompat}. When enabled, every frame records how long the
+ * loop took, the time since the previous frame and how many animators were
+ * active, waiting to start and sleeping through their start delay. Every
+ * animator records the time spent calculating its frame and, for
+ * {@link ObjectAnimatorCompat}, the part of it spent in the property setters.
+ * The samples are grouped by target class and property name, so the most
+ * expensive animations can be found without changing the code that starts
+ * them.
+ *
+ * <p>Animators without a target are reported under the class of their first
+ * update listener, which is the code applying their values. This covers the
+ * pre-Honeycomb {@code ViewPropertyAnimatorCompat}; later platforms run view
+ * property animations on the native animator, outside of this loop.</p>
+ *
+ * <p>When disabled, the only cost is a volatile read per frame and per
+ * object animator frame.</p>
+ *
+ * @author Vitor Ribeiro
+ *
+ */
+public final class AnimationMonitor {
+
+	/** Log tag. */
+	private static final String TAG = AnimationMonitor.class.getSimpleName();
+
+	/** Default frame budget, one frame of a 60Hz display. */
+	public static final long DEFAULT_FRAME_BUDGET_NANOS = 16666667L;
+
+	/**
+	 * Receives the frames recorded by the monitor. Called on the thread
+	 * running the animations, so implementations must be fast.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called after the animation loop processed a frame.
+		 *
+		 * @param loopNanos time spent processing the frame.
+		 * @param intervalNanos time since the previous frame started, or zero for the first frame.
+		 * @param activeCount number of running animators.
+		 * @param pendingCount number of animators waiting to be started.
+		 * @param delayedCount number of animators sleeping through their start delay.
+		 * @param jank true if the frame was late or took longer than the frame budget.
+		 */
+		void onFrame(long loopNanos, long intervalNanos, int activeCount, int pendingCount,
+				int delayedCount, boolean jank);
+	}
+
+	static volatile boolean sEnabled;
+	private static volatile Listener sListener;
+	private static volatile long sFrameBudgetNanos = DEFAULT_FRAME_BUDGET_NANOS;
+
+	private static final LatencyHistogram sLoopTime = new LatencyHistogram();
+	private static final LatencyHistogram sFrameInterval = new LatencyHistogram();
+	private static final StripedCounter sJankFrames = new StripedCounter();
+	private static final AtomicInteger sMaxActive = new AtomicInteger();
+	private static final AtomicInteger sMaxPending = new AtomicInteger();
+	private static final AtomicInteger sMaxDelayed = new AtomicInteger();
+
+	private static final ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, AnimatorStats>> sStats =
+			new ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, AnimatorStats>>();
+
+	/** This prevents the class from being instantiated.
+	 */
+	private AnimationMonitor() {
+	}
+
+	/**
+	 * Enables or disables the monitor. Frames processed while disabled are not recorded.
+	 *
+	 * @param enabled true to record samples.
+	 */
+	public static void setEnabled(boolean enabled) {
+		sEnabled = enabled;
+	}
+
+	/**
+	 * @return true if the monitor records samples.
+	 */
+	public static boolean isEnabled() {
+		return sEnabled;
+	}
+
+	/**
+	 * Sets the listener that receives every frame. Setting a listener does
+	 * not enable the monitor.
+	 *
+	 * @param listener the listener, or null to remove it.
+	 */
+	public static void setListener(Listener listener) {
+		sListener = listener;
+	}
+
+	/**
+	 * Sets the time a frame may take before it is counted as jank. A frame is
+	 * janky when the loop took longer than the budget, or when it started more
+	 * than one and a half budgets after the previous one.
+	 *
+	 * @param budgetNanos the budget in nanoseconds.
+	 */
+	public static void setFrameBudgetNanos(long budgetNanos) {
+		if (budgetNanos <= 0) {
+			throw new IllegalArgumentException("budgetNanos <= 0");
+		}
+		sFrameBudgetNanos = budgetNanos;
+	}
+
+	/**
+	 * @return a copy of the statistics of the animation loop.
+	 */
+	public static FrameStats getFrameStats() {
+		return new FrameStats(sLoopTime.snapshot(), sFrameInterval.snapshot(), sJankFrames.sum(),
+				sMaxActive.get(), sMaxPending.get(), sMaxDelayed.get());
+	}
+
+	/**
+	 * @return a copy of the statistics of every target class and property seen so far.
+	 */
+	public static List<AnimatorStats.Snapshot> getAnimatorStats() {
+		List<AnimatorStats.Snapshot> result = new ArrayList<AnimatorStats.Snapshot>();
+		for (ConcurrentHashMap<String, AnimatorStats> properties : sStats.values()) {
+			for (AnimatorStats stats : properties.values()) {
+				result.add(stats.snapshot());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the animators that took the most time overall, slowest first.
+	 *
+	 * @param count maximum number of animators to return.
+	 * @return the statistics of the slowest animators.
+	 */
+	public static List<AnimatorStats.Snapshot> getSlowestAnimators(int count) {
+		List<AnimatorStats.Snapshot> result = getAnimatorStats();
+		Collections.sort(result, new Comparator<AnimatorStats.Snapshot>() {
+			@Override
+			public int compare(AnimatorStats.Snapshot lhs, AnimatorStats.Snapshot rhs) {
+				long l = lhs.frameTime.totalNanos;
+				long r = rhs.frameTime.totalNanos;
+				return l < r ? 1 : (l == r ? 0 : -1);
+			}
+		});
+		if (result.size() > count) {
+			return new ArrayList<AnimatorStats.Snapshot>(result.subList(0, Math.max(count, 0)));
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a readable summary of the loop statistics followed by the given
+	 * number of slowest animators, one per line.
+	 *
+	 * @param count maximum number of animators to include.
+	 * @return the summary.
+	 */
+	public static String getSummary(int count) {
+		StringBuilder summary = new StringBuilder(getFrameStats().toString());
+		for (AnimatorStats.Snapshot stats : getSlowestAnimators(count)) {
+			summary.append('\n').append(stats);
+		}
+		return summary.toString();
+	}
+
+	/**
+	 * Clears all the statistics.
+	 */
+	public static void reset() {
+		sLoopTime.reset();
+		sFrameInterval.reset();
+		sJankFrames.reset();
+		sMaxActive.set(0);
+		sMaxPending.set(0);
+		sMaxDelayed.set(0);
+		sStats.clear();
+	}
+
+	/**
+	 * Writes the loop statistics and the ten slowest animators to the log.
+	 */
+	public static void dump() {
+		LogHelper.d(TAG, getFrameStats().toString());
+		for (AnimatorStats.Snapshot stats : getSlowestAnimators(10)) {
+			LogHelper.d(TAG, stats.toString());
+		}
+	}
+
+	/**
+	 * Records a frame of the animation loop.
+	 */
+	static void recordFrame(long loopNanos, long intervalNanos, int activeCount, int pendingCount,
+			int delayedCount) {
+		long budget = sFrameBudgetNanos;
+		boolean jank = loopNanos > budget || intervalNanos > budget + budget / 2;
+
+		sLoopTime.record(loopNanos);
+		if (intervalNanos > 0) {
+			sFrameInterval.record(intervalNanos);
+		}
+		if (jank) {
+			sJankFrames.increment();
+		}
+		raise(sMaxActive, activeCount);
+		raise(sMaxPending, pendingCount);
+		raise(sMaxDelayed, delayedCount);
+
+		Listener listener = sListener;
+		if (listener != null) {
+			listener.onFrame(loopNanos, intervalNanos, activeCount, pendingCount, delayedCount, jank);
+		}
+	}
+
+	/**
+	 * Records the time an animator spent calculating and applying a frame.
+	 */
+	static void recordAnimator(ValueAnimatorCompat anim, long nanos) {
+		statsOf(anim).mFrame.record(nanos);
+	}
+
+	/**
+	 * Records the time an object animator spent in its property setters during a frame.
+	 */
+	static void recordSetters(ValueAnimatorCompat anim, long nanos) {
+		statsOf(anim).mSetters.record(nanos);
+	}
+
+	private static void raise(AtomicInteger max, int value) {
+		int current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value)) {
+				break;
+			}
+		}
+	}
+
+	private static AnimatorStats statsOf(ValueAnimatorCompat anim) {
+		Class<?> targetClass = anim.getMonitoredClass();
+		String propertyName = anim.getMonitoredPropertyName();
+
+		ConcurrentHashMap<String, AnimatorStats> properties = sStats.get(targetClass);
+		if (properties == null) {
+			ConcurrentHashMap<String, AnimatorStats> created = new ConcurrentHashMap<String, AnimatorStats>();
+			properties = sStats.putIfAbsent(targetClass, created);
+			if (properties == null) {
+				properties = created;
+			}
+		}
+		AnimatorStats stats = properties.get(propertyName);
+		if (stats == null) {
+			AnimatorStats created = new AnimatorStats(targetClass, propertyName);
+			stats = properties.putIfAbsent(propertyName, created);
+			if (stats == null) {
+				stats = created;
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * Statistics of the animations of one property of one target class.
+	 */
+	public static final class AnimatorStats {
+		private final Class<?> mTargetClass;
+		private final String mPropertyName;
+		private final LatencyHistogram mFrame = new LatencyHistogram();
+		private final LatencyHistogram mSetters = new LatencyHistogram();
+
+		private AnimatorStats(Class<?> targetClass, String propertyName) {
+			mTargetClass = targetClass;
+			mPropertyName = propertyName;
+		}
+
+		private Snapshot snapshot() {
+			return new Snapshot(mTargetClass, mPropertyName, mFrame.snapshot(), mSetters.snapshot());
+		}
+
+		/**
+		 * An immutable copy of the statistics of a property.
+		 */
+		public static final class Snapshot {
+			public final Class<?> targetClass;
+			public final String propertyName;
+			public final LatencyHistogram.Snapshot frameTime;
+			public final LatencyHistogram.Snapshot setterTime;
+
+			private Snapshot(Class<?> targetClass, String propertyName,
+					LatencyHistogram.Snapshot frameTime, LatencyHistogram.Snapshot setterTime) {
+				this.targetClass = targetClass;
+				this.propertyName = propertyName;
+				this.frameTime = frameTime;
+				this.setterTime = setterTime;
+			}
+
+			@Override
+			public String toString() {
+				return targetClass.getName() + " " + propertyName
+					+ " frame[" + frameTime + "]"
+					+ " setters[" + setterTime + "]";
+			}
+		}
+	}
+
+	/**
+	 * An immutable copy of the statistics of the animation loop.
+	 */
+	public static final class FrameStats {
+		public final LatencyHistogram.Snapshot loopTime;
+		public final LatencyHistogram.Snapshot frameInterval;
+		public final long jankCount;
+		public final int maxActiveCount;
+		public final int maxPendingCount;
+		public final int maxDelayedCount;
+
+		private FrameStats(LatencyHistogram.Snapshot loopTime, LatencyHistogram.Snapshot frameInterval,
+				long jankCount, int maxActiveCount, int maxPendingCount, int maxDelayedCount) {
+			this.loopTime = loopTime;
+			this.frameInterval = frameInterval;
+			this.jankCount = jankCount;
+			this.maxActiveCount = maxActiveCount;
+			this.maxPendingCount = maxPendingCount;
+			this.maxDelayedCount = maxDelayedCount;
+		}
+
+		@Override
+		public String toString() {
+			return "loop[" + loopTime + "]"
+				+ " interval[" + frameInterval + "]"
+				+ " jank=" + jankCount
+				+ " maxActive=" + maxActiveCount
+				+ " maxPending=" + maxPendingCount
+				+ " maxDelayed=" + maxDelayedCount;
+		}
+	}
+}
@@ -17,17 +17,21 @@ package companion.support.v8.animation;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.content.res.Resources.NotFoundException;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
 import android.util.AttributeSet;
+import android.util.SparseArray;
 import android.util.TypedValue;
 import android.util.Xml;
 import android.view.animation.AnimationUtils;
@@ -40,6 +44,13 @@ import android.view.animation.AnimationUtils;
  * to use this inflater with an XmlPullParser over a plain XML file at runtime;
  * it only works with an XmlPullParser returned from a compiled resource (R.
  * <em>something</em> file.)
+ * <p>
+ * Each resource is parsed once per configuration. The parsed animator is kept as a
+ * template that is never started, and {@link #loadAnimator(Context, int)} returns clones
+ * of it. Templates of configurations other than the most recent ones are discarded, and
+ * {@link #clearCache()} discards all of them. Resources whose attributes refer to the
+ * theme (<code>?attr/...</code>) are not cached and are parsed with the theme of every
+ * caller.
  */
 @SuppressLint("InlinedApi")
 public class AnimatorInflaterCompat {
@@ -86,6 +97,26 @@ public class AnimatorInflaterCompat {
     //private static final int VALUE_TYPE_COLOR       = 4;
     //private static final int VALUE_TYPE_CUSTOM      = 5;
 
+    /**
+     * The number of configurations whose templates are kept, enough to switch back and
+     * forth between two orientations without parsing again.
+     */
+    private static final int MAX_CACHED_CONFIGURATIONS = 2;
+
+    /**
+     * Parsed animators by configuration and resource id, the most recently used
+     * configuration last. Guarded by itself.
+     */
+    private static final LinkedHashMap<Configuration, SparseArray<AnimatorCompat>> sTemplates =
+            new LinkedHashMap<Configuration, SparseArray<AnimatorCompat>>(4, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Configuration, SparseArray<AnimatorCompat>> eldest) {
+            return size() > MAX_CACHED_CONFIGURATIONS;
+        }
+    };
+
     /**
      * Loads an {@link AnimatorCompat} object from a resource
      *
@@ -94,14 +125,60 @@ public class AnimatorInflaterCompat {
      * @return The animator object reference by the specified id
      * @throws android.content.res.Resources.NotFoundException when the animation cannot be loaded
      */
-    @SuppressLint("NewApi")
     public static AnimatorCompat loadAnimator(Context context, int id)
             throws NotFoundException {
 
+        final Configuration configuration = context.getResources().getConfiguration();
+        AnimatorCompat template;
+        synchronized (sTemplates) {
+            SparseArray<AnimatorCompat> templates = sTemplates.get(configuration);
+            template = templates != null ? templates.get(id) : null;
+        }
+        if (template == null) {
+            boolean[] themed = new boolean[1];
+            template = parseAnimator(context, id, themed);
+            if (themed[0]) {
+                // resolved against the theme of this context, other callers may differ
+                return template;
+            }
+            if (template instanceof AnimatorSetCompat) {
+                // sorted once here, every clone takes over the schedule
+                ((AnimatorSetCompat) template).prepareSchedule();
+            }
+            synchronized (sTemplates) {
+                SparseArray<AnimatorCompat> templates = sTemplates.get(configuration);
+                if (templates == null) {
+                    templates = new SparseArray<AnimatorCompat>();
+                    // the configuration of the resources is updated in place, so keep a copy
+                    sTemplates.put(new Configuration(configuration), templates);
+                }
+                templates.put(id, template);
+            }
+        }
+        return template.clone();
+    }
+
+    /**
+     * Discards the parsed animators, for instance when the application is asked to
+     * trim its memory. Animators loaded afterwards parse their resource again.
+     */
+    public static void clearCache() {
+        synchronized (sTemplates) {
+            sTemplates.clear();
+        }
+    }
+
+    /**
+     * @param themed Set to true if an attribute of the resource refers to the theme.
+     */
+    @SuppressLint("NewApi")
+    private static AnimatorCompat parseAnimator(Context context, int id, boolean[] themed)
+            throws NotFoundException {
+
         XmlResourceParser parser = null;
         try {
             parser = context.getResources().getAnimation(id);
-            return createAnimatorFromXml(context, parser);
+            return createAnimatorFromXml(context, parser, themed);
         } catch (XmlPullParserException ex) {
             Resources.NotFoundException rnf =
                     new Resources.NotFoundException("Can't load animation resource ID #0x" +
@@ -117,14 +194,14 @@ public class AnimatorInflaterCompat {
         }
     }
 
-    private static AnimatorCompat createAnimatorFromXml(Context c, XmlPullParser parser)
+    private static AnimatorCompat createAnimatorFromXml(Context c, XmlPullParser parser, boolean[] themed)
             throws XmlPullParserException, IOException {
 
-        return createAnimatorFromXml(c, parser, Xml.asAttributeSet(parser), null, 0);
+        return createAnimatorFromXml(c, parser, Xml.asAttributeSet(parser), null, 0, themed);
     }
 
     private static AnimatorCompat createAnimatorFromXml(Context c, XmlPullParser parser,
-            AttributeSet attrs, AnimatorSetCompat parent, int sequenceOrdering)
+            AttributeSet attrs, AnimatorSetCompat parent, int sequenceOrdering, boolean[] themed)
             throws XmlPullParserException, IOException {
 
         AnimatorCompat anim = null;
@@ -143,6 +220,10 @@ public class AnimatorInflaterCompat {
 
             String  name = parser.getName();
 
+            if (!themed[0]) {
+                themed[0] = refersToTheme(attrs);
+            }
+
             if (name.equals("objectAnimator")) {
                 anim = loadObjectAnimator(c, attrs);
             } else if (name.equals("animator")) {
@@ -156,7 +237,7 @@ public class AnimatorInflaterCompat {
                 a.getValue(/*com.android.internal.R.styleable.*/AnimatorSet_ordering, orderingValue);
                 int ordering = orderingValue.type == TypedValue.TYPE_INT_DEC ? orderingValue.data : TOGETHER;
 
-                createAnimatorFromXml(c, parser, attrs, (AnimatorSetCompat) anim,  ordering);
+                createAnimatorFromXml(c, parser, attrs, (AnimatorSetCompat) anim,  ordering, themed);
                 a.recycle();
             } else {
                 throw new RuntimeException("Unknown animator name: " + parser.getName());
@@ -186,6 +267,20 @@ public class AnimatorInflaterCompat {
 
     }
 
+    /**
+     * @return true if an attribute of the current tag is a theme reference, which
+     * compiled resources report as <code>?</code> followed by the attribute id.
+     */
+    private static boolean refersToTheme(AttributeSet attrs) {
+        for (int i = 0, count = attrs.getAttributeCount(); i < count; ++i) {
+            String value = attrs.getAttributeValue(i);
+            if (value != null && value.startsWith("?")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private static ObjectAnimatorCompat loadObjectAnimator(Context context, AttributeSet attrs)
             throws NotFoundException {
 
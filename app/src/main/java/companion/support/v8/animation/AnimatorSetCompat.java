@@ -17,6 +17,7 @@
 package companion.support.v8.animation;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
@@ -79,6 +80,12 @@ public final class AnimatorSetCompat extends AnimatorCompat {
      */
     private ArrayList<Node> mSortedNodes = new ArrayList<Node>();
 
+    /**
+     * The nodes without dependencies, which are started as soon as the set (and its
+     * start delay) starts. Compiled by sortNodes() together with the dependents of each node.
+     */
+    private Node[] mRootNodes = null;
+
     /**
      * Flag indicating whether the nodes should be sorted prior to playing. This
      * flag allows us to cache the previous sorted nodes so that if the sequence
@@ -318,14 +325,11 @@ public final class AnimatorSetCompat extends AnimatorCompat {
     public void end() {
         mTerminated = true;
         if (isStarted()) {
-            if (mSortedNodes.size() != mNodes.size()) {
-                // hasn't been started yet - sort the nodes now, then end them
+            if (mNeedsSort) {
+                // nodes were added since the set was started - sort the nodes now, then end them
                 sortNodes();
                 for (Node node : mSortedNodes) {
-                    if (mSetListener == null) {
-                        mSetListener = new AnimatorSetListener(this);
-                    }
-                    node.animation.addListener(mSetListener);
+                    attachSetListener(node);
                 }
             }
             if (mDelayAnim != null) {
@@ -453,75 +457,41 @@ public final class AnimatorSetCompat extends AnimatorCompat {
         mStarted = true;
 
         // First, sort the nodes (if necessary). This will ensure that sortedNodes
-        // contains the animation nodes in the correct order.
+        // contains the animation nodes in the correct order and that the dependents of
+        // every node are compiled. The schedule is kept until the dependencies change.
         sortNodes();
 
+        // Reset the runtime state of every node before starting any of them, since starting
+        // an animation may synchronously start the animations that play with it.
         int numSortedNodes = mSortedNodes.size();
         for (int i = 0; i < numSortedNodes; ++i) {
             Node node = mSortedNodes.get(i);
-            // First, clear out the old listeners
-            ArrayList<AnimatorListener> oldListeners = node.animation.getListeners();
-            if (oldListeners != null && oldListeners.size() > 0) {
-                final ArrayList<AnimatorListener> clonedListeners = new
-                        ArrayList<AnimatorListener>(oldListeners);
-
-                for (AnimatorListener listener : clonedListeners) {
-                    if (listener instanceof DependencyListener ||
-                            listener instanceof AnimatorSetListener) {
-                        node.animation.removeListener(listener);
-                    }
-                }
-            }
+            node.pendingDependencies = node.dependencies == null ? 0 : node.dependencies.size();
+            node.done = false;
+            attachSetListener(node);
         }
 
-        // nodesToStart holds the list of nodes to be started immediately. We don't want to
-        // start the animations in the loop directly because we first need to set up
-        // dependencies on all of the nodes. For example, we don't want to start an animation
-        // when some other animation also wants to start when the first animation begins.
-        final ArrayList<Node> nodesToStart = new ArrayList<Node>();
-        for (int i = 0; i < numSortedNodes; ++i) {
-            Node node = mSortedNodes.get(i);
-            if (mSetListener == null) {
-                mSetListener = new AnimatorSetListener(this);
-            }
-            if (node.dependencies == null || node.dependencies.size() == 0) {
-                nodesToStart.add(node);
-            } else {
-                int numDependencies = node.dependencies.size();
-                for (int j = 0; j < numDependencies; ++j) {
-                    Dependency dependency = node.dependencies.get(j);
-                    dependency.node.animation.addListener(
-                            new DependencyListener(this, node, dependency.rule));
-                }
-                node.tmpDependencies = (ArrayList<Dependency>) node.dependencies.clone();
-            }
-            node.animation.addListener(mSetListener);
-        }
-        // Now that all dependencies are set up, start the animations that should be started.
         if (mStartDelay <= 0) {
-            for (Node node : nodesToStart) {
-                node.animation.start();
-                mPlayingSet.add(node.animation);
-            }
+            startRootNodes();
         } else {
-            mDelayAnim = ValueAnimatorCompat.ofFloat(0f, 1f);
-            mDelayAnim.setDuration(mStartDelay);
-            mDelayAnim.addListener(new AnimatorListenerAdapterCompat() {
-                boolean canceled = false;
-                public void onAnimationCancel(AnimatorCompat anim) {
-                    canceled = true;
-                }
-                public void onAnimationEnd(AnimatorCompat anim) {
-                    if (!canceled) {
-                        int numNodes = nodesToStart.size();
-                        for (int i = 0; i < numNodes; ++i) {
-                            Node node = nodesToStart.get(i);
-                            node.animation.start();
-                            mPlayingSet.add(node.animation);
+            if (mDelayAnim == null) {
+                mDelayAnim = ValueAnimatorCompat.ofFloat(0f, 1f);
+                mDelayAnim.addListener(new AnimatorListenerAdapterCompat() {
+                    boolean canceled = false;
+                    public void onAnimationStart(AnimatorCompat anim) {
+                        canceled = false;
+                    }
+                    public void onAnimationCancel(AnimatorCompat anim) {
+                        canceled = true;
+                    }
+                    public void onAnimationEnd(AnimatorCompat anim) {
+                        if (!canceled) {
+                            startRootNodes();
                         }
                     }
-                }
-            });
+                });
+            }
+            mDelayAnim.setDuration(mStartDelay);
             mDelayAnim.start();
         }
         if (mListeners != null) {
@@ -565,6 +535,9 @@ public final class AnimatorSetCompat extends AnimatorCompat {
         anim.mNodeMap = new HashMap<AnimatorCompat, Node>();
         anim.mNodes = new ArrayList<Node>();
         anim.mSortedNodes = new ArrayList<Node>();
+        anim.mRootNodes = null;
+        anim.mSetListener = null;
+        anim.mDelayAnim = null;
 
         // Walk through the old nodes list, cloning each node and adding it to the new nodemap.
         // One problem is that the old node dependencies point to nodes in the old AnimatorSet.
@@ -577,9 +550,8 @@ public final class AnimatorSetCompat extends AnimatorCompat {
             anim.mNodeMap.put(nodeClone.animation, nodeClone);
             // Clear out the dependencies in the clone; we'll set these up manually later
             nodeClone.dependencies = null;
-            nodeClone.tmpDependencies = null;
-            nodeClone.nodeDependents = null;
-            nodeClone.nodeDependencies = null;
+            nodeClone.withDependents = null;
+            nodeClone.afterDependents = null;
             // clear out any listeners that were set up by the AnimatorSet; these will
             // be set up when the clone's nodes are sorted
             ArrayList<AnimatorListener> cloneListeners = nodeClone.animation.getListeners();
@@ -613,96 +585,106 @@ public final class AnimatorSetCompat extends AnimatorCompat {
                 }
             }
         }
+        // If this set is already sorted, map its schedule to the cloned nodes instead of
+        // letting the clone sort them again when it is started
+        if (!mNeedsSort) {
+            for (Node node : mSortedNodes) {
+                anim.mSortedNodes.add(nodeCloneMap.get(node));
+            }
+            anim.mRootNodes = cloneNodes(mRootNodes, nodeCloneMap);
+            for (Node node : mNodes) {
+                Node nodeClone = nodeCloneMap.get(node);
+                nodeClone.withDependents = cloneNodes(node.withDependents, nodeCloneMap);
+                nodeClone.afterDependents = cloneNodes(node.afterDependents, nodeCloneMap);
+            }
+            anim.mNeedsSort = false;
+        }
 
         return anim;
     }
 
     /**
-     * This class is the mechanism by which animations are started based on events in other
-     * animations. If an animation has multiple dependencies on other animations, then
-     * all dependencies must be satisfied before the animation is started.
+     * Sorts the nodes of this set and of the sets it plays ahead of time, so that its
+     * clones take over the schedule instead of sorting their nodes when they start.
      */
-    private static class DependencyListener implements AnimatorListener {
-
-        private AnimatorSetCompat mAnimatorSet;
-
-        // The node upon which the dependency is based.
-        private Node mNode;
-
-        // The Dependency rule (WITH or AFTER) that the listener should wait for on
-        // the node
-        private int mRule;
-
-        public DependencyListener(AnimatorSetCompat animatorSet, Node node, int rule) {
-            this.mAnimatorSet = animatorSet;
-            this.mNode = node;
-            this.mRule = rule;
+    void prepareSchedule() {
+        sortNodes();
+        for (Node node : mNodes) {
+            if (node.animation instanceof AnimatorSetCompat) {
+                ((AnimatorSetCompat) node.animation).prepareSchedule();
+            }
         }
+    }
 
-        /**
-         * Ignore cancel events for now. We may want to handle this eventually,
-         * to prevent follow-on animations from running when some dependency
-         * animation is canceled.
-         */
-        public void onAnimationCancel(AnimatorCompat animation) {
+    /**
+     * Maps an array of nodes of this set to the corresponding nodes of a clone.
+     */
+    private static Node[] cloneNodes(Node[] nodes, HashMap<Node, Node> nodeCloneMap) {
+        if (nodes == null) {
+            return null;
+        }
+        Node[] clones = new Node[nodes.length];
+        for (int i = 0; i < nodes.length; ++i) {
+            clones[i] = nodeCloneMap.get(nodes[i]);
         }
+        return clones;
+    }
 
-        /**
-         * An end event is received - see if this is an event we are listening for
-         */
-        public void onAnimationEnd(AnimatorCompat animation) {
-            if (mRule == Dependency.AFTER) {
-                startIfReady(animation);
+    /**
+     * Adds the listener of this set to the animation of the given node, unless it is already
+     * there, and removes the listeners left behind by other sets that played the animation.
+     * The listener list of the animation is walked in place rather than copied.
+     */
+    private void attachSetListener(Node node) {
+        if (mSetListener == null) {
+            mSetListener = new AnimatorSetListener(this);
+        }
+        boolean attached = false;
+        ArrayList<AnimatorListener> listeners = node.animation.getListeners();
+        if (listeners != null) {
+            for (int i = listeners.size() - 1; i >= 0; --i) {
+                AnimatorListener listener = listeners.get(i);
+                if (listener == mSetListener) {
+                    attached = true;
+                } else if (listener instanceof AnimatorSetListener) {
+                    node.animation.removeListener(listener);
+                }
             }
         }
-
-        /**
-         * Ignore repeat events for now
-         */
-        public void onAnimationRepeat(AnimatorCompat animation) {
+        if (!attached) {
+            node.animation.addListener(mSetListener);
         }
+    }
 
-        /**
-         * A start event is received - see if this is an event we are listening for
-         */
-        public void onAnimationStart(AnimatorCompat animation) {
-            if (mRule == Dependency.WITH) {
-                startIfReady(animation);
-            }
+    /**
+     * Starts the animations that do not depend on any other animation of this set.
+     */
+    private void startRootNodes() {
+        Node[] rootNodes = mRootNodes;
+        for (int i = 0; i < rootNodes.length; ++i) {
+            Node node = rootNodes[i];
+            node.animation.start();
+            mPlayingSet.add(node.animation);
         }
+    }
 
-        /**
-         * Check whether the event received is one that the node was waiting for.
-         * If so, mark it as complete and see whether it's time to start
-         * the animation.
-         * @param dependencyAnimation the animation that sent the event.
-         */
-        private void startIfReady(AnimatorCompat dependencyAnimation) {
-            if (mAnimatorSet.mTerminated) {
-                // if the parent AnimatorSet was canceled, then don't start any dependent anims
-                return;
-            }
-            Dependency dependencyToRemove = null;
-            int numDependencies = mNode.tmpDependencies.size();
-            for (int i = 0; i < numDependencies; ++i) {
-                Dependency dependency = mNode.tmpDependencies.get(i);
-                if (dependency.rule == mRule &&
-                        dependency.node.animation == dependencyAnimation) {
-                    // rule fired - remove the dependency and listener and check to
-                    // see whether it's time to start the animation
-                    dependencyToRemove = dependency;
-                    dependencyAnimation.removeListener(this);
-                    break;
-                }
-            }
-            mNode.tmpDependencies.remove(dependencyToRemove);
-            if (mNode.tmpDependencies.size() == 0) {
+    /**
+     * Called when the animation of a node starts or ends, with the nodes that depend on that
+     * event. Every dependent whose dependencies are now all satisfied is started.
+     */
+    private void startDependents(Node[] dependents) {
+        if (mTerminated || dependents == null) {
+            // if the parent AnimatorSet was canceled, then don't start any dependent anims
+            return;
+        }
+        for (int i = 0; i < dependents.length; ++i) {
+            Node node = dependents[i];
+            if (--node.pendingDependencies == 0) {
                 // all dependencies satisfied: start the animation
-                mNode.animation.start();
-                mAnimatorSet.mPlayingSet.add(mNode.animation);
+                node.animation.start();
+                mPlayingSet.add(node.animation);
             }
         }
-
     }
 
     private class AnimatorSetListener implements AnimatorListener {
@@ -734,6 +716,7 @@ public final class AnimatorSetCompat extends AnimatorCompat {
             mPlayingSet.remove(animation);
             Node animNode = mAnimatorSet.mNodeMap.get(animation);
             animNode.done = true;
+            startDependents(animNode.afterDependents);
             if (!mTerminated) {
                 // Listeners are already notified of the AnimatorSet ending in cancel() or
                 // end(); the logic below only kicks in when animations end normally
@@ -766,8 +749,11 @@ public final class AnimatorSetCompat extends AnimatorCompat {
         public void onAnimationRepeat(AnimatorCompat animation) {
         }
 
-        // Nothing to do
         public void onAnimationStart(AnimatorCompat animation) {
+            Node animNode = mAnimatorSet.mNodeMap.get(animation);
+            if (animNode != null) {
+                startDependents(animNode.withDependents);
+            }
         }
 
     }
@@ -775,72 +761,57 @@ public final class AnimatorSetCompat extends AnimatorCompat {
     /**
      * This method sorts the current set of nodes, if needed. The sort is a simple
      * DependencyGraph sort, which goes like this:
-     * - All nodes without dependencies become 'roots'
-     * - while roots list is not null
-     * -   for each root r
-     * -     add r to sorted list
-     * -     remove r as a dependency from any other node
-     * -   any nodes with no dependencies are added to the roots list
+     * - Every node is added to the dependents of the nodes it depends upon
+     * - All nodes without dependencies become 'roots' and are added to the sorted list
+     * - for each node n in the sorted list
+     * -   for each dependent d of n
+     * -     if n was the last unsatisfied dependency of d, add d to the sorted list
+     * The dependency lists themselves are left untouched, so the sort only needs to run
+     * again when the dependencies change.
      */
     private void sortNodes() {
         if (mNeedsSort) {
             mSortedNodes.clear();
-            ArrayList<Node> roots = new ArrayList<Node>();
             int numNodes = mNodes.size();
             for (int i = 0; i < numNodes; ++i) {
                 Node node = mNodes.get(i);
-                if (node.dependencies == null || node.dependencies.size() == 0) {
-                    roots.add(node);
-                }
+                node.withDependents = null;
+                node.afterDependents = null;
             }
-            ArrayList<Node> tmpRoots = new ArrayList<Node>();
-            while (roots.size() > 0) {
-                int numRoots = roots.size();
-                for (int i = 0; i < numRoots; ++i) {
-                    Node root = roots.get(i);
-                    mSortedNodes.add(root);
-                    if (root.nodeDependents != null) {
-                        int numDependents = root.nodeDependents.size();
-                        for (int j = 0; j < numDependents; ++j) {
-                            Node node = root.nodeDependents.get(j);
-                            node.nodeDependencies.remove(root);
-                            if (node.nodeDependencies.size() == 0) {
-                                tmpRoots.add(node);
-                            }
-                        }
-                    }
+            for (int i = 0; i < numNodes; ++i) {
+                Node node = mNodes.get(i);
+                int numDependencies = node.dependencies == null ? 0 : node.dependencies.size();
+                node.pendingDependencies = numDependencies;
+                if (numDependencies == 0) {
+                    mSortedNodes.add(node);
+                }
+                for (int j = 0; j < numDependencies; ++j) {
+                    Dependency dependency = node.dependencies.get(j);
+                    dependency.node.addDependent(node, dependency.rule);
                 }
-                roots.clear();
-                roots.addAll(tmpRoots);
-                tmpRoots.clear();
             }
-            mNeedsSort = false;
-            if (mSortedNodes.size() != mNodes.size()) {
+            mRootNodes = mSortedNodes.toArray(new Node[mSortedNodes.size()]);
+            // The sorted list doubles as the queue of nodes whose dependents are released
+            for (int i = 0; i < mSortedNodes.size(); ++i) {
+                Node node = mSortedNodes.get(i);
+                releaseDependents(node.withDependents);
+                releaseDependents(node.afterDependents);
+            }
+            if (mSortedNodes.size() != numNodes) {
                 throw new IllegalStateException("Circular dependencies cannot exist"
                         + " in AnimatorSet");
             }
-        } else {
-            // Doesn't need sorting, but still need to add in the nodeDependencies list
-            // because these get removed as the event listeners fire and the dependencies
-            // are satisfied
-            int numNodes = mNodes.size();
-            for (int i = 0; i < numNodes; ++i) {
-                Node node = mNodes.get(i);
-                if (node.dependencies != null && node.dependencies.size() > 0) {
-                    int numDependencies = node.dependencies.size();
-                    for (int j = 0; j < numDependencies; ++j) {
-                        Dependency dependency = node.dependencies.get(j);
-                        if (node.nodeDependencies == null) {
-                            node.nodeDependencies = new ArrayList<Node>();
-                        }
-                        if (!node.nodeDependencies.contains(dependency.node)) {
-                            node.nodeDependencies.add(dependency.node);
-                        }
-                    }
+            mNeedsSort = false;
+        }
+    }
+
+    private void releaseDependents(Node[] dependents) {
+        if (dependents != null) {
+            for (int i = 0; i < dependents.length; ++i) {
+                Node node = dependents[i];
+                if (--node.pendingDependencies == 0) {
+                    mSortedNodes.add(node);
                 }
-                // nodes are 'done' by default; they become un-done when started, and done
-                // again when ended
-                node.done = false;
             }
         }
     }
@@ -870,7 +841,8 @@ public final class AnimatorSetCompat extends AnimatorCompat {
      * A Node is an embodiment of both the Animator that it wraps as well as
      * any dependencies that are associated with that Animation. This includes
      * both dependencies upon other nodes (in the dependencies list) as
-     * well as dependencies of other nodes upon this (in the nodeDependents list).
+     * well as dependencies of other nodes upon this (in the withDependents and
+     * afterDependents arrays).
      */
     private static class Node implements Cloneable {
         public AnimatorCompat animation;
@@ -884,28 +856,20 @@ public final class AnimatorSetCompat extends AnimatorCompat {
         public ArrayList<Dependency> dependencies = null;
 
         /**
-         * tmpDependencies is a runtime detail. We use the dependencies list for sorting.
-         * But we also use the list to keep track of when multiple dependencies are satisfied,
-         * but removing each dependency as it is satisfied. We do not want to remove
-         * the dependency itself from the list, because we need to retain that information
-         * if the AnimatorSet is launched in the future. So we create a copy of the dependency
-         * list when the AnimatorSet starts and use this tmpDependencies list to track the
-         * list of satisfied dependencies.
-         */
-        public ArrayList<Dependency> tmpDependencies = null;
-
-        /**
-         * nodeDependencies is just a list of the nodes that this Node is dependent upon.
-         * This information is used in sortNodes(), to determine when a node is a root.
+         * The nodes that depend on this node, split by the rule of the dependency. A node
+         * appears once for every dependency it has on this node. These arrays are compiled
+         * by sortNodes() and are used to start the dependents when this node's animation
+         * starts (withDependents) or ends (afterDependents).
          */
-        public ArrayList<Node> nodeDependencies = null;
+        public Node[] withDependents = null;
+        public Node[] afterDependents = null;
 
         /**
-         * nodeDepdendents is the list of nodes that have this node as a dependency. This
-         * is a utility field used in sortNodes to facilitate removing this node as a
-         * dependency when it is a root node.
+         * pendingDependencies is a runtime detail: the number of dependencies of this node
+         * that are not satisfied yet. It is reset from the dependencies list when the
+         * AnimatorSet starts, and the animation is started when it drops to zero.
          */
-        public ArrayList<Node> nodeDependents = null;
+        public int pendingDependencies = 0;
 
         /**
          * Flag indicating whether the animation in this node is finished. This flag
@@ -933,17 +897,30 @@ public final class AnimatorSetCompat extends AnimatorCompat {
         public void addDependency(Dependency dependency) {
             if (dependencies == null) {
                 dependencies = new ArrayList<Dependency>();
-                nodeDependencies = new ArrayList<Node>();
             }
             dependencies.add(dependency);
-            if (!nodeDependencies.contains(dependency.node)) {
-                nodeDependencies.add(dependency.node);
+        }
+
+        /**
+         * Add a node that depends on this Node with the given rule.
+         * @param dependent
+         * @param rule
+         */
+        public void addDependent(Node dependent, int rule) {
+            if (rule == Dependency.WITH) {
+                withDependents = append(withDependents, dependent);
+            } else {
+                afterDependents = append(afterDependents, dependent);
             }
-            Node dependencyNode = dependency.node;
-            if (dependencyNode.nodeDependents == null) {
-                dependencyNode.nodeDependents = new ArrayList<Node>();
+        }
+
+        private static Node[] append(Node[] nodes, Node node) {
+            if (nodes == null) {
+                return new Node[] { node };
             }
-            dependencyNode.nodeDependents.add(this);
+            Node[] appended = Arrays.copyOf(nodes, nodes.length + 1);
+            appended[nodes.length] = node;
+            return appended;
         }
 
         @Override
@@ -1050,6 +1027,7 @@ public final class AnimatorSetCompat extends AnimatorCompat {
             }
             Dependency dependency = new Dependency(mCurrentNode, Dependency.WITH);
             node.addDependency(dependency);
+            mNeedsSort = true;
             return this;
         }
 
@@ -1070,6 +1048,7 @@ public final class AnimatorSetCompat extends AnimatorCompat {
             }
             Dependency dependency = new Dependency(mCurrentNode, Dependency.AFTER);
             node.addDependency(dependency);
+            mNeedsSort = true;
             return this;
         }
 
@@ -1090,6 +1069,7 @@ public final class AnimatorSetCompat extends AnimatorCompat {
             }
             Dependency dependency = new Dependency(node, Dependency.AFTER);
             mCurrentNode.addDependency(dependency);
+            mNeedsSort = true;
             return this;
         }
 
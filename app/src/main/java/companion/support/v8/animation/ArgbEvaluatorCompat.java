@@ -16,12 +16,34 @@
 
 package companion.support.v8.animation;
 
+import companion.support.v8.graphics.ColorUtils;
+
 /**
  * This evaluator can be used to perform type interpolation between integer
  * values that represent ARGB colors.
  */
 @SuppressWarnings("rawtypes")
-public class ArgbEvaluatorCompat implements TypeEvaluatorCompat {
+public class ArgbEvaluatorCompat implements TypeEvaluatorCompat, IntTypeEvaluatorCompat {
+
+    private final boolean mLinearRgb;
+
+    /**
+     * Creates an evaluator that interpolates the sRGB components of the colors.
+     */
+    public ArgbEvaluatorCompat() {
+        this(false);
+    }
+
+    /**
+     * Creates an evaluator that interpolates either the sRGB components of the colors or
+     * their linear RGB intensities, which keeps the brightness of the transition even.
+     *
+     * @param linearRgb true to interpolate in linear RGB.
+     * @see ColorUtils#blendLinearRgb(int, int, float)
+     */
+    public ArgbEvaluatorCompat(boolean linearRgb) {
+        mLinearRgb = linearRgb;
+    }
 
     /**
      * This function returns the calculated in-between value for a color
@@ -40,14 +62,34 @@ public class ArgbEvaluatorCompat implements TypeEvaluatorCompat {
      * resulting values in the same way.
      */
     public Object evaluate(float fraction, Object startValue, Object endValue) {
-        int startInt = (Integer) startValue;
-        int startA = (startInt >> 24);
+        return evaluate(fraction, ((Integer) startValue).intValue(), ((Integer) endValue).intValue());
+    }
+
+    /**
+     * Primitive version of {@link #evaluate(float, Object, Object)}, used by int animations
+     * to interpolate colors without autoboxing.
+     */
+    public int evaluate(float fraction, int startInt, int endInt) {
+        if (mLinearRgb) {
+            return ColorUtils.blendLinearRgb(startInt, endInt, fraction);
+        }
+        if (fraction >= 0f && fraction <= 1f) {
+            // Blend two channels per multiplication with an 8 bit fraction: each product
+            // fits in 16 bits, so the channels cannot carry into each other
+            final int f = (int) (fraction * 256 + 0.5f);
+            final int g = 256 - f;
+            final int redBlue = ((startInt & 0x00ff00ff) * g + (endInt & 0x00ff00ff) * f) >>> 8;
+            final int alphaGreen = ((startInt >>> 8) & 0x00ff00ff) * g + ((endInt >>> 8) & 0x00ff00ff) * f;
+            return (alphaGreen & 0xff00ff00) | (redBlue & 0x00ff00ff);
+        }
+
+        // Overshooting interpolators leave [0-1], interpolate each channel on its own
+        int startA = (startInt >>> 24);
         int startR = (startInt >> 16) & 0xff;
         int startG = (startInt >> 8) & 0xff;
         int startB = startInt & 0xff;
 
-        int endInt = (Integer) endValue;
-        int endA = (endInt >> 24);
+        int endA = (endInt >>> 24);
         int endR = (endInt >> 16) & 0xff;
         int endG = (endInt >> 8) & 0xff;
         int endB = endInt & 0xff;
@@ -57,4 +99,4 @@ public class ArgbEvaluatorCompat implements TypeEvaluatorCompat {
                 (startG + (int)(fraction * (endG - startG))) << 8 |
                 (startB + (int)(fraction * (endB - startB)));
     }
-}
\ No newline at end of file
+}
@@ -19,7 +19,7 @@ package companion.support.v8.animation;
 /**
  * This evaluator can be used to perform type interpolation between <code>float</code> values.
  */
-public class FloatEvaluatorCompat implements TypeEvaluatorCompat<Number> {
+public class FloatEvaluatorCompat implements TypeEvaluatorCompat<Number>, FloatTypeEvaluatorCompat {
 
     /**
      * This function returns the result of linearly interpolating the start and end values, with
@@ -36,7 +36,13 @@ public class FloatEvaluatorCompat implements TypeEvaluatorCompat<Number> {
      *         <code>fraction</code> parameter.
      */
     public Float evaluate(float fraction, Number startValue, Number endValue) {
-        float startFloat = startValue.floatValue();
-        return startFloat + fraction * (endValue.floatValue() - startFloat);
+        return evaluate(fraction, startValue.floatValue(), endValue.floatValue());
+    }
+
+    /**
+     * Primitive version of {@link #evaluate(float, Number, Number)}.
+     */
+    public float evaluate(float fraction, float startValue, float endValue) {
+        return startValue + fraction * (endValue - startValue);
     }
 }
\ No newline at end of file
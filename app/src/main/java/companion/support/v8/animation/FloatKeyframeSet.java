@@ -33,10 +33,10 @@ import companion.support.v8.animation.KeyframeCompat.FloatKeyframe;
  * Object equivalents of these primitive types.</p>
  */
 class FloatKeyframeSet extends KeyframeSet {
-    private float firstValue;
-    private float lastValue;
-    private float deltaValue;
-    private boolean firstTime = true;
+    // Values of the keyframes and their differences, copied by compile()
+    private float[] mValues;
+    private float[] mDeltas;
+    private FloatTypeEvaluatorCompat mFloatEvaluator;
 
     public FloatKeyframeSet(FloatKeyframe... keyframes) {
         super(keyframes);
@@ -59,78 +59,66 @@ class FloatKeyframeSet extends KeyframeSet {
         return newSet;
     }
 
+    @Override
+    public void setEvaluator(TypeEvaluatorCompat evaluator) {
+        super.setEvaluator(evaluator);
+        mFloatEvaluator = evaluator instanceof FloatTypeEvaluatorCompat ? (FloatTypeEvaluatorCompat) evaluator : null;
+    }
+
+    /**
+     * Evaluates with the custom evaluator, without autoboxing if it supports float values.
+     */
     @SuppressWarnings("unchecked")
-	public float getFloatValue(float fraction) {
-        if (mNumKeyframes == 2) {
-            if (firstTime) {
-                firstTime = false;
-                firstValue = ((FloatKeyframe) mKeyframes.get(0)).getFloatValue();
-                lastValue = ((FloatKeyframe) mKeyframes.get(1)).getFloatValue();
-                deltaValue = lastValue - firstValue;
+    private float evaluate(float fraction, float startValue, float endValue) {
+        if (mFloatEvaluator != null) {
+            return mFloatEvaluator.evaluate(fraction, startValue, endValue);
+        }
+        return ((Number) mEvaluator.evaluate(fraction, startValue, endValue)).floatValue();
+    }
+
+    @Override
+    void compile() {
+        super.compile();
+        final int numKeyframes = mNumKeyframes;
+        if (mValues == null || mValues.length != numKeyframes) {
+            mValues = new float[numKeyframes];
+            mDeltas = new float[numKeyframes];
+        }
+        for (int i = 0; i < numKeyframes; ++i) {
+            mValues[i] = ((FloatKeyframe) mKeyframes.get(i)).getFloatValue();
+            if (i > 0) {
+                mDeltas[i] = mValues[i] - mValues[i - 1];
             }
+        }
+    }
+
+    @Override
+    public float getFloatValue(float fraction) {
+        if (!mCompiled) {
+            compile();
+        }
+        if (mNumKeyframes == 2) {
             if (mInterpolator != null) {
                 fraction = mInterpolator.getInterpolation(fraction);
             }
             if (mEvaluator == null) {
-                return firstValue + fraction * deltaValue;
+                return mValues[0] + fraction * mDeltas[1];
             } else {
-                return ((Number)mEvaluator.evaluate(fraction, firstValue, lastValue)).floatValue();
+                return evaluate(fraction, mValues[0], mValues[1]);
             }
         }
-        if (fraction <= 0f) {
-            final FloatKeyframe prevKeyframe = (FloatKeyframe) mKeyframes.get(0);
-            final FloatKeyframe nextKeyframe = (FloatKeyframe) mKeyframes.get(1);
-            float prevValue = prevKeyframe.getFloatValue();
-            float nextValue = nextKeyframe.getFloatValue();
-            float prevFraction = prevKeyframe.getFraction();
-            float nextFraction = nextKeyframe.getFraction();
-            final /*Time*/Interpolator interpolator = nextKeyframe.getInterpolator();
-            if (interpolator != null) {
-                fraction = interpolator.getInterpolation(fraction);
-            }
-            float intervalFraction = (fraction - prevFraction) / (nextFraction - prevFraction);
-            return mEvaluator == null ?
-                    prevValue + intervalFraction * (nextValue - prevValue) :
-                    ((Number)mEvaluator.evaluate(intervalFraction, prevValue, nextValue)).
-                            floatValue();
-        } else if (fraction >= 1f) {
-            final FloatKeyframe prevKeyframe = (FloatKeyframe) mKeyframes.get(mNumKeyframes - 2);
-            final FloatKeyframe nextKeyframe = (FloatKeyframe) mKeyframes.get(mNumKeyframes - 1);
-            float prevValue = prevKeyframe.getFloatValue();
-            float nextValue = nextKeyframe.getFloatValue();
-            float prevFraction = prevKeyframe.getFraction();
-            float nextFraction = nextKeyframe.getFraction();
-            final /*Time*/Interpolator interpolator = nextKeyframe.getInterpolator();
-            if (interpolator != null) {
-                fraction = interpolator.getInterpolation(fraction);
-            }
-            float intervalFraction = (fraction - prevFraction) / (nextFraction - prevFraction);
-            return mEvaluator == null ?
-                    prevValue + intervalFraction * (nextValue - prevValue) :
-                    ((Number)mEvaluator.evaluate(intervalFraction, prevValue, nextValue)).
-                            floatValue();
+        final int next = findInterval(fraction);
+        if (next == mNumKeyframes) {
+            return mValues[next - 1];
         }
-        FloatKeyframe prevKeyframe = (FloatKeyframe) mKeyframes.get(0);
-        for (int i = 1; i < mNumKeyframes; ++i) {
-            FloatKeyframe nextKeyframe = (FloatKeyframe) mKeyframes.get(i);
-            if (fraction < nextKeyframe.getFraction()) {
-                final /*Time*/Interpolator interpolator = nextKeyframe.getInterpolator();
-                if (interpolator != null) {
-                    fraction = interpolator.getInterpolation(fraction);
-                }
-                float intervalFraction = (fraction - prevKeyframe.getFraction()) /
-                    (nextKeyframe.getFraction() - prevKeyframe.getFraction());
-                float prevValue = prevKeyframe.getFloatValue();
-                float nextValue = nextKeyframe.getFloatValue();
-                return mEvaluator == null ?
-                        prevValue + intervalFraction * (nextValue - prevValue) :
-                        ((Number)mEvaluator.evaluate(intervalFraction, prevValue, nextValue)).
-                            floatValue();
-            }
-            prevKeyframe = nextKeyframe;
+        final /*Time*/Interpolator interpolator = mInterpolators[next];
+        if (interpolator != null) {
+            fraction = interpolator.getInterpolation(fraction);
         }
-        // shouldn't get here
-        return ((Number)mKeyframes.get(mNumKeyframes - 1).getValue()).floatValue();
+        float intervalFraction = (fraction - mFractions[next - 1]) * mIntervalScales[next];
+        return mEvaluator == null ?
+                mValues[next - 1] + intervalFraction * mDeltas[next] :
+                evaluate(intervalFraction, mValues[next - 1], mValues[next]);
     }
 
 }
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package companion.support.v8.animation;
+
+/**
+ * A {@link TypeEvaluatorCompat} specialized for <code>float</code> values. When the evaluator set
+ * on a float animation implements this interface, values are calculated without autoboxing.
+ */
+public interface FloatTypeEvaluatorCompat {
+
+    /**
+     * This function returns the result of interpolating the start and end values, with
+     * <code>fraction</code> representing the proportion between the start and end values.
+     *
+     * @param fraction   The fraction from the starting to the ending values
+     * @param startValue The start value.
+     * @param endValue   The end value.
+     * @return The interpolated value, given the <code>fraction</code> parameter.
+     */
+    float evaluate(float fraction, float startValue, float endValue);
+
+}
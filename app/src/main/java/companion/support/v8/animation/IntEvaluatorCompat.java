@@ -19,7 +19,7 @@ package companion.support.v8.animation;
 /**
  * This evaluator can be used to perform type interpolation between <code>int</code> values.
  */
-public class IntEvaluatorCompat implements TypeEvaluatorCompat<Integer> {
+public class IntEvaluatorCompat implements TypeEvaluatorCompat<Integer>, IntTypeEvaluatorCompat {
 
     /**
      * This function returns the result of linearly interpolating the start and end values, with
@@ -36,7 +36,13 @@ public class IntEvaluatorCompat implements TypeEvaluatorCompat<Integer> {
      *         <code>fraction</code> parameter.
      */
     public Integer evaluate(float fraction, Integer startValue, Integer endValue) {
-        int startInt = startValue;
-        return (int)(startInt + fraction * (endValue - startInt));
+        return evaluate(fraction, startValue.intValue(), endValue.intValue());
+    }
+
+    /**
+     * Primitive version of {@link #evaluate(float, Integer, Integer)}.
+     */
+    public int evaluate(float fraction, int startValue, int endValue) {
+        return (int)(startValue + fraction * (endValue - startValue));
     }
 }
\ No newline at end of file
@@ -33,10 +33,10 @@ import companion.support.v8.animation.KeyframeCompat.IntKeyframe;
  * Object equivalents of these primitive types.</p>
  */
 class IntKeyframeSet extends KeyframeSet {
-    private int firstValue;
-    private int lastValue;
-    private int deltaValue;
-    private boolean firstTime = true;
+    // Values of the keyframes and their differences, copied by compile()
+    private int[] mValues;
+    private int[] mDeltas;
+    private IntTypeEvaluatorCompat mIntEvaluator;
 
     public IntKeyframeSet(IntKeyframe... keyframes) {
         super(keyframes);
@@ -59,76 +59,66 @@ class IntKeyframeSet extends KeyframeSet {
         return newSet;
     }
 
+    @Override
+    public void setEvaluator(TypeEvaluatorCompat evaluator) {
+        super.setEvaluator(evaluator);
+        mIntEvaluator = evaluator instanceof IntTypeEvaluatorCompat ? (IntTypeEvaluatorCompat) evaluator : null;
+    }
+
+    /**
+     * Evaluates with the custom evaluator, without autoboxing if it supports int values.
+     */
     @SuppressWarnings("unchecked")
-	public int getIntValue(float fraction) {
-        if (mNumKeyframes == 2) {
-            if (firstTime) {
-                firstTime = false;
-                firstValue = ((IntKeyframe) mKeyframes.get(0)).getIntValue();
-                lastValue = ((IntKeyframe) mKeyframes.get(1)).getIntValue();
-                deltaValue = lastValue - firstValue;
+    private int evaluate(float fraction, int startValue, int endValue) {
+        if (mIntEvaluator != null) {
+            return mIntEvaluator.evaluate(fraction, startValue, endValue);
+        }
+        return ((Number) mEvaluator.evaluate(fraction, startValue, endValue)).intValue();
+    }
+
+    @Override
+    void compile() {
+        super.compile();
+        final int numKeyframes = mNumKeyframes;
+        if (mValues == null || mValues.length != numKeyframes) {
+            mValues = new int[numKeyframes];
+            mDeltas = new int[numKeyframes];
+        }
+        for (int i = 0; i < numKeyframes; ++i) {
+            mValues[i] = ((IntKeyframe) mKeyframes.get(i)).getIntValue();
+            if (i > 0) {
+                mDeltas[i] = mValues[i] - mValues[i - 1];
             }
+        }
+    }
+
+    @Override
+    public int getIntValue(float fraction) {
+        if (!mCompiled) {
+            compile();
+        }
+        if (mNumKeyframes == 2) {
             if (mInterpolator != null) {
                 fraction = mInterpolator.getInterpolation(fraction);
             }
             if (mEvaluator == null) {
-                return firstValue + (int)(fraction * deltaValue);
+                return mValues[0] + (int)(fraction * mDeltas[1]);
             } else {
-                return ((Number)mEvaluator.evaluate(fraction, firstValue, lastValue)).intValue();
+                return evaluate(fraction, mValues[0], mValues[1]);
             }
         }
-        if (fraction <= 0f) {
-            final IntKeyframe prevKeyframe = (IntKeyframe) mKeyframes.get(0);
-            final IntKeyframe nextKeyframe = (IntKeyframe) mKeyframes.get(1);
-            int prevValue = prevKeyframe.getIntValue();
-            int nextValue = nextKeyframe.getIntValue();
-            float prevFraction = prevKeyframe.getFraction();
-            float nextFraction = nextKeyframe.getFraction();
-            final /*Time*/Interpolator interpolator = nextKeyframe.getInterpolator();
-            if (interpolator != null) {
-                fraction = interpolator.getInterpolation(fraction);
-            }
-            float intervalFraction = (fraction - prevFraction) / (nextFraction - prevFraction);
-            return mEvaluator == null ?
-                    prevValue + (int)(intervalFraction * (nextValue - prevValue)) :
-                    ((Number)mEvaluator.evaluate(intervalFraction, prevValue, nextValue)).
-                            intValue();
-        } else if (fraction >= 1f) {
-            final IntKeyframe prevKeyframe = (IntKeyframe) mKeyframes.get(mNumKeyframes - 2);
-            final IntKeyframe nextKeyframe = (IntKeyframe) mKeyframes.get(mNumKeyframes - 1);
-            int prevValue = prevKeyframe.getIntValue();
-            int nextValue = nextKeyframe.getIntValue();
-            float prevFraction = prevKeyframe.getFraction();
-            float nextFraction = nextKeyframe.getFraction();
-            final /*Time*/Interpolator interpolator = nextKeyframe.getInterpolator();
-            if (interpolator != null) {
-                fraction = interpolator.getInterpolation(fraction);
-            }
-            float intervalFraction = (fraction - prevFraction) / (nextFraction - prevFraction);
-            return mEvaluator == null ?
-                    prevValue + (int)(intervalFraction * (nextValue - prevValue)) :
-                    ((Number)mEvaluator.evaluate(intervalFraction, prevValue, nextValue)).intValue();
+        final int next = findInterval(fraction);
+        if (next == mNumKeyframes) {
+            return mValues[next - 1];
         }
-        IntKeyframe prevKeyframe = (IntKeyframe) mKeyframes.get(0);
-        for (int i = 1; i < mNumKeyframes; ++i) {
-            IntKeyframe nextKeyframe = (IntKeyframe) mKeyframes.get(i);
-            if (fraction < nextKeyframe.getFraction()) {
-                final /*Time*/Interpolator interpolator = nextKeyframe.getInterpolator();
-                if (interpolator != null) {
-                    fraction = interpolator.getInterpolation(fraction);
-                }
-                float intervalFraction = (fraction - prevKeyframe.getFraction()) /
-                    (nextKeyframe.getFraction() - prevKeyframe.getFraction());
-                int prevValue = prevKeyframe.getIntValue();
-                int nextValue = nextKeyframe.getIntValue();
-                return mEvaluator == null ?
-                        prevValue + (int)(intervalFraction * (nextValue - prevValue)) :
-                        ((Number)mEvaluator.evaluate(intervalFraction, prevValue, nextValue)).
-                                intValue();
-            }
-            prevKeyframe = nextKeyframe;
+        final /*Time*/Interpolator interpolator = mInterpolators[next];
+        if (interpolator != null) {
+            fraction = interpolator.getInterpolation(fraction);
         }
-        // shouldn't get here
-        return ((Number)mKeyframes.get(mNumKeyframes - 1).getValue()).intValue();
+        float intervalFraction = (fraction - mFractions[next - 1]) * mIntervalScales[next];
+        return mEvaluator == null ?
+                mValues[next - 1] + (int)(intervalFraction * mDeltas[next]) :
+                evaluate(intervalFraction, mValues[next - 1], mValues[next]);
     }
+
 }
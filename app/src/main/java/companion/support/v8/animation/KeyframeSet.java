@@ -42,6 +42,12 @@ class KeyframeSet {
     ArrayList<KeyframeCompat> mKeyframes; // only used when there are not 2 keyframes
     TypeEvaluatorCompat mEvaluator;
 
+    // Compiled form of the keyframes, rebuilt by compile() after they change
+    float[] mFractions;
+    float[] mIntervalScales; // 1 / (mFractions[i] - mFractions[i - 1])
+    /*Time*/Interpolator[] mInterpolators;
+    int mLastInterval = 1;
+    boolean mCompiled;
 
     public KeyframeSet(KeyframeCompat... keyframes) {
         mNumKeyframes = keyframes.length;
@@ -141,6 +147,109 @@ class KeyframeSet {
         mEvaluator = evaluator;
     }
 
+    /**
+     * Gets the animated value as an <code>int</code>. Subclasses that hold <code>int</code>
+     * keyframes override this to calculate the value without autoboxing.
+     *
+     * @param fraction The elapsed fraction of the animation
+     * @return The animated value.
+     */
+    public int getIntValue(float fraction) {
+        return ((Number) getValue(fraction)).intValue();
+    }
+
+    /**
+     * Gets the animated value as a <code>float</code>. Subclasses that hold <code>float</code>
+     * keyframes override this to calculate the value without autoboxing.
+     *
+     * @param fraction The elapsed fraction of the animation
+     * @return The animated value.
+     */
+    public float getFloatValue(float fraction) {
+        return ((Number) getValue(fraction)).floatValue();
+    }
+
+    /**
+     * Discards the compiled keyframes, to be called after the value, fraction or interpolator
+     * of a keyframe changed. They are compiled again by the next lookup.
+     */
+    void invalidate() {
+        mCompiled = false;
+    }
+
+    /**
+     * Copies the fractions and interpolators of the keyframes to arrays and caches the
+     * reciprocal of every interval, so that frames do not walk the keyframe list or divide.
+     * Subclasses also copy the keyframe values.
+     */
+    void compile() {
+        final int numKeyframes = mNumKeyframes;
+        if (mFractions == null || mFractions.length != numKeyframes) {
+            mFractions = new float[numKeyframes];
+            mIntervalScales = new float[numKeyframes];
+            mInterpolators = new /*Time*/Interpolator[numKeyframes];
+        }
+        for (int i = 0; i < numKeyframes; ++i) {
+            KeyframeCompat keyframe = mKeyframes.get(i);
+            mFractions[i] = keyframe.getFraction();
+            mInterpolators[i] = keyframe.getInterpolator();
+            if (i > 0) {
+                mIntervalScales[i] = 1f / (mFractions[i] - mFractions[i - 1]);
+            }
+        }
+        mInterpolator = mLastKeyframe.getInterpolator();
+        mLastInterval = 1;
+        mCompiled = true;
+    }
+
+    /**
+     * Finds the interval of keyframes used to calculate the value at the given fraction.
+     * Fractions outside [0-1] use the first or last interval. Animations usually move
+     * monotonically, so the interval of the previous lookup and the one after it are checked
+     * before falling back to a binary search.
+     *
+     * @param fraction The elapsed fraction of the animation
+     * @return The index of the keyframe ending the interval, or <code>mNumKeyframes</code> if
+     * the fraction is past the last keyframe.
+     */
+    int findInterval(float fraction) {
+        if (!mCompiled) {
+            compile();
+        }
+        final int numKeyframes = mNumKeyframes;
+        if (fraction <= 0f) {
+            return 1;
+        } else if (fraction >= 1f) {
+            return numKeyframes - 1;
+        }
+        final float[] fractions = mFractions;
+        int next = mLastInterval;
+        if (fraction < fractions[next]) {
+            if (next == 1 || fraction >= fractions[next - 1]) {
+                return next;
+            }
+        } else if (next + 1 < numKeyframes && fraction < fractions[next + 1]) {
+            mLastInterval = next + 1;
+            return next + 1;
+        }
+        if (fraction >= fractions[numKeyframes - 1]) {
+            return numKeyframes;
+        }
+        // first keyframe whose fraction is greater than the given fraction
+        int low = 1;
+        int high = numKeyframes - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (fraction < fractions[mid]) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        mLastInterval = low;
+        return low;
+    }
+
     @Override
     public KeyframeSet clone() {
         ArrayList<KeyframeCompat> keyframes = mKeyframes;
@@ -176,47 +285,17 @@ class KeyframeSet {
             return mEvaluator.evaluate(fraction, mFirstKeyframe.getValue(),
                     mLastKeyframe.getValue());
         }
-        if (fraction <= 0f) {
-            final KeyframeCompat nextKeyframe = mKeyframes.get(1);
-            final /*Time*/Interpolator interpolator = nextKeyframe.getInterpolator();
-            if (interpolator != null) {
-                fraction = interpolator.getInterpolation(fraction);
-            }
-            final float prevFraction = mFirstKeyframe.getFraction();
-            float intervalFraction = (fraction - prevFraction) /
-                (nextKeyframe.getFraction() - prevFraction);
-            return mEvaluator.evaluate(intervalFraction, mFirstKeyframe.getValue(),
-                    nextKeyframe.getValue());
-        } else if (fraction >= 1f) {
-            final KeyframeCompat prevKeyframe = mKeyframes.get(mNumKeyframes - 2);
-            final /*Time*/Interpolator interpolator = mLastKeyframe.getInterpolator();
-            if (interpolator != null) {
-                fraction = interpolator.getInterpolation(fraction);
-            }
-            final float prevFraction = prevKeyframe.getFraction();
-            float intervalFraction = (fraction - prevFraction) /
-                (mLastKeyframe.getFraction() - prevFraction);
-            return mEvaluator.evaluate(intervalFraction, prevKeyframe.getValue(),
-                    mLastKeyframe.getValue());
+        final int next = findInterval(fraction);
+        if (next == mNumKeyframes) {
+            return mLastKeyframe.getValue();
         }
-        KeyframeCompat prevKeyframe = mFirstKeyframe;
-        for (int i = 1; i < mNumKeyframes; ++i) {
-            KeyframeCompat nextKeyframe = mKeyframes.get(i);
-            if (fraction < nextKeyframe.getFraction()) {
-                final /*Time*/Interpolator interpolator = nextKeyframe.getInterpolator();
-                if (interpolator != null) {
-                    fraction = interpolator.getInterpolation(fraction);
-                }
-                final float prevFraction = prevKeyframe.getFraction();
-                float intervalFraction = (fraction - prevFraction) /
-                    (nextKeyframe.getFraction() - prevFraction);
-                return mEvaluator.evaluate(intervalFraction, prevKeyframe.getValue(),
-                        nextKeyframe.getValue());
-            }
-            prevKeyframe = nextKeyframe;
+        final /*Time*/Interpolator interpolator = mInterpolators[next];
+        if (interpolator != null) {
+            fraction = interpolator.getInterpolation(fraction);
         }
-        // shouldn't reach here
-        return mLastKeyframe.getValue();
+        float intervalFraction = (fraction - mFractions[next - 1]) * mIntervalScales[next];
+        return mEvaluator.evaluate(intervalFraction, mKeyframes.get(next - 1).getValue(),
+                mKeyframes.get(next).getValue());
     }
 
     @Override
@@ -24,7 +24,6 @@ import android.view.View;
 
 import companion.support.v8.util.LogHelper;
 import companion.support.v8.util.PropertyCompat;
-import companion.support.v8.view.animation.AnimatorProxy;
 
 
 /**
@@ -401,8 +400,14 @@ public final class ObjectAnimatorCompat extends ValueAnimatorCompat {
 		if (!mInitialized) {
 			// mValueType may change due to setter/getter setup; do this before calling super.init(),
 			// which uses mValueType to set up the default type evaluator.
-			if ((mProperty == null) && AnimatorProxy.NEEDS_PROXY && (mTarget instanceof View) && PROXY_PROPERTIES.containsKey(mPropertyName)) {
-				setProperty(PROXY_PROPERTIES.get(mPropertyName));
+			// Known view properties are set directly instead of through reflection
+			if (mTarget instanceof View) {
+				for (PropertyValuesHolderCompat valuesHolder : mValues) {
+					PropertyCompat property = PROXY_PROPERTIES.get(valuesHolder.getPropertyName());
+					if (valuesHolder.mProperty == null && property != null && valuesHolder.acceptsProperty(property)) {
+						valuesHolder.setProperty(property);
+					}
+				}
 			}
 			int numValues = mValues.length;
 			for (PropertyValuesHolderCompat mValue : mValues) {
@@ -488,10 +493,19 @@ public final class ObjectAnimatorCompat extends ValueAnimatorCompat {
 	@Override
 	void animateValue(float fraction) {
 		super.animateValue(fraction);
-		int numValues = mValues.length;
+		final boolean monitored = AnimationMonitor.sEnabled;
+		final long start = monitored ? System.nanoTime() : 0;
 		for (PropertyValuesHolderCompat mValue : mValues) {
 			mValue.setAnimatedValue(mTarget);
 		}
+		if (monitored) {
+			AnimationMonitor.recordSetters(this, System.nanoTime() - start);
+		}
+	}
+
+	@Override
+	Class<?> getMonitoredClass() {
+		return mTarget != null ? mTarget.getClass() : getClass();
 	}
 
 	@Override
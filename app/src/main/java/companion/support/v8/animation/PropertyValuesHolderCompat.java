@@ -18,8 +18,7 @@ package companion.support.v8.animation;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.HashMap;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
 
 import companion.support.v8.util.FloatProperty;
 import companion.support.v8.util.IntProperty;
@@ -98,14 +97,25 @@ public class PropertyValuesHolderCompat implements Cloneable {
 	// These maps hold all property entries for a particular class. This map
 	// is used to speed up property/setter/getter lookups for a given class/property
 	// combination. No need to use reflection on the combination more than once.
-	private static final HashMap<Class, HashMap<String, Method>> sSetterPropertyMap =
-			new HashMap<Class, HashMap<String, Method>>();
-	private static final HashMap<Class, HashMap<String, Method>> sGetterPropertyMap =
-			new HashMap<Class, HashMap<String, Method>>();
+	// Setters are keyed by property name and requested value type, since holders of
+	// different types may resolve to different overloads.
+	private static final ConcurrentHashMap<Class, ConcurrentHashMap<String, Method>> sSetterPropertyMap =
+			new ConcurrentHashMap<Class, ConcurrentHashMap<String, Method>>();
+	private static final ConcurrentHashMap<Class, ConcurrentHashMap<String, Method>> sGetterPropertyMap =
+			new ConcurrentHashMap<Class, ConcurrentHashMap<String, Method>>();
+
+	// Stored in the maps above when the lookup failed, since they cannot hold null
+	private static final Method NO_METHOD;
+	static {
+		try {
+			NO_METHOD = Object.class.getMethod("toString");
+		} catch (NoSuchMethodException e) {
+			throw new AssertionError(e);
+		}
+	}
 
-	// This lock is used to ensure that only one thread is accessing the property maps
-	// at a time.
-	final ReentrantReadWriteLock mPropertyMapLock = new ReentrantReadWriteLock();
+	// Used to pass no value to varargs parameter in getter invocation
+	private static final Object[] NO_ARGS = new Object[0];
 
 	// Used to pass single value to varargs parameter in setter invocation
 	final Object[] mTmpValueArray = new Object[1];
@@ -449,34 +459,37 @@ public class PropertyValuesHolderCompat implements Cloneable {
 	 * requested method exists in the propertyMapMap cache. If not, it calls another
 	 * utility function to request the Method from the targetClass directly.
 	 * @param targetClass The Class on which the requested method should exist.
-	 * @param propertyMapMap The cache of setters/getters derived so far.
+	 * @param propertyMapMap The cache of setters/getters derived so far, safe to read without locking.
 	 * @param prefix "set" or "get", for the setter or getter.
 	 * @param valueType The type of parameter passed into the method (null for getter).
 	 * @return Method the method associated with mPropertyName.
 	 */
 	private Method setupSetterOrGetter(Class targetClass,
-			HashMap<Class, HashMap<String, Method>> propertyMapMap,
+			ConcurrentHashMap<Class, ConcurrentHashMap<String, Method>> propertyMapMap,
 			String prefix, Class valueType) {
-		Method setterOrGetter = null;
-		try {
-			// Have to lock property map prior to reading it, to guard against
-			// another thread putting something in there after we've checked it
-			// but before we've added an entry to it
-			mPropertyMapLock.writeLock().lock();
-			HashMap<String, Method> propertyMap = propertyMapMap.get(targetClass);
-			if (propertyMap != null) {
-				setterOrGetter = propertyMap.get(mPropertyName);
+		ConcurrentHashMap<String, Method> propertyMap = propertyMapMap.get(targetClass);
+		if (propertyMap == null) {
+			ConcurrentHashMap<String, Method> created = new ConcurrentHashMap<String, Method>();
+			propertyMap = propertyMapMap.putIfAbsent(targetClass, created);
+			if (propertyMap == null) {
+				propertyMap = created;
 			}
-			if (setterOrGetter == null) {
-				setterOrGetter = getPropertyFunction(targetClass, prefix, valueType);
-				if (propertyMap == null) {
-					propertyMap = new HashMap<String, Method>();
-					propertyMapMap.put(targetClass, propertyMap);
-				}
-				propertyMap.put(mPropertyName, setterOrGetter);
+		}
+		String key = valueType == null ? mPropertyName : mPropertyName + '/' + valueType.getName();
+		Method setterOrGetter = propertyMap.get(key);
+		if (setterOrGetter == NO_METHOD) {
+			// failed before, reflecting again would fail the same way
+			return null;
+		}
+		if (setterOrGetter != null) {
+			if (valueType != null) {
+				// the lookup would have changed the value type to suit
+				mValueType = setterOrGetter.getParameterTypes()[0];
 			}
-		} finally {
-			mPropertyMapLock.writeLock().unlock();
+		} else {
+			// Resolving the same method twice on a race is harmless
+			setterOrGetter = getPropertyFunction(targetClass, prefix, valueType);
+			propertyMap.put(key, setterOrGetter != null ? setterOrGetter : NO_METHOD);
 		}
 		return setterOrGetter;
 	}
@@ -507,6 +520,8 @@ public class PropertyValuesHolderCompat implements Cloneable {
 	 * @param target The object on which the setter (and possibly getter) exist.
 	 */
 	void setupSetterAndGetter(Object target) {
+		// keyframes without a value are filled in below
+		mKeyframeSet.invalidate();
 		if (mProperty != null) {
 			// check to make sure that mProperty is on the class of target
 			try {
@@ -523,7 +538,7 @@ public class PropertyValuesHolderCompat implements Cloneable {
 				LogHelper.e("PropertyValuesHolder","No such property (" + mProperty.getName() +
 						") on target object " + target + ". Trying reflection instead");
 
-				mProperty = null;
+				setProperty(null);
 			}
 		}
 		Class targetClass = target.getClass();
@@ -536,7 +551,7 @@ public class PropertyValuesHolderCompat implements Cloneable {
 					setupGetter(targetClass);
 				}
 				try {
-					kf.setValue(mGetter.invoke(target));
+					kf.setValue(mGetter.invoke(target, NO_ARGS));
 				} catch (InvocationTargetException e) {
 
 					LogHelper.e("PropertyValuesHolder", e.toString());
@@ -558,15 +573,17 @@ public class PropertyValuesHolderCompat implements Cloneable {
 	 * @param kf The keyframe which holds the property name and value.
 	 */
 	private void setupValue(Object target, KeyframeCompat kf) {
+		mKeyframeSet.invalidate();
 		if (mProperty != null) {
 			kf.setValue(mProperty.get(target));
+			return;
 		}
 		try {
 			if (mGetter == null) {
 				Class targetClass = target.getClass();
 				setupGetter(targetClass);
 			}
-			kf.setValue(mGetter.invoke(target));
+			kf.setValue(mGetter.invoke(target, NO_ARGS));
 		} catch (InvocationTargetException e) {
 
 			LogHelper.e("PropertyValuesHolder", e.toString());
@@ -661,6 +678,8 @@ public class PropertyValuesHolderCompat implements Cloneable {
 			// evaluator if one has been set on this class
 			mKeyframeSet.setEvaluator(mEvaluator);
 		}
+		// keyframes may have been changed since the last run
+		mKeyframeSet.invalidate();
 	}
 
 	/**
@@ -719,6 +738,14 @@ public class PropertyValuesHolderCompat implements Cloneable {
 		mProperty = property;
 	}
 
+	/**
+	 * Internal function, called by ObjectAnimator to check whether values of this holder
+	 * can be set through the given property without conversion.
+	 */
+	boolean acceptsProperty(PropertyCompat property) {
+		return property.getType() == mValueType;
+	}
+
 	/**
 	 * Gets the name of the property that will be animated. This name will be used to derive
 	 * a setter function that will be called to set animated values.
@@ -740,6 +767,22 @@ public class PropertyValuesHolderCompat implements Cloneable {
 		return mAnimatedValue;
 	}
 
+	/**
+	 * Internal function, called by ValueAnimator, to retrieve the value most recently
+	 * calculated in calculateValue() as an int. Overridden by int holders to avoid autoboxing.
+	 */
+	int getAnimatedIntValue() {
+		return ((Number) getAnimatedValue()).intValue();
+	}
+
+	/**
+	 * Internal function, called by ValueAnimator, to retrieve the value most recently
+	 * calculated in calculateValue() as a float. Overridden by float holders to avoid autoboxing.
+	 */
+	float getAnimatedFloatValue() {
+		return ((Number) getAnimatedValue()).floatValue();
+	}
+
 	@Override
 	public String toString() {
 		return mPropertyName + ": " + mKeyframeSet.toString();
@@ -815,6 +858,17 @@ public class PropertyValuesHolderCompat implements Cloneable {
 			mIntKeyframeSet = (IntKeyframeSet) mKeyframeSet;
 		}
 
+		@Override
+		public void setProperty(PropertyCompat property) {
+			super.setProperty(property);
+			mIntProperty = property instanceof IntProperty ? (IntProperty) property : null;
+		}
+
+		@Override
+		boolean acceptsProperty(PropertyCompat property) {
+			return property.getType() == Integer.class;
+		}
+
 		@Override
 		void calculateValue(float fraction) {
 			mIntAnimatedValue = mIntKeyframeSet.getIntValue(fraction);
@@ -825,6 +879,16 @@ public class PropertyValuesHolderCompat implements Cloneable {
 			return mIntAnimatedValue;
 		}
 
+		@Override
+		int getAnimatedIntValue() {
+			return mIntAnimatedValue;
+		}
+
+		@Override
+		float getAnimatedFloatValue() {
+			return mIntAnimatedValue;
+		}
+
 		@Override
 		public IntPropertyValuesHolder clone() {
 			IntPropertyValuesHolder newPVH = (IntPropertyValuesHolder) super.clone();
@@ -955,6 +1019,17 @@ public class PropertyValuesHolderCompat implements Cloneable {
 			mFloatKeyframeSet = (FloatKeyframeSet) mKeyframeSet;
 		}
 
+		@Override
+		public void setProperty(PropertyCompat property) {
+			super.setProperty(property);
+			mFloatProperty = property instanceof FloatProperty ? (FloatProperty) property : null;
+		}
+
+		@Override
+		boolean acceptsProperty(PropertyCompat property) {
+			return property.getType() == Float.class;
+		}
+
 		@Override
 		void calculateValue(float fraction) {
 			mFloatAnimatedValue = mFloatKeyframeSet.getFloatValue(fraction);
@@ -965,6 +1040,16 @@ public class PropertyValuesHolderCompat implements Cloneable {
 			return mFloatAnimatedValue;
 		}
 
+		@Override
+		int getAnimatedIntValue() {
+			return (int) mFloatAnimatedValue;
+		}
+
+		@Override
+		float getAnimatedFloatValue() {
+			return mFloatAnimatedValue;
+		}
+
 		@Override
 		public FloatPropertyValuesHolder clone() {
 			FloatPropertyValuesHolder newPVH = (FloatPropertyValuesHolder) super.clone();
@@ -17,24 +17,35 @@
 package companion.support.v8.animation;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 
 import android.animation.TimeInterpolator;
+import android.annotation.TargetApi;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.support.annotation.VisibleForTesting;
 import android.util.AndroidRuntimeException;
+import android.view.Choreographer;
 import android.view.animation.AccelerateDecelerateInterpolator;
 import android.view.animation.AnimationUtils;
 import android.view.animation.Interpolator;
 import android.view.animation.LinearInterpolator;
 
+import companion.support.v8.os.Utils;
+import companion.support.v8.view.animation.BakedInterpolator;
+
 /**
  * This class provides a simple timing engine for running animations
  * which calculate animated values and set them on target objects.
  *
  * <p>There is a single timing pulse that all animations use. It runs in a
- * custom handler to ensure that property changes happen on the UI thread.</p>
+ * custom handler to ensure that property changes happen on the UI thread.
+ * On {@link android.os.Build.VERSION_CODES#JELLY_BEAN} and later the pulse is
+ * driven by the display vsync through {@link Choreographer}. Processing a
+ * frame does not allocate.</p>
  *
  * <p>By default, ValueAnimator uses non-linear time interpolation, via the
  * {@link AccelerateDecelerateInterpolator} class, which accelerates into and decelerates
@@ -86,65 +97,25 @@ public class ValueAnimatorCompat extends AnimatorCompat {
      */
     long mSeekTime = -1;
 
-    // TODO: We access the following ThreadLocal variables often, some of them on every update.
-    // If ThreadLocal access is significantly expensive, we may want to put all of these
-    // fields into a structure sot hat we just access ThreadLocal once to get the reference
-    // to that structure, then access the structure directly for each field.
-
-    // The static sAnimationHandler processes the internal timing loop on which all animations
-    // are based
-    private static ThreadLocal<AnimationHandler> sAnimationHandler =
-            new ThreadLocal<AnimationHandler>();
-
-    // The per-thread list of all active animations
-    private static final ThreadLocal<ArrayList<ValueAnimatorCompat>> sAnimations =
-            new ThreadLocal<ArrayList<ValueAnimatorCompat>>() {
-                @Override
-                protected ArrayList<ValueAnimatorCompat> initialValue() {
-                    return new ArrayList<ValueAnimatorCompat>();
-                }
-            };
+    // Whether this animation is on the active list of its loop, so that frames can check
+    // membership without searching the list
+    boolean mActive;
 
-    // The per-thread set of animations to be started on the next animation frame
-    private static final ThreadLocal<ArrayList<ValueAnimatorCompat>> sPendingAnimations =
-            new ThreadLocal<ArrayList<ValueAnimatorCompat>>() {
+    // The per-thread timing loop on which all animations are based. It holds all the
+    // per-thread animation lists, so the ThreadLocal is read once when an animation is
+    // started, cancelled or ended, and never while processing frames.
+    private static final ThreadLocal<AnimationLoop> sAnimationLoop =
+            new ThreadLocal<AnimationLoop>() {
                 @Override
-                protected ArrayList<ValueAnimatorCompat> initialValue() {
-                    return new ArrayList<ValueAnimatorCompat>();
-                }
-            };
-
-    /**
-     * Internal per-thread collections used to avoid set collisions as animations start and end
-     * while being processed.
-     */
-    private static final ThreadLocal<ArrayList<ValueAnimatorCompat>> sDelayedAnims =
-            new ThreadLocal<ArrayList<ValueAnimatorCompat>>() {
-                @Override
-                protected ArrayList<ValueAnimatorCompat> initialValue() {
-                    return new ArrayList<ValueAnimatorCompat>();
-                }
-            };
-
-    private static final ThreadLocal<ArrayList<ValueAnimatorCompat>> sEndingAnims =
-            new ThreadLocal<ArrayList<ValueAnimatorCompat>>() {
-                @Override
-                protected ArrayList<ValueAnimatorCompat> initialValue() {
-                    return new ArrayList<ValueAnimatorCompat>();
-                }
-            };
-
-    private static final ThreadLocal<ArrayList<ValueAnimatorCompat>> sReadyAnims =
-            new ThreadLocal<ArrayList<ValueAnimatorCompat>>() {
-                @Override
-                protected ArrayList<ValueAnimatorCompat> initialValue() {
-                    return new ArrayList<ValueAnimatorCompat>();
+                protected AnimationLoop initialValue() {
+                    return new AnimationLoop();
                 }
             };
 
     // The time interpolator to be used if none is set on the animation
+    // Baked, so that the default easing does not evaluate a cosine on every frame
     private static final /*Time*/Interpolator sDefaultInterpolator =
-            new AccelerateDecelerateInterpolator();
+            BakedInterpolator.obtain(new AccelerateDecelerateInterpolator());
 
     // type evaluators for the primitive types handled by this implementation
     private static final TypeEvaluatorCompat sIntEvaluator = new IntEvaluatorCompat();
@@ -223,6 +194,9 @@ public class ValueAnimatorCompat extends AnimatorCompat {
     // The number of milliseconds between animation frames
     private static long sFrameDelay = DEFAULT_FRAME_DELAY;
 
+    // The source of animation time, null for AnimationUtils
+    private static volatile AnimationClock sClock = null;
+
     // The number of times the animation will repeat. The default is 0, which means the animation
     // will play only once
     private int mRepeatCount = 0;
@@ -477,6 +451,32 @@ public class ValueAnimatorCompat extends AnimatorCompat {
         return mValues;
     }
 
+    /**
+     * The class under which the {@link AnimationMonitor} reports this animator: the class of
+     * its first update listener, which is the code applying the animated values, or the class
+     * of the animator itself if it has none.
+     */
+    Class<?> getMonitoredClass() {
+        if (mUpdateListeners != null && mUpdateListeners.size() > 0) {
+            return mUpdateListeners.get(0).getClass();
+        }
+        return getClass();
+    }
+
+    /**
+     * The property name under which the {@link AnimationMonitor} reports this animator: the
+     * name of its first PropertyValuesHolder.
+     */
+    String getMonitoredPropertyName() {
+        if (mValues != null && mValues.length > 0) {
+            String propertyName = mValues[0].getPropertyName();
+            if (propertyName != null) {
+                return propertyName;
+            }
+        }
+        return "";
+    }
+
     /**
      * This function is called immediately before processing the first animation
      * frame of an animation. If there is a nonzero <code>startDelay</code>, the
@@ -537,7 +537,7 @@ public class ValueAnimatorCompat extends AnimatorCompat {
      */
     public void setCurrentPlayTime(long playTime) {
         initAnimation();
-        long currentTime = AnimationUtils.currentAnimationTimeMillis();
+        long currentTime = currentAnimationTimeMillis();
         if (mPlayingState != RUNNING) {
             mSeekTime = playTime;
             mPlayingState = SEEKED;
@@ -557,132 +557,278 @@ public class ValueAnimatorCompat extends AnimatorCompat {
         if (!mInitialized || mPlayingState == STOPPED) {
             return 0;
         }
-        return AnimationUtils.currentAnimationTimeMillis() - mStartTime;
+        return currentAnimationTimeMillis() - mStartTime;
     }
 
     /**
-     * This custom, static handler handles the timing pulse that is shared by
-     * all active animations. This approach ensures that the setting of animation
-     * values will happen on the UI thread and that all animations will share
-     * the same times for calculating their values, which makes synchronizing
-     * animations possible.
-     *
+     * A list of animations backed by an array that only grows, so that once the
+     * loop has warmed up, adding, removing and clearing never allocate.
      */
-    private static class AnimationHandler extends Handler {
+    private static final class AnimationList {
+        ValueAnimatorCompat[] mItems = new ValueAnimatorCompat[8];
+        int mSize;
+
+        void add(ValueAnimatorCompat anim) {
+            if (mSize == mItems.length) {
+                mItems = Arrays.copyOf(mItems, mSize * 2);
+            }
+            mItems[mSize++] = anim;
+        }
+
+        boolean contains(ValueAnimatorCompat anim) {
+            return indexOf(anim) >= 0;
+        }
+
+        void remove(ValueAnimatorCompat anim) {
+            int index = indexOf(anim);
+            if (index >= 0) {
+                System.arraycopy(mItems, index + 1, mItems, index, mSize - index - 1);
+                mItems[--mSize] = null;
+            }
+        }
+
+        void set(AnimationList other) {
+            if (mItems.length < other.mSize) {
+                mItems = new ValueAnimatorCompat[other.mItems.length];
+            }
+            System.arraycopy(other.mItems, 0, mItems, 0, other.mSize);
+            mSize = other.mSize;
+        }
+
+        void clear() {
+            Arrays.fill(mItems, 0, mSize, null);
+            mSize = 0;
+        }
+
+        private int indexOf(ValueAnimatorCompat anim) {
+            for (int i = 0; i < mSize; ++i) {
+                if (mItems[i] == anim) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * The timing pulse that is shared by all active animations of a thread. This
+     * approach ensures that the setting of animation values will happen on the UI
+     * thread and that all animations will share the same times for calculating
+     * their values, which makes synchronizing animations possible.
+     *
+     * <p>An animation cannot start synchronously when start() is called because
+     * the call may be on the wrong thread, and it would also not be synchronized
+     * with other animations because it would not start on a common timing pulse.
+     * So each animation is placed on the pending list and the loop is asked to
+     * start, which moves it to the active or delayed list and processes frames
+     * while any animation is active.</p>
+     */
+    private static final class AnimationLoop {
+        // All active animations
+        final AnimationList mAnimations = new AnimationList();
+        // Animations to be started on the next animation frame, double buffered with
+        // mStartingAnims because starting an animation may cause others to be pending
+        AnimationList mPendingAnimations = new AnimationList();
+        private AnimationList mStartingAnims = new AnimationList();
+        // Animations sleeping through their start delay
+        final AnimationList mDelayedAnims = new AnimationList();
+        // Reused lists to avoid set collisions as animations start and end while being processed
+        private final AnimationList mFrameAnims = new AnimationList();
+        private final AnimationList mReadyAnims = new AnimationList();
+        private final AnimationList mEndingAnims = new AnimationList();
+
+        private AnimationHandler mHandler;
+        private FrameCallback mFrameCallback;
+        private boolean mFrameScheduled;
+        private long mLastFrameTime;
+        // Start of the previous frame while the AnimationMonitor is enabled, zero when idle
+        private long mMonitorFrameNanos;
+
         /**
-         * There are only two messages that we care about: ANIMATION_START and
-         * ANIMATION_FRAME. The START message is sent when an animation's start()
-         * method is called. It cannot start synchronously when start() is called
-         * because the call may be on the wrong thread, and it would also not be
-         * synchronized with other animations because it would not start on a common
-         * timing pulse. So each animation sends a START message to the handler, which
-         * causes the handler to place the animation on the active animations queue and
-         * start processing frames for that animation.
-         * The FRAME message is the one that is sent over and over while there are any
-         * active animations to process.
+         * Asks the loop to start the pending animations from the message queue.
          */
+        void scheduleStart() {
+            if (mHandler == null) {
+                mHandler = new AnimationHandler(this);
+                if (Utils.hasJellyBean()) {
+                    mFrameCallback = new FrameCallback(this);
+                }
+            }
+            mHandler.sendEmptyMessage(ANIMATION_START);
+        }
+
+        void start() {
+            // Starting an animation may add more to the pending list (for example, if one
+            // animation starting triggers another starting), so loop until it is empty.
+            while (mPendingAnimations.mSize > 0) {
+                AnimationList starting = mPendingAnimations;
+                mPendingAnimations = mStartingAnims;
+                mStartingAnims = starting;
+                for (int i = 0; i < starting.mSize; ++i) {
+                    ValueAnimatorCompat anim = starting.mItems[i];
+                    // If the animation has a startDelay, place it on the delayed list
+                    if (anim.mStartDelay == 0) {
+                        anim.startAnimation();
+                    } else {
+                        mDelayedAnims.add(anim);
+                    }
+                }
+                starting.clear();
+            }
+            // process first frame of new animations
+            doFrame();
+        }
+
+        /**
+         * Called by the pulse when the frame it was asked for is due.
+         */
+        void onFrame() {
+            mFrameScheduled = false;
+            doFrame();
+        }
+
+        private void doFrame() {
+            final boolean monitored = AnimationMonitor.sEnabled;
+            final long frameNanos = monitored ? System.nanoTime() : 0;
+
+            // currentTime holds the common time for all animations processed during this frame
+            long currentTime = currentAnimationTimeMillis();
+            mLastFrameTime = currentTime;
+
+            // First, process animations currently sitting on the delayed queue, adding
+            // them to the active animations if they are ready
+            for (int i = 0; i < mDelayedAnims.mSize; ++i) {
+                ValueAnimatorCompat anim = mDelayedAnims.mItems[i];
+                if (anim.delayedAnimationFrame(currentTime)) {
+                    mReadyAnims.add(anim);
+                }
+            }
+            if (mReadyAnims.mSize > 0) {
+                for (int i = 0; i < mReadyAnims.mSize; ++i) {
+                    ValueAnimatorCompat anim = mReadyAnims.mItems[i];
+                    anim.startAnimation();
+                    anim.mRunning = true;
+                    mDelayedAnims.remove(anim);
+                }
+                mReadyAnims.clear();
+            }
+
+            // Now process all active animations. The return value from animationFrame()
+            // tells whether it should now be ended. Client code may cancel, end or start
+            // animations during a frame, so iterate over a snapshot of the active list.
+            mFrameAnims.set(mAnimations);
+            for (int i = 0; i < mFrameAnims.mSize; ++i) {
+                ValueAnimatorCompat anim = mFrameAnims.mItems[i];
+                if (anim.mActive && animationFrame(anim, currentTime, monitored) && anim.mActive) {
+                    mEndingAnims.add(anim);
+                }
+            }
+            mFrameAnims.clear();
+            if (mEndingAnims.mSize > 0) {
+                for (int i = 0; i < mEndingAnims.mSize; ++i) {
+                    mEndingAnims.mItems[i].endAnimation();
+                }
+                mEndingAnims.clear();
+            }
+
+            // If there are still active or delayed animations, process the next frame
+            boolean idle = mAnimations.mSize == 0 && mDelayedAnims.mSize == 0;
+            if (!idle) {
+                scheduleFrame();
+            }
+
+            if (monitored) {
+                long intervalNanos = mMonitorFrameNanos == 0 ? 0 : frameNanos - mMonitorFrameNanos;
+                mMonitorFrameNanos = idle ? 0 : frameNanos;
+                AnimationMonitor.recordFrame(System.nanoTime() - frameNanos, intervalNanos,
+                        mAnimations.mSize, mPendingAnimations.mSize, mDelayedAnims.mSize);
+            } else {
+                mMonitorFrameNanos = 0;
+            }
+        }
+
+        private static boolean animationFrame(ValueAnimatorCompat anim, long currentTime,
+                boolean monitored) {
+            if (!monitored) {
+                return anim.animationFrame(currentTime);
+            }
+            final long start = System.nanoTime();
+            boolean done = anim.animationFrame(currentTime);
+            AnimationMonitor.recordAnimator(anim, System.nanoTime() - start);
+            return done;
+        }
+
+        private void scheduleFrame() {
+            if (mFrameScheduled) {
+                return;
+            }
+            mFrameScheduled = true;
+            if (mFrameCallback != null) {
+                mFrameCallback.post();
+            } else {
+                mHandler.sendEmptyMessageDelayed(ANIMATION_FRAME, Math.max(0, sFrameDelay -
+                        (currentAnimationTimeMillis() - mLastFrameTime)));
+            }
+        }
+
+        void clear() {
+            for (int i = 0; i < mAnimations.mSize; ++i) {
+                mAnimations.mItems[i].mActive = false;
+            }
+            mAnimations.clear();
+            mPendingAnimations.clear();
+            mDelayedAnims.clear();
+        }
+    }
+
+    /**
+     * Receives the ANIMATION_START message sent when an animation is started and,
+     * before {@link android.os.Build.VERSION_CODES#JELLY_BEAN}, the ANIMATION_FRAME
+     * message it sends to itself over and over while there are active animations.
+     */
+    private static class AnimationHandler extends Handler {
+        private final AnimationLoop mLoop;
+
+        AnimationHandler(AnimationLoop loop) {
+            mLoop = loop;
+        }
+
         @Override
         public void handleMessage(Message msg) {
-            boolean callAgain = true;
-            ArrayList<ValueAnimatorCompat> animations = sAnimations.get();
-            ArrayList<ValueAnimatorCompat> delayedAnims = sDelayedAnims.get();
             switch (msg.what) {
-                // TODO: should we avoid sending frame message when starting if we
-                // were already running?
                 case ANIMATION_START:
-                    ArrayList<ValueAnimatorCompat> pendingAnimations = sPendingAnimations.get();
-                    if (animations.size() > 0 || delayedAnims.size() > 0) {
-                        callAgain = false;
-                    }
-                    // pendingAnims holds any animations that have requested to be started
-                    // We're going to clear sPendingAnimations, but starting animation may
-                    // cause more to be added to the pending list (for example, if one animation
-                    // starting triggers another starting). So we loop until sPendingAnimations
-                    // is empty.
-                    while (pendingAnimations.size() > 0) {
-                        ArrayList<ValueAnimatorCompat> pendingCopy =
-                                (ArrayList<ValueAnimatorCompat>) pendingAnimations.clone();
-                        pendingAnimations.clear();
-                        int count = pendingCopy.size();
-                        for (int i = 0; i < count; ++i) {
-                            ValueAnimatorCompat anim = pendingCopy.get(i);
-                            // If the animation has a startDelay, place it on the delayed list
-                            if (anim.mStartDelay == 0) {
-                                anim.startAnimation();
-                            } else {
-                                delayedAnims.add(anim);
-                            }
-                        }
-                    }
-                    // fall through to process first frame of new animations
+                    mLoop.start();
+                    break;
                 case ANIMATION_FRAME:
-                    // currentTime holds the common time for all animations processed
-                    // during this frame
-                    long currentTime = AnimationUtils.currentAnimationTimeMillis();
-                    ArrayList<ValueAnimatorCompat> readyAnims = sReadyAnims.get();
-                    ArrayList<ValueAnimatorCompat> endingAnims = sEndingAnims.get();
-
-                    // First, process animations currently sitting on the delayed queue, adding
-                    // them to the active animations if they are ready
-                    int numDelayedAnims = delayedAnims.size();
-                    for (int i = 0; i < numDelayedAnims; ++i) {
-                        ValueAnimatorCompat anim = delayedAnims.get(i);
-                        if (anim.delayedAnimationFrame(currentTime)) {
-                            readyAnims.add(anim);
-                        }
-                    }
-                    int numReadyAnims = readyAnims.size();
-                    if (numReadyAnims > 0) {
-                        for (int i = 0; i < numReadyAnims; ++i) {
-                            ValueAnimatorCompat anim = readyAnims.get(i);
-                            anim.startAnimation();
-                            anim.mRunning = true;
-                            delayedAnims.remove(anim);
-                        }
-                        readyAnims.clear();
-                    }
-
-                    // Now process all active animations. The return value from animationFrame()
-                    // tells the handler whether it should now be ended
-                    int numAnims = animations.size();
-                    int i = 0;
-                    while (i < numAnims) {
-                        ValueAnimatorCompat anim = animations.get(i);
-                        if (anim.animationFrame(currentTime)) {
-                            endingAnims.add(anim);
-                        }
-                        if (animations.size() == numAnims) {
-                            ++i;
-                        } else {
-                            // An animation might be canceled or ended by client code
-                            // during the animation frame. Check to see if this happened by
-                            // seeing whether the current index is the same as it was before
-                            // calling animationFrame(). Another approach would be to copy
-                            // animations to a temporary list and process that list instead,
-                            // but that entails garbage and processing overhead that would
-                            // be nice to avoid.
-                            --numAnims;
-                            endingAnims.remove(anim);
-                        }
-                    }
-                    if (endingAnims.size() > 0) {
-                        for (i = 0; i < endingAnims.size(); ++i) {
-                            endingAnims.get(i).endAnimation();
-                        }
-                        endingAnims.clear();
-                    }
-
-                    // If there are still active or delayed animations, call the handler again
-                    // after the frameDelay
-                    if (callAgain && (!animations.isEmpty() || !delayedAnims.isEmpty())) {
-                        sendEmptyMessageDelayed(ANIMATION_FRAME, Math.max(0, sFrameDelay -
-                            (AnimationUtils.currentAnimationTimeMillis() - currentTime)));
-                    }
+                    mLoop.onFrame();
                     break;
             }
         }
     }
 
+    /**
+     * Drives the loop from the display vsync. Only loaded on
+     * {@link android.os.Build.VERSION_CODES#JELLY_BEAN} and later.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static final class FrameCallback implements Choreographer.FrameCallback {
+        private final Choreographer mChoreographer = Choreographer.getInstance();
+        private final AnimationLoop mLoop;
+
+        FrameCallback(AnimationLoop loop) {
+            mLoop = loop;
+        }
+
+        void post() {
+            mChoreographer.postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mLoop.onFrame();
+        }
+    }
+
     /**
      * The amount of time, in milliseconds, to delay starting the animation after
      * {@link #start()} is called.
@@ -708,7 +854,8 @@ public class ValueAnimatorCompat extends AnimatorCompat {
      * requested time that the animation will attempt to honor, but the actual delay between
      * frames may be different, depending on system load and capabilities. This is a static
      * function because the same delay will be applied to all animations, since they are all
-     * run off of a single timing loop.
+     * run off of a single timing loop. It is only used before
+     * {@link android.os.Build.VERSION_CODES#JELLY_BEAN}, later frames follow the display vsync.
      *
      * @return the requested time between frames, in milliseconds
      */
@@ -721,7 +868,8 @@ public class ValueAnimatorCompat extends AnimatorCompat {
      * requested time that the animation will attempt to honor, but the actual delay between
      * frames may be different, depending on system load and capabilities. This is a static
      * function because the same delay will be applied to all animations, since they are all
-     * run off of a single timing loop.
+     * run off of a single timing loop. It is only used before
+     * {@link android.os.Build.VERSION_CODES#JELLY_BEAN}, later frames follow the display vsync.
      *
      * @param frameDelay the requested time between frames, in milliseconds
      */
@@ -729,6 +877,27 @@ public class ValueAnimatorCompat extends AnimatorCompat {
         sFrameDelay = frameDelay;
     }
 
+    /**
+     * Sets the source of the time that drives all animations, in place of
+     * {@link AnimationUtils#currentAnimationTimeMillis()}. A clock that is advanced by hand
+     * makes the engine deterministic, so animations can be stepped frame by frame with
+     * {@link #setCurrentPlayTime(long)} to measure or verify them away from the display.
+     * The clock applies to every animation of the process, so it is only meant for tests
+     * and benchmarks.
+     *
+     * @param clock the clock to use, or null to restore the default one
+     */
+    @VisibleForTesting
+    static void setAnimationClock(AnimationClock clock) {
+        sClock = clock;
+    }
+
+    static long currentAnimationTimeMillis() {
+        AnimationClock clock = sClock;
+        return clock == null ? AnimationUtils.currentAnimationTimeMillis()
+                : clock.currentAnimationTimeMillis();
+    }
+
     /**
      * The most recent value calculated by this <code>ValueAnimator</code> when there is just one
      * property being animated. This value is only sensible while the animation is running. The main
@@ -749,6 +918,32 @@ public class ValueAnimatorCompat extends AnimatorCompat {
         return null;
     }
 
+    /**
+     * Primitive version of {@link #getAnimatedValue()} for animators created with
+     * {@link #ofInt(int...)}, which does not allocate on every frame.
+     *
+     * @return animatedValue The value most recently calculated, as an <code>int</code>.
+     */
+    public int getAnimatedIntValue() {
+        if (mValues != null && mValues.length > 0) {
+            return mValues[0].getAnimatedIntValue();
+        }
+        return 0;
+    }
+
+    /**
+     * Primitive version of {@link #getAnimatedValue()} for animators created with
+     * {@link #ofFloat(float...)}, which does not allocate on every frame.
+     *
+     * @return animatedValue The value most recently calculated, as a <code>float</code>.
+     */
+    public float getAnimatedFloatValue() {
+        if (mValues != null && mValues.length > 0) {
+            return mValues[0].getAnimatedFloatValue();
+        }
+        return 0f;
+    }
+
     /**
      * The most recent value calculated by this <code>ValueAnimator</code> for <code>propertyName</code>.
      * The main purpose for this read-only property is to retrieve the value from the
@@ -923,7 +1118,8 @@ public class ValueAnimatorCompat extends AnimatorCompat {
         mPlayingState = STOPPED;
         mStarted = true;
         mStartedDelay = false;
-        sPendingAnimations.get().add(this);
+        AnimationLoop animationLoop = sAnimationLoop.get();
+        animationLoop.mPendingAnimations.add(this);
         if (mStartDelay == 0) {
             // This sets the initial value of the animation, prior to actually starting it running
             setCurrentPlayTime(getCurrentPlayTime());
@@ -939,12 +1135,7 @@ public class ValueAnimatorCompat extends AnimatorCompat {
                 }
             }
         }
-        AnimationHandler animationHandler = sAnimationHandler.get();
-        if (animationHandler == null) {
-            animationHandler = new AnimationHandler();
-            sAnimationHandler.set(animationHandler);
-        }
-        animationHandler.sendEmptyMessage(ANIMATION_START);
+        animationLoop.scheduleStart();
     }
 
     @Override
@@ -956,8 +1147,9 @@ public class ValueAnimatorCompat extends AnimatorCompat {
     public void cancel() {
         // Only cancel if the animation is actually running or has been started and is about
         // to run
-        if (mPlayingState != STOPPED || sPendingAnimations.get().contains(this) ||
-                sDelayedAnims.get().contains(this)) {
+        AnimationLoop animationLoop = sAnimationLoop.get();
+        if (mPlayingState != STOPPED || animationLoop.mPendingAnimations.contains(this) ||
+                animationLoop.mDelayedAnims.contains(this)) {
             // Only notify listeners if the animator has actually started
             if (mRunning && mListeners != null) {
                 ArrayList<AnimatorListener> tmpListeners =
@@ -972,7 +1164,8 @@ public class ValueAnimatorCompat extends AnimatorCompat {
 
     @Override
     public void end() {
-        if (!sAnimations.get().contains(this) && !sPendingAnimations.get().contains(this)) {
+        AnimationLoop animationLoop = sAnimationLoop.get();
+        if (!mActive && !animationLoop.mPendingAnimations.contains(this)) {
             // Special case if the animation has not yet started; get it ready for ending
             mStartedDelay = false;
             startAnimation();
@@ -1009,7 +1202,7 @@ public class ValueAnimatorCompat extends AnimatorCompat {
     public void reverse() {
         mPlayingBackwards = !mPlayingBackwards;
         if (mPlayingState == RUNNING) {
-            long currentTime = AnimationUtils.currentAnimationTimeMillis();
+            long currentTime = currentAnimationTimeMillis();
             long currentPlayTime = currentTime - mStartTime;
             long timeLeft = mDuration - currentPlayTime;
             mStartTime = currentTime - timeLeft;
@@ -1023,9 +1216,13 @@ public class ValueAnimatorCompat extends AnimatorCompat {
      * called on the UI thread.
      */
     private void endAnimation() {
-        sAnimations.get().remove(this);
-        sPendingAnimations.get().remove(this);
-        sDelayedAnims.get().remove(this);
+        AnimationLoop animationLoop = sAnimationLoop.get();
+        if (mActive) {
+            animationLoop.mAnimations.remove(this);
+            mActive = false;
+        }
+        animationLoop.mPendingAnimations.remove(this);
+        animationLoop.mDelayedAnims.remove(this);
         mPlayingState = STOPPED;
         if (mRunning && mListeners != null) {
             ArrayList<AnimatorListener> tmpListeners =
@@ -1045,7 +1242,10 @@ public class ValueAnimatorCompat extends AnimatorCompat {
      */
     private void startAnimation() {
         initAnimation();
-        sAnimations.get().add(this);
+        if (!mActive) {
+            sAnimationLoop.get().mAnimations.add(this);
+            mActive = true;
+        }
         if (mStartDelay > 0 && mListeners != null) {
             // Listeners were already notified in start() if startDelay is 0; this is
             // just for delayed animations
@@ -1198,6 +1398,7 @@ public class ValueAnimatorCompat extends AnimatorCompat {
         anim.mInitialized = false;
         anim.mPlayingState = STOPPED;
         anim.mStartedDelay = false;
+        anim.mActive = false;
         PropertyValuesHolderCompat[] oldValues = mValues;
         if (oldValues != null) {
             int numValues = oldValues.length;
@@ -1228,6 +1429,19 @@ public class ValueAnimatorCompat extends AnimatorCompat {
 
     }
 
+    /**
+     * Supplies the time used to calculate animation frames.
+     *
+     * @see ValueAnimatorCompat#setAnimationClock(AnimationClock)
+     */
+    interface AnimationClock {
+        /**
+         * @return the current animation time, in milliseconds.
+         */
+        long currentAnimationTimeMillis();
+
+    }
+
     /**
      * Return the number of animations currently running.
      *
@@ -1237,7 +1451,7 @@ public class ValueAnimatorCompat extends AnimatorCompat {
      * @hide
      */
     public static int getCurrentAnimationsCount() {
-        return sAnimations.get().size();
+        return sAnimationLoop.get().mAnimations.mSize;
     }
 
     /**
@@ -1247,9 +1461,7 @@ public class ValueAnimatorCompat extends AnimatorCompat {
      * @hide
      */
     public static void clearAllAnimations() {
-        sAnimations.get().clear();
-        sPendingAnimations.get().clear();
-        sDelayedAnims.get().clear();
+        sAnimationLoop.get().clear();
     }
 
     @Override
@@ -1,7 +1,6 @@
 package companion.support.v8.graphics;
 
 import android.graphics.Color;
-import android.util.SparseArray;
 
 /**
  * Utility class with a bundle of color methods.
@@ -11,6 +10,11 @@ import android.util.SparseArray;
  */
 public class ColorUtils {
 
+	/** Interpolates the colors of a color map through their hue, saturation and value. */
+	public static final int MODE_HSV = 0;
+	/** Interpolates the colors of a color map through their linear RGB intensities. */
+	public static final int MODE_LINEAR_RGB = 1;
+
 	/** This prevents the class from being instantiated. 
 	 */
 	private ColorUtils() {
@@ -81,55 +85,78 @@ public class ColorUtils {
 	 * @return the generated color map based on the gradient.
 	 */
 	public static int[] generateColorMap(int[] colors, float[] startPoints, int size, double opacity) {
-		if (colors.length != startPoints.length || colors.length == 0) {
+		if (!isValidGradient(colors, startPoints)) {
 			return null;
 		}
-		for (int i = 1; i < startPoints.length; i++) {
-			if (startPoints[i] <= startPoints[i - 1]) {
-				return null;
-			}
+		return generateColorMap(colors, startPoints, opacity, MODE_HSV, new int[size]);
+	}
+
+	/**
+	 * Fills a color map from a given array of colors and the fractions
+	 * that the colors represent, in a single pass over the map. The colors
+	 * at both ends of each interval are converted once, so large maps that
+	 * are rebuilt at runtime, such as heatmap gradients, can reuse the same
+	 * array and allocate nothing per entry.
+	 * The colors and starting points must be parallel arrays.
+	 * 
+	 * @param colors to be used in the gradient.
+	 * @param startPoints the starting point for each color in increasing order, 
+	 * given as a percentage of the maximum intensity, from 0 to 1.
+	 * @param opacity applied to all colors.
+	 * @param mode {@link #MODE_HSV} or {@link #MODE_LINEAR_RGB}.
+	 * @param colorMap the color map to fill, its length is the size of the map.
+	 * @return the given color map, or null if the colors or start points are not valid.
+	 */
+	public static int[] generateColorMap(int[] colors, float[] startPoints, double opacity, int mode, int[] colorMap) {
+		if (!isValidGradient(colors, startPoints)) {
+			return null;
 		}
-		
-		// Color intervals
-		SparseArray<ColorInterval> colorIntervals = new SparseArray<ColorInterval>();
+		final int size = colorMap.length;
+
+		// Color intervals, in increasing order of the entry where they start
+		ColorInterval[] intervals = new ColorInterval[colors.length + 1];
+		int[] starts = new int[colors.length + 1];
+		int count = 0;
 		// Create first color if not already created
 		// The initial color is transparent by default
 		if (startPoints[0] != 0) {
-			int initialColor = Color.argb(0, Color.red(colors[0]), Color.green(colors[0]), Color.blue(colors[0]));
-			colorIntervals.append(0, new ColorInterval(initialColor, colors[0], size * startPoints[0]));
+			int initialColor = colors[0] & 0x00ffffff;
+			count = addInterval(intervals, starts, count, 0, 
+				new ColorInterval(initialColor, colors[0], size * startPoints[0]));
 		}
-		
+
 		// Generate color intervals
 		for (int i = 1; i < colors.length; i++) {
-			colorIntervals.append(((int) (size * startPoints[i - 1])),
+			count = addInterval(intervals, starts, count, (int) (size * startPoints[i - 1]),
 				new ColorInterval(colors[i - 1], colors[i], (size * (startPoints[i] - startPoints[i - 1]))));
 		}
-		
+
 		// Extend to a final color
 		// If color for 100% intensity is not given, the color of highest intensity is used.
 		if (startPoints[startPoints.length - 1] != 1) {
 			int i = startPoints.length - 1;
-			colorIntervals.append(((int) (size * startPoints[i])),
+			count = addInterval(intervals, starts, count, (int) (size * startPoints[i]),
 				new ColorInterval(colors[i], colors[i], size * (1 - startPoints[i])));
 		}
-		
-		int[] colorMap = new int[size];
-		ColorInterval interval = colorIntervals.get(0);
-		int start = 0;
-		for (int i = 0; i < size; i++) {
-			if (colorIntervals.indexOfKey(i)>=0) {
-				interval = colorIntervals.get(i);
-				start = i;
+
+		float[] hsv1 = new float[3];
+		float[] hsv2 = new float[3];
+		for (int k = 0; k < count; k++) {
+			ColorInterval interval = intervals[k];
+			int start = starts[k];
+			int end = Math.min(k + 1 < count ? starts[k + 1] : size, size);
+			// Fraction of the distance between color1 and color2 per entry
+			float step = 1 / interval.duration;
+
+			if (mode == MODE_LINEAR_RGB) {
+				for (int i = start; i < end; i++) {
+					colorMap[i] = applyOpacity(blendLinearRgb(interval.color1, interval.color2, (i - start) * step), opacity);
+				}
+				continue;
 			}
-			
-			// Calculate fraction of the distance between color1 and color2
-			float ratio = (i - start) / interval.duration;
-			
+
 			// Interpolate between two colors using their HSV values.
-			int alpha = (int) ((Color.alpha(interval.color2) - Color.alpha(interval.color1)) * ratio + Color.alpha(interval.color1));
-			float[] hsv1 = new float[3];
 			Color.RGBToHSV(Color.red(interval.color1), Color.green(interval.color1), Color.blue(interval.color1), hsv1);
-			float[] hsv2 = new float[3];
 			Color.RGBToHSV(Color.red(interval.color2), Color.green(interval.color2), Color.blue(interval.color2), hsv2);
 
 			// adjust so that the shortest path on the color wheel will be taken
@@ -139,23 +166,150 @@ public class ColorUtils {
 				hsv1[0] += 360;
 			}
 
-			// Interpolate using calculated ratio
-			float[] result = new float[3];
-			for (int j = 0; j < 3; j++) {
-				result[j] = (hsv2[j] - hsv1[j]) * (ratio) + hsv1[j];
+			final int alpha1 = Color.alpha(interval.color1);
+			final int alphaDelta = Color.alpha(interval.color2) - alpha1;
+			final float hueDelta = hsv2[0] - hsv1[0];
+			final float saturationDelta = hsv2[1] - hsv1[1];
+			final float valueDelta = hsv2[2] - hsv1[2];
+			for (int i = start; i < end; i++) {
+				float ratio = (i - start) * step;
+				int alpha = (int) (alphaDelta * ratio + alpha1);
+				if (opacity != 1) {
+					alpha = (int) (alpha * opacity);
+				}
+				colorMap[i] = HSVToColor(alpha, hueDelta * ratio + hsv1[0],
+					saturationDelta * ratio + hsv1[1], valueDelta * ratio + hsv1[2]);
 			}
+		}
+
+		return colorMap;
+	}
 
-			colorMap[i] = Color.HSVToColor(alpha, result);
+	/**
+	 * Interpolates between two colors through their linear RGB intensities
+	 * instead of their gamma encoded sRGB components, so the midpoint of a
+	 * gradient is not darker than its ends. Alpha is interpolated as is.
+	 * The channels are blended in fixed point through lookup tables.
+	 * 
+	 * @param color1 the color at ratio 0.
+	 * @param color2 the color at ratio 1.
+	 * @param ratio the fraction of the distance between the two colors.
+	 * @return the interpolated color.
+	 */
+	public static int blendLinearRgb(int color1, int color2, float ratio) {
+		if (ratio <= 0) {
+			return color1;
+		} else if (ratio >= 1) {
+			return color2;
 		}
-		
-		if (opacity != 1) {
-			for (int i = 0; i < size; i++) {
-				int c = colorMap[i];
-				colorMap[i] = Color.argb((int) (Color.alpha(c) * opacity),
-					Color.red(c), Color.green(c), Color.blue(c));
+		final int f = (int) (ratio * 65536);
+		final short[] toLinear = LinearRgb.TO_LINEAR;
+		final byte[] toSrgb = LinearRgb.TO_SRGB;
+
+		int alpha1 = color1 >>> 24;
+		int alpha = alpha1 + ((((color2 >>> 24) - alpha1) * f) >> 16);
+		int red1 = toLinear[(color1 >> 16) & 0xff];
+		int red = red1 + (((toLinear[(color2 >> 16) & 0xff] - red1) * f) >> 16);
+		int green1 = toLinear[(color1 >> 8) & 0xff];
+		int green = green1 + (((toLinear[(color2 >> 8) & 0xff] - green1) * f) >> 16);
+		int blue1 = toLinear[color1 & 0xff];
+		int blue = blue1 + (((toLinear[color2 & 0xff] - blue1) * f) >> 16);
+
+		return alpha << 24 | (toSrgb[red] & 0xff) << 16 | (toSrgb[green] & 0xff) << 8 | (toSrgb[blue] & 0xff);
+	}
+
+	private static boolean isValidGradient(int[] colors, float[] startPoints) {
+		if (colors.length != startPoints.length || colors.length == 0) {
+			return false;
+		}
+		for (int i = 1; i < startPoints.length; i++) {
+			if (startPoints[i] <= startPoints[i - 1]) {
+				return false;
 			}
 		}
+		return true;
+	}
 
-		return colorMap;
+	/**
+	 * Appends an interval, replacing the last one if both start at the same entry.
+	 */
+	private static int addInterval(ColorInterval[] intervals, int[] starts, int count, int start, ColorInterval interval) {
+		if (count > 0 && starts[count - 1] == start) {
+			count--;
+		}
+		intervals[count] = interval;
+		starts[count] = start;
+		return count + 1;
+	}
+
+	private static int applyOpacity(int color, double opacity) {
+		if (opacity == 1) {
+			return color;
+		}
+		return ((int) ((color >>> 24) * opacity)) << 24 | (color & 0x00ffffff);
+	}
+
+	/**
+	 * Converts HSV components to a color like {@link Color#HSVToColor(int, float[])},
+	 * without the array and the native call. Hues outside [0-360) wrap around.
+	 */
+	private static int HSVToColor(int alpha, float hue, float saturation, float value) {
+		alpha = Math.max(0, Math.min(255, alpha));
+		saturation = Math.max(0, Math.min(1, saturation));
+		value = Math.max(0, Math.min(1, value)) * 255;
+
+		final int v = (int) (value + 0.5f);
+		if (saturation < 1f / 4096) {
+			return alpha << 24 | v << 16 | v << 8 | v;
+		}
+
+		hue %= 360;
+		if (hue < 0) {
+			hue += 360;
+		}
+		final float sector = hue / 60;
+		final int w = (int) sector;
+		final float f = sector - w;
+		final int p = (int) ((1 - saturation) * value + 0.5f);
+		final int q = (int) ((1 - saturation * f) * value + 0.5f);
+		final int t = (int) ((1 - saturation * (1 - f)) * value + 0.5f);
+
+		switch (w) {
+		case 0:
+			return alpha << 24 | v << 16 | t << 8 | p;
+		case 1:
+			return alpha << 24 | q << 16 | v << 8 | p;
+		case 2:
+			return alpha << 24 | p << 16 | v << 8 | t;
+		case 3:
+			return alpha << 24 | p << 16 | q << 8 | v;
+		case 4:
+			return alpha << 24 | t << 16 | p << 8 | v;
+		default:
+			return alpha << 24 | v << 16 | p << 8 | q;
+		}
+	}
+
+	/**
+	 * Lookup tables between sRGB components and linear intensities in 12 bits,
+	 * built the first time a linear RGB blend is made.
+	 */
+	private static final class LinearRgb {
+		static final int MAX = (1 << 12) - 1;
+		static final short[] TO_LINEAR = new short[256];
+		static final byte[] TO_SRGB = new byte[MAX + 1];
+
+		static {
+			for (int i = 0; i < TO_LINEAR.length; i++) {
+				double c = i / 255d;
+				double linear = c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4);
+				TO_LINEAR[i] = (short) Math.round(linear * MAX);
+			}
+			for (int i = 0; i <= MAX; i++) {
+				double linear = (double) i / MAX;
+				double c = linear <= 0.0031308 ? linear * 12.92 : 1.055 * Math.pow(linear, 1 / 2.4) - 0.055;
+				TO_SRGB[i] = (byte) Math.round(c * 255);
+			}
+		}
 	}
 }
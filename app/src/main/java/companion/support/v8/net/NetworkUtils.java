@@ -17,6 +17,7 @@ import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Build;
 
+import companion.support.v8.os.AsyncTaskCompat;
 import companion.support.v8.os.Utils;
 import companion.support.v8.util.LogHelper;
 
@@ -31,6 +32,9 @@ public class NetworkUtils {
 	/** Log tag. */
 	private static final String TAG = NetworkUtils.class.getSimpleName();
 
+	/** Size of the buffer used to copy downloads, cancellation is checked between reads. */
+	private static final int IO_BUFFER_SIZE = 8 * 1024;
+
 	/** This prevents the class from being instantiated. 
 	 */
 	private NetworkUtils() {
@@ -43,6 +47,20 @@ public class NetworkUtils {
 	 * @return true if successful, false otherwise.
 	 */
 	public static boolean downloadUrlToStream(String urlString, OutputStream outputStream) {
+		return downloadUrlToStream(urlString, outputStream, null);
+	}
+
+	/**
+	 * Download a file from an URL on behalf of a task and write the content to an output stream.
+	 * The connect and read timeouts are bounded by the time left before the task deadline, and
+	 * the download stops as soon as the task is cancelled.
+	 *
+	 * @param urlString the URL to fetch.
+	 * @param outputStream the stream to write to.
+	 * @param task the task downloading the file, or null.
+	 * @return true if successful, false otherwise, including when the task was cancelled.
+	 */
+	public static boolean downloadUrlToStream(String urlString, OutputStream outputStream, AsyncTaskCompat<?, ?, ?> task) {
 		disableConnectionReuseIfNecessary();
 		HttpURLConnection urlConnection = null;
 		BufferedOutputStream out = null;
@@ -51,12 +69,29 @@ public class NetworkUtils {
 		try {
 			final URL url = new URL(urlString);
 			urlConnection = (HttpURLConnection) url.openConnection();
+			if (task != null) {
+				if (task.isCancelled()) {
+					return false;
+				}
+				long remaining = task.getRemainingTime();
+				if (remaining != Long.MAX_VALUE) {
+					// 0 means infinite for URLConnection, the deadline may have just expired
+					int timeout = (int) Math.max(1, Math.min(remaining, Integer.MAX_VALUE));
+					urlConnection.setConnectTimeout(timeout);
+					urlConnection.setReadTimeout(timeout);
+				}
+			}
 			in = new BufferedInputStream(urlConnection.getInputStream());
 			out = new BufferedOutputStream(outputStream);
 
-			int b;
-			while ((b = in.read()) != -1) {
-				out.write(b);
+			final byte[] buffer = new byte[IO_BUFFER_SIZE];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				if (task != null && task.isCancelled()) {
+					LogHelper.d(TAG, "downloadUrlToStream - cancelled " + urlString);
+					return false;
+				}
+				out.write(buffer, 0, count);
 			}
 			return true;
 		} catch (final IOException e) {
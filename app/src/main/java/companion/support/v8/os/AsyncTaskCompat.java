@@ -6,21 +6,26 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.annotation.TargetApi;
 import android.os.AsyncTask;
+import android.os.Debug;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
 import android.os.Process;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 
 import companion.support.v8.util.LogHelper;
@@ -29,7 +34,7 @@ import companion.support.v8.util.LogHelper;
  * This class is an extension of the AsyncTask so that threading behavior on all OS versions 
  * is the same and we can tweak behavior by using executeOnExecutor() if needed.
  *
- * There are 3 changes in this copy of AsyncTask:
+ * The changes in this copy of AsyncTask are:
  * <ul>
  * <li>
  * pre-HC a single thread executor is used for serial operation (Executors.newSingleThreadExecutor) and is the default
@@ -40,6 +45,26 @@ import companion.support.v8.util.LogHelper;
  * <li>
  * a new fixed thread pool called DUAL_THREAD_EXECUTOR was added
  * </li>
+ * <li>
+ * a work stealing pool called WORK_STEALING_EXECUTOR was added, which applies back-pressure instead of discarding tasks
+ * </li>
+ * <li>
+ * KEYED_SERIAL_EXECUTOR was added to serialize tasks per key rather than process-wide, and the
+ * default executor can be changed with {@link #setDefaultExecutor(Executor)}
+ * </li>
+ * <li>
+ * progress updates are coalesced, only the latest values are delivered, at most once per progress interval
+ * </li>
+ * <li>
+ * the executors can be instrumented with the {@link ExecutorMonitor}
+ * </li>
+ * <li>
+ * tasks can carry a deadline, after which they are cancelled automatically
+ * </li>
+ * <li>
+ * the pools are sized from the number of cores, and CPU_EXECUTOR and IO_EXECUTOR were added for
+ * tasks that declare their {@link TaskKind}
+ * </li>
  * </ul>
  *
  * <p>AsyncTask enables proper and easy use of the UI thread. This class allows to
@@ -150,6 +175,11 @@ import companion.support.v8.util.LogHelper;
  * check the return value of {@link #isCancelled()} periodically from
  * {@link #doInBackground(Object[])}, if possible (inside a loop for instance.)</p>
  *
+ * <p>A task can also be given a deadline with {@link #setTimeout(long, TimeUnit)}
+ * or {@link #setDeadline(long)}. Once it expires, the task is cancelled and
+ * its thread interrupted, so abandoned work does not keep holding a worker
+ * thread. Blocking operations should be bounded by {@link #getRemainingTime()}.</p>
+ *
  * <h2>Threading rules</h2>
  * <p>There are a few threading rules that must be followed for this class to
  * work properly:</p>
@@ -197,8 +227,12 @@ import companion.support.v8.util.LogHelper;
 public abstract class AsyncTaskCompat<Params, Progress, Result> {
 	private static final String TAG = AsyncTaskCompat.class.getSimpleName();
 
-	private static final int CORE_POOL_SIZE = 5;
-	private static final int MAXIMUM_POOL_SIZE = 128;
+	private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+	// between 2 and 4 core threads, leaving a core for the UI thread
+	private static final int CORE_POOL_SIZE = Math.max(2, Math.min(CPU_COUNT - 1, 4));
+	private static final int MAXIMUM_POOL_SIZE = CPU_COUNT * 2 + 1;
+	private static final int IO_MINIMUM_POOL_SIZE = Math.max(2, CPU_COUNT);
+	private static final int IO_MAXIMUM_POOL_SIZE = Math.max(16, CPU_COUNT * 8);
 	private static final int KEEP_ALIVE = 1;
 
 	private static final ThreadFactory  sThreadFactory = new ThreadFactory() {
@@ -210,28 +244,81 @@ public abstract class AsyncTaskCompat<Params, Progress, Result> {
 	};
 
 	private static final BlockingQueue<Runnable> sPoolWorkQueue =
-			new LinkedBlockingQueue<Runnable>(10);
+			new LinkedBlockingQueue<Runnable>(128);
 
 	/**
 	 * An {@link Executor} that can be used to execute tasks in parallel.
 	 */
 	public static final Executor THREAD_POOL_EXECUTOR
-	= new ThreadPoolExecutor(CORE_POOL_SIZE, MAXIMUM_POOL_SIZE, KEEP_ALIVE,
-			TimeUnit.SECONDS, sPoolWorkQueue, sThreadFactory,
-			new ThreadPoolExecutor.DiscardOldestPolicy());
+	= new MonitoredPoolExecutor("THREAD_POOL_EXECUTOR", CORE_POOL_SIZE, MAXIMUM_POOL_SIZE, KEEP_ALIVE,
+			TimeUnit.SECONDS, sPoolWorkQueue);
 
 	/**
 	 * An {@link Executor} that executes tasks one at a time in serial
 	 * order. This serialization is global to a particular process.
 	 */
 	public static final Executor SERIAL_EXECUTOR = Utils.hasHoneycomb() ? new SerialExecutor() :
-		Executors.newSingleThreadExecutor(sThreadFactory);
+		new MonitoredPoolExecutor("SERIAL_EXECUTOR", 1, 1, 0L,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
 
 	public static final Executor DUAL_THREAD_EXECUTOR =
-			Executors.newFixedThreadPool(2, sThreadFactory);
+			new MonitoredPoolExecutor("DUAL_THREAD_EXECUTOR", 2, 2, 0L,
+					TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+
+	/**
+	 * An {@link Executor} for CPU-bound tasks, such as decoding, image
+	 * processing or cryptography, with one thread per core so that they do not
+	 * oversubscribe the cores.
+	 *
+	 * @see TaskKind#CPU
+	 */
+	public static final Executor CPU_EXECUTOR =
+			new MonitoredPoolExecutor("CPU_EXECUTOR", CPU_COUNT, CPU_COUNT, KEEP_ALIVE,
+					TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+	/**
+	 * An {@link Executor} for tasks that mostly wait, such as network or disk
+	 * I/O. Its size follows the measured ratio of blocking time to CPU time of
+	 * its tasks, between the number of cores and a multiple of it.
+	 *
+	 * @see TaskKind#IO
+	 */
+	public static final Executor IO_EXECUTOR =
+			new AdaptivePoolExecutor("IO_EXECUTOR", IO_MINIMUM_POOL_SIZE, IO_MAXIMUM_POOL_SIZE);
+
+	/**
+	 * A {@link WorkStealingExecutor} with one worker per core, suited for bursts
+	 * of parallel work. Unlike {@link #THREAD_POOL_EXECUTOR} it never discards
+	 * tasks, submitters are slowed down instead when it is saturated. It can be
+	 * made the default with {@link #setDefaultExecutor(Executor)}.
+	 */
+	public static final WorkStealingExecutor WORK_STEALING_EXECUTOR =
+			new WorkStealingExecutor("WORK_STEALING_EXECUTOR", Math.max(2, CPU_COUNT), 256);
+
+	/**
+	 * Serializes tasks per key on {@link #WORK_STEALING_EXECUTOR}. Unlike
+	 * {@link #SERIAL_EXECUTOR}, tasks of different keys run in parallel.
+	 *
+	 * @see #serialExecutorFor(Object)
+	 */
+	public static final KeyedSerialExecutor KEYED_SERIAL_EXECUTOR =
+			new KeyedSerialExecutor(WORK_STEALING_EXECUTOR);
+
+	static {
+		ExecutorMonitor.registerPool("THREAD_POOL_EXECUTOR", THREAD_POOL_EXECUTOR);
+		ExecutorMonitor.registerPool("DUAL_THREAD_EXECUTOR", DUAL_THREAD_EXECUTOR);
+		ExecutorMonitor.registerPool("CPU_EXECUTOR", CPU_EXECUTOR);
+		ExecutorMonitor.registerPool("IO_EXECUTOR", IO_EXECUTOR);
+		ExecutorMonitor.registerPool("WORK_STEALING_EXECUTOR", WORK_STEALING_EXECUTOR);
+	}
 
 	private static final int MESSAGE_POST_RESULT = 0x1;
 	private static final int MESSAGE_POST_PROGRESS = 0x2;
+	private static final int MESSAGE_RUN = 0x3;
+	private static final int MESSAGE_DEADLINE = 0x4;
+
+	/** Default minimum time between two progress updates, about one frame. */
+	public static final long DEFAULT_PROGRESS_INTERVAL = 16;
 
 	private static final InternalHandler sHandler = new InternalHandler();
 
@@ -243,22 +330,128 @@ public abstract class AsyncTaskCompat<Params, Progress, Result> {
 
 	private final AtomicBoolean mCancelled = new AtomicBoolean();
 	private final AtomicBoolean mTaskInvoked = new AtomicBoolean();
+	/** Set by whichever comes first, the result being posted or the deadline expiring. */
+	private final AtomicBoolean mSettled = new AtomicBoolean();
+
+	/** Latest progress not delivered yet; a delivery is scheduled whenever it is not null. */
+	private final AtomicReference<Progress[]> mPendingProgress = new AtomicReference<Progress[]>();
+	private volatile long mProgressInterval = DEFAULT_PROGRESS_INTERVAL;
+	private volatile long mLastProgressTime;
+
+	/** Timeout counted from execution, 0 if none. */
+	private long mTimeout;
+	/** Uptime after which the task is cancelled, 0 if none. */
+	private volatile long mDeadline;
+
+	/**
+	 * A {@link ThreadPoolExecutor} whose tasks are recorded by the {@link ExecutorMonitor}.
+	 * When saturated, it discards the oldest queued task and counts it.
+	 */
+	private static class MonitoredPoolExecutor extends ThreadPoolExecutor {
+		private final String mName;
+
+		MonitoredPoolExecutor(final String name, int corePoolSize, int maximumPoolSize, long keepAliveTime,
+				TimeUnit unit, BlockingQueue<Runnable> workQueue) {
+			super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, sThreadFactory,
+					new RejectedExecutionHandler() {
+				@Override
+				public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+					// same as DiscardOldestPolicy, but the discarded task is counted
+					if (e.isShutdown()) {
+						ExecutorMonitor.recordDiscarded(name, r);
+						return;
+					}
+					Runnable discarded = e.getQueue().poll();
+					if (discarded != null) {
+						ExecutorMonitor.recordDiscarded(name, discarded);
+					}
+					e.execute(r);
+				}
+			});
+			mName = name;
+		}
+
+		@Override
+		public void execute(@NonNull Runnable command) {
+			super.execute(ExecutorMonitor.wrap(mName, command));
+		}
+	}
+
+	/**
+	 * A pool that resizes itself from the time its tasks spend blocked. With
+	 * W the wait time and C the CPU time of the tasks, keeping the cores busy
+	 * takes about {@code cores * (1 + W / C)} threads.
+	 */
+	private static class AdaptivePoolExecutor extends MonitoredPoolExecutor {
+		/** Number of tasks between two resizes. */
+		private static final int SAMPLE_PERIOD = 32;
+
+		private final int mMinimumSize;
+		private final int mMaximumSize;
+		private final AtomicLong mWallNanos = new AtomicLong();
+		private final AtomicLong mCpuNanos = new AtomicLong();
+		private final AtomicInteger mSamples = new AtomicInteger();
+		private final ThreadLocal<long[]> mStart = new ThreadLocal<long[]>() {
+			@Override
+			protected long[] initialValue() {
+				return new long[2];
+			}
+		};
+
+		AdaptivePoolExecutor(String name, int minimumSize, int maximumSize) {
+			// core and maximum sizes are kept equal, the queue is unbounded
+			super(name, minimumSize, minimumSize, KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+			mMinimumSize = minimumSize;
+			mMaximumSize = maximumSize;
+		}
+
+		@Override
+		protected void beforeExecute(Thread t, Runnable r) {
+			long[] start = mStart.get();
+			start[0] = System.nanoTime();
+			start[1] = Debug.threadCpuTimeNanos();
+		}
+
+		@Override
+		protected void afterExecute(Runnable r, Throwable t) {
+			long[] start = mStart.get();
+			long cpu = Debug.threadCpuTimeNanos();
+			if (start[1] < 0 || cpu < 0) {
+				// thread CPU time is not supported, keep the current size
+				return;
+			}
+			mWallNanos.addAndGet(System.nanoTime() - start[0]);
+			mCpuNanos.addAndGet(cpu - start[1]);
+			if (mSamples.incrementAndGet() % SAMPLE_PERIOD == 0) {
+				resize();
+			}
+		}
+
+		private synchronized void resize() {
+			long wall = mWallNanos.getAndSet(0);
+			long cpu = Math.max(1, mCpuNanos.getAndSet(0));
+			double blocking = Math.max(0, wall - cpu) / (double) cpu;
+			int target = (int) Math.min(mMaximumSize, CPU_COUNT * (1 + blocking));
+			int current = getCorePoolSize();
+			// move half way to damp oscillations between periods
+			int size = Math.max(mMinimumSize, Math.min(mMaximumSize, (current + target + 1) / 2));
+			if (size > current) {
+				setMaximumPoolSize(size);
+				setCorePoolSize(size);
+			} else if (size < current) {
+				setCorePoolSize(size);
+				setMaximumPoolSize(size);
+			}
+		}
+	}
 
 	@TargetApi(11)
 	private static class SerialExecutor implements Executor {
 		final ArrayDeque<Runnable> mTasks = new ArrayDeque<Runnable>();
 		Runnable mActive;
 
-		public synchronized void execute(@NonNull final Runnable r) {
-			mTasks.offer(new Runnable() {
-				public void run() {
-					try {
-						r.run();
-					} finally {
-						scheduleNext();
-					}
-				}
-			});
+		public synchronized void execute(@NonNull Runnable r) {
+			mTasks.offer(new SerialTask(ExecutorMonitor.wrap("SERIAL_EXECUTOR", r)));
 			if (mActive == null) {
 				scheduleNext();
 			}
@@ -269,6 +462,45 @@ public abstract class AsyncTaskCompat<Params, Progress, Result> {
 				THREAD_POOL_EXECUTOR.execute(mActive);
 			}
 		}
+
+		private class SerialTask implements Runnable, ExecutorMonitor.Tagged {
+			private final Runnable mTask;
+
+			SerialTask(Runnable task) {
+				mTask = task;
+			}
+
+			@Override
+			public Class<?> getTaskClass() {
+				return mTask instanceof ExecutorMonitor.Tagged ? ((ExecutorMonitor.Tagged) mTask).getTaskClass()
+						: mTask.getClass();
+			}
+
+			public void run() {
+				try {
+					mTask.run();
+				} finally {
+					scheduleNext();
+				}
+			}
+		}
+	}
+
+	/**
+	 * The kind of work a task does, used to pick its executor.
+	 *
+	 * @see #executeAs(TaskKind, Object[])
+	 * @see #executorFor(TaskKind)
+	 */
+	public enum TaskKind {
+		/**
+		 * The task keeps a core busy, for instance decoding or cryptography. Runs on {@link #CPU_EXECUTOR}.
+		 */
+		CPU,
+		/**
+		 * The task mostly waits, for instance on the network or the disk. Runs on {@link #IO_EXECUTOR}.
+		 */
+		IO,
 	}
 
 	/**
@@ -295,11 +527,35 @@ public abstract class AsyncTaskCompat<Params, Progress, Result> {
 		sHandler.getLooper();
 	}
 
-	/** @hide */
+	/**
+	 * Sets the executor used by {@link #execute(Object[])} and {@link #execute(Runnable)},
+	 * for instance {@link #WORK_STEALING_EXECUTOR}.
+	 *
+	 * @param exec the new default executor.
+	 */
 	public static void setDefaultExecutor(Executor exec) {
 		sDefaultExecutor = exec;
 	}
 
+	/**
+	 * @param kind the kind of work.
+	 * @return the executor suited to the given kind of work.
+	 */
+	public static Executor executorFor(TaskKind kind) {
+		return kind == TaskKind.IO ? IO_EXECUTOR : CPU_EXECUTOR;
+	}
+
+	/**
+	 * Returns an {@link Executor} that runs tasks one at a time in submission
+	 * order, serialized only against other tasks of the same key.
+	 *
+	 * @param key identifies the resource the tasks work on, such as a database name.
+	 * @return the executor, to be used with {@link #executeOnExecutor(Executor, Object[])}.
+	 */
+	public static Executor serialExecutorFor(Object key) {
+		return KEYED_SERIAL_EXECUTOR.forKey(key);
+	}
+
 	/**
 	 * Creates a new asynchronous task. This constructor must be invoked on the UI thread.
 	 */
@@ -314,21 +570,7 @@ public abstract class AsyncTaskCompat<Params, Progress, Result> {
 			}
 		};
 
-		mFuture = new FutureTask<Result>(mWorker) {
-			@Override
-			protected void done() {
-				try {
-					postResultIfNotInvoked(get());
-				} catch (InterruptedException e) {
-					LogHelper.w(TAG, "Interrupted while executing doInBackground()", e);
-				} catch (ExecutionException e) {
-					throw new RuntimeException("An error occurred while executing doInBackground()",
-							e.getCause());
-				} catch (CancellationException e) {
-					postResultIfNotInvoked(null);
-				}
-			}
-		};
+		mFuture = new TaskFuture(mWorker);
 	}
 
 	private void postResultIfNotInvoked(Result result) {
@@ -339,6 +581,8 @@ public abstract class AsyncTaskCompat<Params, Progress, Result> {
 	}
 
 	private Result postResult(Result result) {
+		// from now on the deadline cannot cancel the task and discard the result
+		mSettled.set(true);
 		Message message = sHandler.obtainMessage(MESSAGE_POST_RESULT,
 				new SupportAsyncTaskResult<Result>(this, result));
 		message.sendToTarget();
@@ -451,7 +695,87 @@ public abstract class AsyncTaskCompat<Params, Progress, Result> {
 	 * @see #cancel(boolean)
 	 */
 	public final boolean isCancelled() {
-		return mCancelled.get();
+		return mCancelled.get() || expireIfPastDeadline();
+	}
+
+	/**
+	 * Sets a timeout counted from the execution of the task. When it expires
+	 * the task is cancelled as if by {@code cancel(true)}. Must be called
+	 * before the task is executed.
+	 *
+	 * @param timeout the timeout, 0 for none.
+	 * @param unit the time unit of the timeout.
+	 * @return this instance of SupportAsyncTask.
+	 *
+	 * @see #setDeadline(long)
+	 */
+	public final AsyncTaskCompat<Params, Progress, Result> setTimeout(long timeout, TimeUnit unit) {
+		checkPending();
+		mTimeout = Math.max(0, unit.toMillis(timeout));
+		mDeadline = 0;
+		return this;
+	}
+
+	/**
+	 * Sets an absolute deadline, for instance to give a task the deadline of
+	 * the task that started it. When it expires the task is cancelled as if
+	 * by {@code cancel(true)}. Must be called before the task is executed.
+	 *
+	 * @param uptimeMillis the deadline in the {@link SystemClock#uptimeMillis()} time base, 0 for none.
+	 * @return this instance of SupportAsyncTask.
+	 *
+	 * @see #setTimeout(long, TimeUnit)
+	 */
+	public final AsyncTaskCompat<Params, Progress, Result> setDeadline(long uptimeMillis) {
+		checkPending();
+		mDeadline = Math.max(0, uptimeMillis);
+		mTimeout = 0;
+		return this;
+	}
+
+	/**
+	 * @return the deadline in the {@link SystemClock#uptimeMillis()} time base,
+	 *         0 if the task has none or was not executed yet.
+	 */
+	public final long getDeadline() {
+		return mDeadline;
+	}
+
+	/**
+	 * Returns the time left before the deadline, to bound blocking operations
+	 * such as network reads.
+	 *
+	 * @return the remaining time in milliseconds, 0 if the deadline expired,
+	 *         or {@link Long#MAX_VALUE} if the task has no deadline.
+	 */
+	public final long getRemainingTime() {
+		long deadline = mDeadline;
+		if (deadline == 0) {
+			return Long.MAX_VALUE;
+		}
+		return Math.max(0, deadline - SystemClock.uptimeMillis());
+	}
+
+	/**
+	 * Cancels the task if its deadline expired while it is still pending or running.
+	 *
+	 * @return true if the task was cancelled.
+	 */
+	private boolean expireIfPastDeadline() {
+		long deadline = mDeadline;
+		if (deadline == 0 || SystemClock.uptimeMillis() < deadline || !mSettled.compareAndSet(false, true)) {
+			// no deadline, not expired yet, or the result was posted first
+			return false;
+		}
+		LogHelper.w(TAG, "Deadline expired, cancelling " + getClass().getName());
+		cancel(true);
+		return true;
+	}
+
+	private void checkPending() {
+		if (mStatus != Status.PENDING) {
+			throw new IllegalStateException("The deadline must be set before the task is executed");
+		}
 	}
 
 	/**
@@ -604,6 +928,14 @@ public abstract class AsyncTaskCompat<Params, Progress, Result> {
 
 		mStatus = Status.RUNNING;
 
+		if (mTimeout > 0) {
+			mDeadline = SystemClock.uptimeMillis() + mTimeout;
+		}
+		if (mDeadline > 0) {
+			// cancels the task even if it never checks isCancelled()
+			sHandler.sendMessageAtTime(sHandler.obtainMessage(MESSAGE_DEADLINE, this), mDeadline);
+		}
+
 		onPreExecute();
 
 		mWorker.mParams = params;
@@ -612,6 +944,23 @@ public abstract class AsyncTaskCompat<Params, Progress, Result> {
 		return this;
 	}
 
+	/**
+	 * Executes the task with the specified parameters on the executor suited
+	 * to the given kind of work. Tasks run in parallel.
+	 *
+	 * <p>This method must be invoked on the UI thread.
+	 *
+	 * @param kind the kind of work the task does.
+	 * @param params the parameters of the task.
+	 *
+	 * @return this instance of SupportAsyncTask.
+	 *
+	 * @see #executorFor(TaskKind)
+	 */
+	public final AsyncTaskCompat<Params, Progress, Result> executeAs(TaskKind kind, Params... params) {
+		return executeOnExecutor(executorFor(kind), params);
+	}
+
 	/**
 	 * Convenience version of {@link #execute(Object...)} for use with
 	 * a simple Runnable object. See {@link #execute(Object[])} for more
@@ -624,11 +973,25 @@ public abstract class AsyncTaskCompat<Params, Progress, Result> {
 		sDefaultExecutor.execute(runnable);
 	}
 
+	/**
+	 * Sets the minimum time between two calls to {@link #onProgressUpdate}.
+	 * Values published in between are coalesced and only the latest ones are
+	 * delivered. Defaults to {@link #DEFAULT_PROGRESS_INTERVAL}.
+	 *
+	 * @param millis the interval in milliseconds, 0 to deliver on the next main loop iteration.
+	 */
+	public final void setProgressInterval(long millis) {
+		mProgressInterval = Math.max(0, millis);
+	}
+
 	/**
 	 * This method can be invoked from {@link #doInBackground} to
 	 * publish updates on the UI thread while the background computation is
-	 * still running. Each call to this method will trigger the execution of
-	 * {@link #onProgressUpdate} on the UI thread.
+	 * still running. Calls to this method trigger the execution of
+	 * {@link #onProgressUpdate} on the UI thread with the latest published
+	 * values, at most once per progress interval: values published while a
+	 * delivery is pending replace the ones waiting to be delivered. Pending
+	 * values are always delivered before {@link #onPostExecute}.
 	 *
 	 * {@link #onProgressUpdate} will note be called if the task has been
 	 * canceled.
@@ -637,16 +1000,48 @@ public abstract class AsyncTaskCompat<Params, Progress, Result> {
 	 *
 	 * @see #onProgressUpdate
 	 * @see #doInBackground
+	 * @see #setProgressInterval(long)
 	 */
 	protected final void publishProgress(Progress... values) {
-		if (!isCancelled()) {
-			sHandler.obtainMessage(MESSAGE_POST_PROGRESS,
-					new SupportAsyncTaskResult<Progress>(this, values)).sendToTarget();
+		if (!isCancelled() && mPendingProgress.getAndSet(values) == null) {
+			// no delivery was pending, schedule one
+			long when = Math.max(SystemClock.uptimeMillis(), mLastProgressTime + mProgressInterval);
+			sHandler.sendMessageAtTime(sHandler.obtainMessage(MESSAGE_POST_PROGRESS, this), when);
+		}
+	}
+
+	private void deliverProgress() {
+		Progress[] values = mPendingProgress.getAndSet(null);
+		if (values != null && !isCancelled()) {
+			mLastProgressTime = SystemClock.uptimeMillis();
+			onProgressUpdate(values);
 		}
 	}
 
+	/**
+	 * Runs the given runnable on the UI thread, through the same handler that
+	 * delivers the task results. Runs it immediately if called from the UI thread.
+	 */
+	static void runOnMain(Runnable runnable) {
+		if (isMainThread()) {
+			runnable.run();
+		} else {
+			sHandler.obtainMessage(MESSAGE_RUN, runnable).sendToTarget();
+		}
+	}
+
+	/**
+	 * @return true if the calling thread is the UI thread.
+	 */
+	static boolean isMainThread() {
+		return Looper.myLooper() == Looper.getMainLooper();
+	}
+
 	private void finish(Result result) {
-		if (isCancelled()) {
+		sHandler.removeMessages(MESSAGE_DEADLINE, this);
+		deliverProgress();
+		// a deadline expiring after doInBackground returned does not discard its result
+		if (mCancelled.get()) {
 			onCancelled(result);
 		} else {
 			onPostExecute(result);
@@ -657,15 +1052,50 @@ public abstract class AsyncTaskCompat<Params, Progress, Result> {
 	private static class InternalHandler extends Handler {
 		@Override
 		public void handleMessage(Message msg) {
-			SupportAsyncTaskResult result = (SupportAsyncTaskResult) msg.obj;
 			switch (msg.what) {
 			case MESSAGE_POST_RESULT:
+				SupportAsyncTaskResult result = (SupportAsyncTaskResult) msg.obj;
 				// There is only one result
 				result.mTask.finish(result.mData[0]);
 				break;
 			case MESSAGE_POST_PROGRESS:
-				result.mTask.onProgressUpdate(result.mData);
+				((AsyncTaskCompat) msg.obj).deliverProgress();
+				break;
+			case MESSAGE_RUN:
+				((Runnable) msg.obj).run();
 				break;
+			case MESSAGE_DEADLINE:
+				((AsyncTaskCompat) msg.obj).expireIfPastDeadline();
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Runs the worker and posts its result. Reports the task subclass to the {@link ExecutorMonitor}.
+	 */
+	private class TaskFuture extends FutureTask<Result> implements ExecutorMonitor.Tagged {
+
+		TaskFuture(Callable<Result> callable) {
+			super(callable);
+		}
+
+		@Override
+		public Class<?> getTaskClass() {
+			return AsyncTaskCompat.this.getClass();
+		}
+
+		@Override
+		protected void done() {
+			try {
+				postResultIfNotInvoked(get());
+			} catch (InterruptedException e) {
+				LogHelper.w(TAG, "Interrupted while executing doInBackground()", e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException("An error occurred while executing doInBackground()",
+						e.getCause());
+			} catch (CancellationException e) {
+				postResultIfNotInvoked(null);
 			}
 		}
 	}
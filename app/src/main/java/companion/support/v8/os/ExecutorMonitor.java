@@ -0,0 +1,328 @@
+package companion.support.v8.os;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import companion.support.v8.util.LatencyHistogram;
+import companion.support.v8.util.LogHelper;
+import companion.support.v8.util.StripedCounter;
+
+/**
+ * Optional instrumentation of the {@link AsyncTaskCompat} executors. When
+ * enabled, every task submitted to one of them records, per executor and
+ * task class, the time spent waiting between submission and start and the
+ * time spent running, and every task the executors discard is counted. The
+ * samples are aggregated in histograms and forwarded to a {@link Listener}.
+ * The utilization of the thread pools can be sampled at any time.
+ *
+ * <p>When disabled, the only cost is a volatile read per submission.</p>
+ *
+ * @author Vitor Ribeiro
+ *
+ */
+public final class ExecutorMonitor {
+
+	/** Log tag. */
+	private static final String TAG = ExecutorMonitor.class.getSimpleName();
+
+	/**
+	 * Receives the samples recorded by the monitor. Called on the worker
+	 * threads, so implementations must be thread safe and fast.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called after a task ran.
+		 *
+		 * @param executor the name of the executor.
+		 * @param taskClass the class of the task.
+		 * @param waitNanos time between submission and start.
+		 * @param runNanos time spent running.
+		 */
+		void onTaskCompleted(String executor, Class<?> taskClass, long waitNanos, long runNanos);
+
+		/**
+		 * Called when an executor drops a task without running it.
+		 *
+		 * @param executor the name of the executor.
+		 * @param taskClass the class of the task.
+		 */
+		void onTaskDiscarded(String executor, Class<?> taskClass);
+	}
+
+	/**
+	 * Implemented by runnables that wrap a task, to report the class of the
+	 * wrapped task instead of their own.
+	 */
+	interface Tagged {
+		Class<?> getTaskClass();
+	}
+
+	private static volatile boolean sEnabled;
+	private static volatile Listener sListener;
+
+	private static final ConcurrentHashMap<String, TaskStats> sStats = new ConcurrentHashMap<String, TaskStats>();
+	private static final ConcurrentHashMap<String, Executor> sPools = new ConcurrentHashMap<String, Executor>();
+
+	/** This prevents the class from being instantiated.
+	 */
+	private ExecutorMonitor() {
+	}
+
+	/**
+	 * Enables or disables the monitor. Tasks submitted while disabled are not recorded.
+	 *
+	 * @param enabled true to record samples.
+	 */
+	public static void setEnabled(boolean enabled) {
+		sEnabled = enabled;
+	}
+
+	/**
+	 * @return true if the monitor records samples.
+	 */
+	public static boolean isEnabled() {
+		return sEnabled;
+	}
+
+	/**
+	 * Sets the listener that receives every sample. Setting a listener does
+	 * not enable the monitor.
+	 *
+	 * @param listener the listener, or null to remove it.
+	 */
+	public static void setListener(Listener listener) {
+		sListener = listener;
+	}
+
+	/**
+	 * @return a copy of the statistics of every executor and task class seen so far.
+	 */
+	public static List<TaskStats.Snapshot> getTaskStats() {
+		List<TaskStats.Snapshot> result = new ArrayList<TaskStats.Snapshot>(sStats.size());
+		for (TaskStats stats : sStats.values()) {
+			result.add(stats.snapshot());
+		}
+		return result;
+	}
+
+	/**
+	 * @return the current utilization of every registered pool.
+	 */
+	public static List<PoolState> getPoolStates() {
+		List<PoolState> result = new ArrayList<PoolState>(sPools.size());
+		for (Map.Entry<String, Executor> pool : sPools.entrySet()) {
+			result.add(new PoolState(pool.getKey(), pool.getValue()));
+		}
+		return result;
+	}
+
+	/**
+	 * Clears all the statistics.
+	 */
+	public static void reset() {
+		sStats.clear();
+	}
+
+	/**
+	 * Writes the statistics and the pool utilization to the log.
+	 */
+	public static void dump() {
+		for (PoolState state : getPoolStates()) {
+			LogHelper.d(TAG, state.toString());
+		}
+		for (TaskStats.Snapshot stats : getTaskStats()) {
+			LogHelper.d(TAG, stats.toString());
+		}
+	}
+
+	/**
+	 * Registers a pool whose utilization is reported by {@link #getPoolStates()}.
+	 */
+	static void registerPool(String name, Executor pool) {
+		sPools.put(name, pool);
+	}
+
+	/**
+	 * Wraps a task being submitted to an executor so that it records its
+	 * wait and run time, or returns it as is if the monitor is disabled.
+	 */
+	static Runnable wrap(String executor, Runnable task) {
+		if (!sEnabled || task instanceof MonitoredRunnable) {
+			return task;
+		}
+		return new MonitoredRunnable(executor, task);
+	}
+
+	/**
+	 * Records a task dropped by an executor.
+	 */
+	static void recordDiscarded(String executor, Runnable task) {
+		if (task instanceof MonitoredRunnable) {
+			executor = ((MonitoredRunnable) task).mExecutor;
+		} else if (!sEnabled) {
+			return;
+		}
+		Class<?> taskClass = taskClassOf(task);
+		statsOf(executor, taskClass).mDiscarded.increment();
+
+		Listener listener = sListener;
+		if (listener != null) {
+			listener.onTaskDiscarded(executor, taskClass);
+		}
+	}
+
+	private static Class<?> taskClassOf(Runnable task) {
+		return task instanceof Tagged ? ((Tagged) task).getTaskClass() : task.getClass();
+	}
+
+	private static TaskStats statsOf(String executor, Class<?> taskClass) {
+		String key = executor + '/' + taskClass.getName();
+		TaskStats stats = sStats.get(key);
+		if (stats == null) {
+			TaskStats created = new TaskStats(executor, taskClass);
+			stats = sStats.putIfAbsent(key, created);
+			if (stats == null) {
+				stats = created;
+			}
+		}
+		return stats;
+	}
+
+	private static final class MonitoredRunnable implements Runnable, Tagged {
+		private final String mExecutor;
+		private final Runnable mTask;
+		private final Class<?> mTaskClass;
+		private final long mSubmitNanos = System.nanoTime();
+
+		private MonitoredRunnable(String executor, Runnable task) {
+			mExecutor = executor;
+			mTask = task;
+			// resolved now, wrappers may delegate to a different task by the time this one runs
+			mTaskClass = taskClassOf(task);
+		}
+
+		@Override
+		public Class<?> getTaskClass() {
+			return mTaskClass;
+		}
+
+		@Override
+		public void run() {
+			final long start = System.nanoTime();
+			try {
+				mTask.run();
+			} finally {
+				long waitNanos = start - mSubmitNanos;
+				long runNanos = System.nanoTime() - start;
+				TaskStats stats = statsOf(mExecutor, mTaskClass);
+				stats.mWait.record(waitNanos);
+				stats.mRun.record(runNanos);
+
+				Listener listener = sListener;
+				if (listener != null) {
+					listener.onTaskCompleted(mExecutor, mTaskClass, waitNanos, runNanos);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Statistics of one task class on one executor.
+	 */
+	public static final class TaskStats {
+		private final String mExecutor;
+		private final Class<?> mTaskClass;
+		private final LatencyHistogram mWait = new LatencyHistogram();
+		private final LatencyHistogram mRun = new LatencyHistogram();
+		private final StripedCounter mDiscarded = new StripedCounter();
+
+		private TaskStats(String executor, Class<?> taskClass) {
+			mExecutor = executor;
+			mTaskClass = taskClass;
+		}
+
+		private Snapshot snapshot() {
+			return new Snapshot(mExecutor, mTaskClass, mWait.snapshot(), mRun.snapshot(), mDiscarded.sum());
+		}
+
+		/**
+		 * An immutable copy of the statistics of a task class.
+		 */
+		public static final class Snapshot {
+			public final String executor;
+			public final Class<?> taskClass;
+			public final LatencyHistogram.Snapshot waitTime;
+			public final LatencyHistogram.Snapshot runTime;
+			public final long discardedCount;
+
+			private Snapshot(String executor, Class<?> taskClass, LatencyHistogram.Snapshot waitTime,
+					LatencyHistogram.Snapshot runTime, long discardedCount) {
+				this.executor = executor;
+				this.taskClass = taskClass;
+				this.waitTime = waitTime;
+				this.runTime = runTime;
+				this.discardedCount = discardedCount;
+			}
+
+			@Override
+			public String toString() {
+				return executor + " " + taskClass.getName()
+					+ " wait[" + waitTime + "]"
+					+ " run[" + runTime + "]"
+					+ " discarded=" + discardedCount;
+			}
+		}
+	}
+
+	/**
+	 * The utilization of a pool at the time it was sampled.
+	 */
+	public static final class PoolState {
+		public final String name;
+		public final int activeCount;
+		public final int poolSize;
+		public final int maximumPoolSize;
+		public final int queuedCount;
+
+		private PoolState(String name, Executor pool) {
+			this.name = name;
+			if (pool instanceof ThreadPoolExecutor) {
+				ThreadPoolExecutor executor = (ThreadPoolExecutor) pool;
+				activeCount = executor.getActiveCount();
+				poolSize = executor.getPoolSize();
+				maximumPoolSize = executor.getMaximumPoolSize();
+				queuedCount = executor.getQueue().size();
+			} else if (pool instanceof WorkStealingExecutor) {
+				WorkStealingExecutor executor = (WorkStealingExecutor) pool;
+				activeCount = executor.getActiveCount();
+				poolSize = executor.getParallelism();
+				maximumPoolSize = executor.getParallelism();
+				queuedCount = executor.getQueuedTaskCount();
+			} else {
+				activeCount = 0;
+				poolSize = 0;
+				maximumPoolSize = 0;
+				queuedCount = 0;
+			}
+		}
+
+		/**
+		 * @return the ratio of busy threads over the maximum pool size.
+		 */
+		public float getUtilization() {
+			return maximumPoolSize == 0 ? 0f : (float) activeCount / maximumPoolSize;
+		}
+
+		@Override
+		public String toString() {
+			return name + " active=" + activeCount + "/" + maximumPoolSize
+				+ " threads=" + poolSize
+				+ " queued=" + queuedCount;
+		}
+	}
+}
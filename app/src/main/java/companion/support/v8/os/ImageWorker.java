@@ -6,6 +6,7 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
+import android.support.annotation.NonNull;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.FragmentManager;
 import android.widget.ImageView;
@@ -16,6 +17,12 @@ import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import companion.support.v8.graphics.ImageUtils;
 import companion.support.v8.graphics.drawable.AsyncDrawable;
@@ -23,7 +30,9 @@ import companion.support.v8.graphics.drawable.BitmapDrawableRecycled;
 import companion.support.v8.lang.ParsingUtils;
 import companion.support.v8.net.NetworkUtils;
 import companion.support.v8.util.DiskLruCache;
+import companion.support.v8.util.CacheStats;
 import companion.support.v8.util.ImageCache;
+import companion.support.v8.util.LatencyHistogram;
 import companion.support.v8.util.LogHelper;
 
 /**
@@ -61,15 +70,24 @@ public class ImageWorker {
 	private File mCacheDir;
 	private boolean mDiskCacheStarting = true;
 	private final Object mDiskCacheLock = new Object();
+	// URLs being downloaded, with the loads of the same URL waiting for them
+	private final HashMap<String, List<Runnable>> mDownloads = new HashMap<String, List<Runnable>>();
 
 	public String cacheDir = ImageCache.DEFAULT_CACHE_DIR;
 	public int diskCacheSize = ImageCache.DEFAULT_DISK_CACHE_SIZE;
 	public int cacheIndex = ImageCache.DISK_CACHE_INDEX;
 
+	// Statistics
+	private final LatencyHistogram mDownloadLatency = new LatencyHistogram();
+	private final LatencyHistogram mDecodeLatency = new LatencyHistogram();
+
 	// Tasks
 	protected boolean mExitTasksEarly = false;
 	protected boolean mPauseWork = false;
 	private final Object mPauseWorkLock = new Object();
+	// Download stages parked while work is paused, guarded by mPauseWorkLock
+	private final List<DownloadStage> mPausedStages = new ArrayList<DownloadStage>();
+	private long mLoadTimeout;
 
 	/**
 	 * Initialize providing a target image size;
@@ -205,13 +223,29 @@ public class ImageWorker {
 			imageView.setImageDrawable(value);
 		} else if (cancelPotentialWork(key, imageView)) {
 			final CacheBitmapWorkerTask task = new CacheBitmapWorkerTask(imageView);
+			if (mLoadTimeout > 0) {
+				task.setTimeout(mLoadTimeout, TimeUnit.MILLISECONDS);
+			}
 			final AsyncDrawable asyncDrawable = new AsyncDrawable(mResources, mLoadingBitmap, task);
 			imageView.setImageDrawable(asyncDrawable);
 
 			// NOTE: This uses a custom version of AsyncTask that has been pulled from the
 			// framework and slightly modified. Refer to the docs at the top of the class
 			// for more info on what was changed.
-			task.executeOnExecutor(AsyncTaskCompat.DUAL_THREAD_EXECUTOR, key, obj);
+			if (obj instanceof String) {
+				// downloads wait on the network, the task is decoded once its file is cached
+				final String url = (String) obj;
+				final String cacheKey = key;
+				task.executeOnExecutor(new Executor() {
+					@Override
+					public void execute(@NonNull Runnable decode) {
+						AsyncTaskCompat.IO_EXECUTOR.execute(new DownloadStage(cacheKey, url, task, decode));
+					}
+				}, key, obj);
+			} else {
+				// resources and byte arrays are only decoded
+				task.executeAs(AsyncTaskCompat.TaskKind.CPU, key, obj);
+			}
 		}
 	}
 
@@ -251,6 +285,17 @@ public class ImageWorker {
 		mFadeInBitmap = fadeIn;
 	}
 
+	/**
+	 * Sets how long a load may take, counted from {@link #loadImage}, before
+	 * it is cancelled and its download aborted. Slow loads then stop holding
+	 * the worker threads.
+	 *
+	 * @param millis the timeout in milliseconds, 0 for none.
+	 */
+	public void setLoadTimeout(long millis) {
+		mLoadTimeout = Math.max(0, millis);
+	}
+
 	public void setExitTasksEarly(boolean exitTasksEarly) {
 		mExitTasksEarly = exitTasksEarly;
 		setPauseWork(false);
@@ -269,10 +314,20 @@ public class ImageWorker {
 	 * background thread will never finish.
 	 */
 	public void setPauseWork(boolean pauseWork) {
+		List<DownloadStage> resumed = null;
 		synchronized (mPauseWorkLock) {
 			mPauseWork = pauseWork;
 			if (!mPauseWork) {
 				mPauseWorkLock.notifyAll();
+				if (!mPausedStages.isEmpty()) {
+					resumed = new ArrayList<DownloadStage>(mPausedStages);
+					mPausedStages.clear();
+				}
+			}
+		}
+		if (resumed != null) {
+			for (DownloadStage stage : resumed) {
+				AsyncTaskCompat.IO_EXECUTOR.execute(stage);
 			}
 		}
 	}
@@ -281,9 +336,10 @@ public class ImageWorker {
 	 * The main processing method. This happens in a background task.
 	 *
 	 * @param object to identify which image to process.
+	 * @param task the task processing the image.
 	 * @return the processed bitmap.
 	 */
-	private Bitmap processBitmap(Object object) {
+	private Bitmap processBitmap(Object object, AsyncTaskCompat<?, ?, ?> task) {
 		if (object == null) {
 			return null;
 		}
@@ -295,7 +351,7 @@ public class ImageWorker {
 		if (object instanceof Integer) {
 			bitmap = processBitmap((Integer) object);
 		} else if (object instanceof String) {
-			bitmap = processBitmap((String) object);
+			bitmap = processBitmap((String) object, task);
 		} else if (object instanceof byte[]) {
 			bitmap = processBitmap((byte[]) object);
 		}
@@ -313,7 +369,9 @@ public class ImageWorker {
 		Bitmap bitmap = null;
 
 		try {
+			final long start = System.nanoTime();
 			bitmap = decodeSampledBitmapFromResource(mResources, object, mImageWidth, mImageHeight, getImageCache());
+			mDecodeLatency.recordSince(start);
 		} catch (Exception e) {
 			LogHelper.e(TAG, "processBitmap - cannot process bitmap");
 		}
@@ -322,12 +380,80 @@ public class ImageWorker {
 	}
 
 	/**
-	 * The main processing method. This happens in a background task.
+	 * Downloads an URL to the disk cache unless it is already there. This happens on
+	 * {@link AsyncTaskCompat#IO_EXECUTOR}, before the task is decoded. The cache lock is only
+	 * held to look up the entry, not during the transfer, so that the time the pool measures
+	 * as blocked is spent on the network and not queued on the lock.
 	 *
 	 * @param object the String URL.
+	 * @param task the task processing the image, its deadline bounds the download.
+	 */
+	private void downloadBitmap(String object, AsyncTaskCompat<?, ?, ?> task) {
+		final String key = DiskLruCache.hashKeyForDisk(object);
+		DiskLruCache.Editor editor;
+		try {
+			synchronized (mDiskCacheLock) {
+				// Wait for disk cache to initialize
+				while (mDiskCacheStarting) {
+					try {
+						mDiskCacheLock.wait();
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+
+				if (mDiskCache == null || mDiskCache.contains(key)) {
+					return;
+				}
+				editor = mDiskCache.edit(key);
+			}
+		} catch (IOException e) {
+			LogHelper.e(TAG, "downloadBitmap - " + e);
+			return;
+		} catch (IllegalStateException e) {
+			LogHelper.e(TAG, "downloadBitmap - " + e);
+			return;
+		}
+
+		if (editor == null) {
+			return;
+		}
+
+		LogHelper.d(TAG, "downloadBitmap - not found in cache, downloading...");
+
+		boolean committed = false;
+		try {
+			final long start = System.nanoTime();
+			if (NetworkUtils.downloadUrlToStream(object, editor.newOutputStream(cacheIndex), task)) {
+				mDownloadLatency.recordSince(start);
+				editor.commit();
+				committed = true;
+			}
+		} catch (IOException e) {
+			LogHelper.e(TAG, "downloadBitmap - " + e);
+		} catch (IllegalStateException e) {
+			// the cache was closed or cleared during the download
+			LogHelper.e(TAG, "downloadBitmap - " + e);
+		} finally {
+			if (!committed) {
+				try {
+					editor.abort();
+				} catch (Exception e) {
+					// Ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * The main processing method. This happens in a background task, once
+	 * {@link #downloadBitmap(String, AsyncTaskCompat)} has cached the file.
+	 *
+	 * @param object the String URL.
+	 * @param task the task processing the image.
 	 * @return the processed bitmap.
 	 */
-	private Bitmap processBitmap(String object) {
+	private Bitmap processBitmap(String object, AsyncTaskCompat<?, ?, ?> task) {
 		Bitmap bitmap = null;
 
 		try {
@@ -348,19 +474,6 @@ public class ImageWorker {
 				if (mDiskCache != null) {
 					try {
 						snapshot = mDiskCache.get(key);
-						if (snapshot == null) {
-							LogHelper.d(TAG, "processBitmap - not found in cache, downloading...");
-
-							DiskLruCache.Editor editor = mDiskCache.edit(key);
-							if (editor != null) {
-								if (NetworkUtils.downloadUrlToStream(object, editor.newOutputStream(cacheIndex))) {
-									editor.commit();
-								} else {
-									editor.abort();
-								}
-							}
-							snapshot = mDiskCache.get(key);
-						}
 						if (snapshot != null) {
 							fileInputStream = (FileInputStream) snapshot.getInputStream(cacheIndex);
 							fileDescriptor = fileInputStream.getFD();
@@ -385,8 +498,10 @@ public class ImageWorker {
 				}
 			}
 
-			if (fileDescriptor != null) {
+			if (fileDescriptor != null && !task.isCancelled()) {
+				final long start = System.nanoTime();
 				bitmap = decodeSampledBitmapFromDescriptor(fileDescriptor, mImageWidth, mImageHeight, getImageCache());
+				mDecodeLatency.recordSince(start);
 			}
 			if (fileInputStream != null) {
 				try {
@@ -473,7 +588,9 @@ public class ImageWorker {
 			}
 
 			if (fileDescriptor != null) {
+				final long start = System.nanoTime();
 				bitmap = decodeSampledBitmapFromDescriptor(fileDescriptor, mImageWidth, mImageHeight, getImageCache());
+				mDecodeLatency.recordSince(start);
 			}
 			if (fileInputStream != null) {
 				try {
@@ -559,6 +676,44 @@ public class ImageWorker {
 	public void closeCache() {
 		new CacheAsyncTask().execute(MESSAGE_CLOSE);
 	}
+
+	/**
+	 * @return the histogram of successful download durations.
+	 */
+	public LatencyHistogram getDownloadLatency() {
+		return mDownloadLatency;
+	}
+
+	/**
+	 * @return the histogram of bitmap decode durations.
+	 */
+	public LatencyHistogram getDecodeLatency() {
+		return mDecodeLatency;
+	}
+
+	/**
+	 * @return the statistics of the download disk cache, or null if it is not open.
+	 */
+	public CacheStats getDiskCacheStats() {
+		synchronized (mDiskCacheLock) {
+			return mDiskCache != null ? mDiskCache.getStats() : null;
+		}
+	}
+
+	/**
+	 * Writes the statistics of the worker stages and of its caches to the log.
+	 */
+	public void dumpStats() {
+		LogHelper.d(TAG, "download " + mDownloadLatency.snapshot());
+		LogHelper.d(TAG, "decode " + mDecodeLatency.snapshot());
+		CacheStats diskStats = getDiskCacheStats();
+		if (diskStats != null) {
+			diskStats.dump(TAG, "Download cache");
+		}
+		if (mImageCache != null) {
+			mImageCache.dumpStats();
+		}
+	}
 	
 	/**
 	 * Decode and sample down a bitmap from resources to the requested width and height.
@@ -670,6 +825,73 @@ public class ImageWorker {
 		}
 	}
 
+	/**
+	 * Downloads the URL of a load on {@link AsyncTaskCompat#IO_EXECUTOR}, then hands the
+	 * decode over to {@link AsyncTaskCompat#CPU_EXECUTOR}. As before the task body, nothing
+	 * is downloaded while work is paused or when the processed bitmap is already in the
+	 * {@link ImageCache}. Paused loads, and loads of an URL that is already being
+	 * downloaded, wait without holding a thread and run again later.
+	 */
+	private class DownloadStage implements Runnable, ExecutorMonitor.Tagged {
+		private final String mKey;
+		private final String mUrl;
+		private final CacheBitmapWorkerTask mTask;
+		private final Runnable mDecode;
+
+		DownloadStage(String key, String url, CacheBitmapWorkerTask task, Runnable decode) {
+			mKey = key;
+			mUrl = url;
+			mTask = task;
+			mDecode = decode;
+		}
+
+		@Override
+		public Class<?> getTaskClass() {
+			return mTask.getClass();
+		}
+
+		@Override
+		public void run() {
+			synchronized (mPauseWorkLock) {
+				if (mPauseWork && !mTask.isCancelled()) {
+					// run again by setPauseWork(false)
+					mPausedStages.add(this);
+					return;
+				}
+			}
+
+			if (mTask.isCancelled() || mTask.getAttachedImageView() == null || mExitTasksEarly
+					|| (mImageCache != null && mImageCache.isInDiskCache(mKey))) {
+				// nothing to download, the task body reads the processed bitmap or gives up
+				AsyncTaskCompat.CPU_EXECUTOR.execute(mDecode);
+				return;
+			}
+
+			synchronized (mDownloads) {
+				List<Runnable> waiting = mDownloads.get(mUrl);
+				if (waiting != null) {
+					waiting.add(this);
+					return;
+				}
+				mDownloads.put(mUrl, new ArrayList<Runnable>());
+			}
+
+			List<Runnable> waiting;
+			try {
+				downloadBitmap(mUrl, mTask);
+			} finally {
+				synchronized (mDownloads) {
+					waiting = mDownloads.remove(mUrl);
+				}
+				// the decode of a cancelled task returns at once
+				AsyncTaskCompat.CPU_EXECUTOR.execute(mDecode);
+			}
+			for (Runnable stage : waiting) {
+				AsyncTaskCompat.IO_EXECUTOR.execute(stage);
+			}
+		}
+	}
+
 	/**
 	 * The actual AsyncTask that will asynchronously process the image.
 	 */
@@ -721,7 +943,7 @@ public class ImageWorker {
 			// bound back to this task and our "exit early" flag is not set, then call the main
 			// process method (as implemented by a subclass)
 			if (bitmap == null && !isCancelled() && getAttachedImageView() != null && !mExitTasksEarly) {
-				bitmap = processBitmap(params[1]);
+				bitmap = processBitmap(params[1], this);
 			}
 
 			// If the bitmap was processed and the image cache is available, then add the processed
@@ -768,6 +990,12 @@ public class ImageWorker {
 			super.onCancelled(value);
 			synchronized (mPauseWorkLock) {
 				mPauseWorkLock.notifyAll();
+				// a parked download stage would otherwise keep the task until work resumes
+				for (Iterator<DownloadStage> it = mPausedStages.iterator(); it.hasNext();) {
+					if (it.next().mTask == this) {
+						it.remove();
+					}
+				}
 			}
 		}
 	}
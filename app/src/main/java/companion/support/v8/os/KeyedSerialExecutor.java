@@ -0,0 +1,160 @@
+package companion.support.v8.os;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks one at a time per key, in submission order, on a shared
+ * executor. Tasks with the same key (a database name, a cache directory...)
+ * never overlap, while tasks with different keys run in parallel, so unrelated
+ * work does not queue behind a process-wide serial executor.
+ *
+ * <p>Submitting a task does not take any lock: each key has a lock-free queue
+ * and a counter of pending tasks, and a key is only scheduled on the shared
+ * executor when its counter goes from zero to one. Queues of idle keys are
+ * discarded.</p>
+ *
+ * <p>The shared executor must not discard tasks, otherwise the tasks of a key
+ * would stop running.</p>
+ *
+ * @author Vitor Ribeiro
+ *
+ */
+public class KeyedSerialExecutor {
+
+	/** Pending count of a queue that was discarded and must not accept tasks. */
+	private static final int DEAD = -1;
+
+	/** Name reported to the {@link ExecutorMonitor}. */
+	private static final String NAME = KeyedSerialExecutor.class.getSimpleName();
+
+	private final Executor mExecutor;
+	private final ConcurrentHashMap<Object, SerialQueue> mQueues = new ConcurrentHashMap<Object, SerialQueue>();
+
+	/**
+	 * @param executor the shared executor that runs the tasks.
+	 */
+	public KeyedSerialExecutor(Executor executor) {
+		mExecutor = executor;
+	}
+
+	/**
+	 * Queues a task after the previous tasks of the same key.
+	 *
+	 * @param key identifies the resource the task works on.
+	 * @param command the task.
+	 */
+	public void execute(Object key, Runnable command) {
+		if (key == null || command == null) {
+			throw new NullPointerException();
+		}
+		command = ExecutorMonitor.wrap(NAME, command);
+
+		while (true) {
+			SerialQueue queue = mQueues.get(key);
+			if (queue == null) {
+				SerialQueue created = new SerialQueue(key);
+				queue = mQueues.putIfAbsent(key, created);
+				if (queue == null) {
+					queue = created;
+				}
+			}
+			if (queue.offer(command)) {
+				return;
+			}
+			// the queue was discarded after going idle, replace it
+			mQueues.remove(key, queue);
+		}
+	}
+
+	/**
+	 * Returns an {@link Executor} view that queues every task under the given
+	 * key, for instance to use with {@link AsyncTaskCompat#executeOnExecutor}.
+	 *
+	 * @param key identifies the resource the tasks work on.
+	 * @return the executor.
+	 */
+	public Executor forKey(final Object key) {
+		return new Executor() {
+			@Override
+			public void execute(@NonNull Runnable command) {
+				KeyedSerialExecutor.this.execute(key, command);
+			}
+		};
+	}
+
+	/**
+	 * @return the number of keys with pending tasks.
+	 */
+	public int getActiveKeyCount() {
+		return mQueues.size();
+	}
+
+	private final class SerialQueue implements Runnable, ExecutorMonitor.Tagged {
+		private final Object mKey;
+		private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+
+		/** Number of queued and running tasks, or {@link #DEAD}. */
+		private final AtomicInteger mPending = new AtomicInteger();
+
+		private SerialQueue(Object key) {
+			mKey = key;
+		}
+
+		/**
+		 * @return false if this queue was discarded and the task was not accepted.
+		 */
+		private boolean offer(Runnable command) {
+			// publish the task before counting it, so that a counted task can always be polled
+			mTasks.offer(command);
+			while (true) {
+				int pending = mPending.get();
+				if (pending == DEAD) {
+					// nobody drains a dead queue, so taking the task back is safe
+					mTasks.remove(command);
+					return false;
+				}
+				if (mPending.compareAndSet(pending, pending + 1)) {
+					if (pending == 0) {
+						mExecutor.execute(this);
+					}
+					return true;
+				}
+			}
+		}
+
+		@Override
+		public Class<?> getTaskClass() {
+			Runnable next = mTasks.peek();
+			return next instanceof ExecutorMonitor.Tagged ? ((ExecutorMonitor.Tagged) next).getTaskClass()
+					: next != null ? next.getClass() : getClass();
+		}
+
+		@Override
+		public void run() {
+			// the queue is drained here rather than handed back to the shared executor after
+			// each task: a saturated WorkStealingExecutor runs a worker's submission inline,
+			// so a long queue would recurse once per task
+			boolean drained = false;
+			try {
+				do {
+					mTasks.poll().run();
+				} while (mPending.decrementAndGet() > 0);
+				drained = true;
+			} finally {
+				if (drained || mPending.decrementAndGet() == 0) {
+					if (mPending.compareAndSet(0, DEAD)) {
+						mQueues.remove(mKey, this);
+					}
+				} else {
+					// a task threw, the rest of the queue runs in a new pass
+					mExecutor.execute(this);
+				}
+			}
+		}
+	}
+}
@@ -24,6 +24,10 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 
+import javax.crypto.SecretKey;
+
+import companion.support.v8.security.EncryptedFile;
+
 /**
  * Utility class for storage methods.
  * 
@@ -546,6 +550,108 @@ public class Storage {
 		return flag;
 	}
 
+	/**
+	 * Copies a file to new location, encrypting it as an {@link EncryptedFile}
+	 * that can later be read at any position. Existing files are overwritten.
+	 * 
+	 * @param sourcePath path of source file
+	 * @param destPath path of destination file
+	 * @param key AES key
+	 * @return true if operation is successful, false otherwise.
+	 */
+	public static boolean copyFileEncrypted(String sourcePath, String destPath, SecretKey key) {
+		boolean flag = true;
+
+		InputStream input = null;
+		OutputStream file = null;
+		OutputStream output = null;
+		try {
+			input = new FileInputStream(sourcePath);
+			file = new FileOutputStream(destPath);
+			output = EncryptedFile.newOutputStream(file, key);
+			byte[] buffer = new byte[EncryptedFile.DEFAULT_SEGMENT_SIZE];
+			int length;
+			while ((length = input.read(buffer)) != -1) {
+				output.write(buffer, 0, length);
+			}
+			// the last segment is written on close, which also closes the file
+			OutputStream closing = output;
+			output = null;
+			file = null;
+			closing.close();
+		} catch (Exception e) {
+			flag = false;
+		} finally {
+			try {
+				if (input != null) {
+					input.close();
+				}
+			} catch (Exception e) {
+				// Ignore
+			}
+			try {
+				if (file != null) {
+					file.close();
+				}
+			} catch (Exception e) {
+				// Ignore
+			}
+		}
+		if (!flag) {
+			deleteFile(destPath);
+		}
+		return flag;
+	}
+
+	/**
+	 * Copies an {@link EncryptedFile} to new location, decrypting it. Every
+	 * segment is verified, if any fails the destination file is deleted.
+	 * Existing files are overwritten.
+	 * 
+	 * @param sourcePath path of encrypted source file
+	 * @param destPath path of destination file
+	 * @param key AES key used to encrypt the source file
+	 * @return true if operation is successful, false otherwise.
+	 */
+	public static boolean copyFileDecrypted(String sourcePath, String destPath, SecretKey key) {
+		boolean flag = true;
+
+		EncryptedFile source = null;
+		OutputStream output = null;
+		try {
+			source = EncryptedFile.open(sourcePath, key);
+			output = new FileOutputStream(destPath);
+			byte[] buffer = new byte[EncryptedFile.DEFAULT_SEGMENT_SIZE];
+			long position = 0;
+			int length;
+			while ((length = source.read(position, buffer, 0, buffer.length)) != -1) {
+				output.write(buffer, 0, length);
+				position += length;
+			}
+		} catch (Exception e) {
+			flag = false;
+		} finally {
+			try {
+				if (source != null) {
+					source.close();
+				}
+			} catch (Exception e) {
+				// Ignore
+			}
+			try {
+				if (output != null) {
+					output.close();
+				}
+			} catch (Exception e) {
+				flag = false;
+			}
+		}
+		if (!flag) {
+			deleteFile(destPath);
+		}
+		return flag;
+	}
+
 	/**
 	 * Moves a file to new location, overwriting existing files.
 	 * 
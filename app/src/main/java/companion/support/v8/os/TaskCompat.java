@@ -0,0 +1,451 @@
+package companion.support.v8.os;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stage of a background pipeline, built on the {@link AsyncTaskCompat}
+ * executors and UI thread handler. Stages are chained with {@link #then},
+ * which keeps running on the worker thread that completed the previous
+ * stage, and {@link #thenOnMain}, which hops to the UI thread only where a
+ * consumer needs it. This avoids nesting tasks inside
+ * {@link AsyncTaskCompat#onPostExecute} and bouncing through the UI thread
+ * between every stage:
+ *
+ * <pre class="prettyprint">
+ * TaskCompat.call(download)
+ *     .then(decode)
+ *     .then(transform)
+ *     .then(cache)
+ *     .thenOnMain(display);
+ * </pre>
+ *
+ * <p>Failures and cancellation propagate downstream: the continuations of a
+ * stage that failed or was cancelled are not run, and their stages complete
+ * the same way. Use {@link #continueWith} to observe every outcome.
+ * Cancelling a stage also cancels the stages it depends on, once all the
+ * stages chained after them were cancelled.</p>
+ *
+ * <p>A stage only completes if its body runs, so stages should not be run on
+ * executors that discard tasks, like {@link AsyncTaskCompat#THREAD_POOL_EXECUTOR}.
+ * A body rejected by its executor fails the stage.</p>
+ *
+ * @author Vitor Ribeiro
+ *
+ * @param <TResult> the type of the result of the stage.
+ */
+public class TaskCompat<TResult> {
+
+	/**
+	 * A stage body that transforms a value.
+	 *
+	 * @param <T> the type of the input value.
+	 * @param <R> the type of the result.
+	 */
+	public interface Continuation<T, R> {
+
+		/**
+		 * @param value the input value.
+		 * @return the result of the stage.
+		 * @throws Exception to fail the stage.
+		 */
+		R then(T value) throws Exception;
+	}
+
+	private static final int PENDING = 0;
+	private static final int SUCCEEDED = 1;
+	private static final int FAILED = 2;
+	private static final int CANCELLED = 3;
+
+	/** Runs continuations on the UI thread. */
+	private static final Executor MAIN_EXECUTOR = new Executor() {
+		@Override
+		public void execute(@NonNull Runnable command) {
+			AsyncTaskCompat.runOnMain(command);
+		}
+	};
+
+	private final Object mLock = new Object();
+	private final TaskCompat<?>[] mUpstream;
+	private ArrayList<Runnable> mContinuations = new ArrayList<Runnable>();
+	private int mState = PENDING;
+	private TResult mResult;
+	private Exception mError;
+	private volatile FutureTask<Void> mFuture;
+	private int mDependents;
+	private int mCancelledDependents;
+
+	private TaskCompat(TaskCompat<?>... upstream) {
+		mUpstream = upstream;
+		for (TaskCompat<?> task : upstream) {
+			synchronized (task.mLock) {
+				task.mDependents++;
+			}
+		}
+	}
+
+	/**
+	 * Runs a callable on {@link AsyncTaskCompat#WORK_STEALING_EXECUTOR}.
+	 *
+	 * @param callable the body of the stage.
+	 * @return the stage.
+	 */
+	public static <T> TaskCompat<T> call(Callable<T> callable) {
+		return call(callable, AsyncTaskCompat.WORK_STEALING_EXECUTOR);
+	}
+
+	/**
+	 * Runs a callable on the given executor.
+	 *
+	 * @param callable the body of the stage.
+	 * @param executor the executor to run it on.
+	 * @return the stage.
+	 */
+	public static <T> TaskCompat<T> call(final Callable<T> callable, Executor executor) {
+		final TaskCompat<T> task = new TaskCompat<T>();
+		task.mFuture = new FutureTask<Void>(new Runnable() {
+			@Override
+			public void run() {
+				if (task.isCancelled()) {
+					return;
+				}
+				try {
+					task.trySetResult(callable.call());
+				} catch (Throwable t) {
+					task.trySetError(t);
+				}
+			}
+		}, null);
+		task.execute(executor, task.mFuture);
+		return task;
+	}
+
+	/**
+	 * @param value the result.
+	 * @return a stage that already completed with the given result.
+	 */
+	public static <T> TaskCompat<T> forResult(T value) {
+		TaskCompat<T> task = new TaskCompat<T>();
+		task.trySetResult(value);
+		return task;
+	}
+
+	/**
+	 * Returns a stage that completes when all the given stages succeed, with
+	 * their results in the same order. It fails or is cancelled as soon as
+	 * one of the stages fails or is cancelled.
+	 *
+	 * @param tasks the stages to wait for.
+	 * @return the stage.
+	 */
+	public static TaskCompat<List<Object>> whenAll(final TaskCompat<?>... tasks) {
+		final TaskCompat<List<Object>> all = new TaskCompat<List<Object>>(tasks);
+		if (tasks.length == 0) {
+			all.trySetResult(Collections.<Object>emptyList());
+			return all;
+		}
+
+		final AtomicInteger remaining = new AtomicInteger(tasks.length);
+		for (final TaskCompat<?> task : tasks) {
+			task.addContinuation(new Runnable() {
+				@Override
+				public void run() {
+					if (task.propagateFailure(all) && remaining.decrementAndGet() == 0) {
+						Object[] results = new Object[tasks.length];
+						for (int i = 0; i < tasks.length; i++) {
+							results[i] = tasks[i].getResult();
+						}
+						all.trySetResult(Arrays.asList(results));
+					}
+				}
+			});
+		}
+		return all;
+	}
+
+	/**
+	 * Chains a stage that runs after this one succeeds. It runs on the worker
+	 * thread that completed this stage, or on
+	 * {@link AsyncTaskCompat#WORK_STEALING_EXECUTOR} if this stage completed on
+	 * the UI thread.
+	 *
+	 * @param continuation the body of the stage.
+	 * @return the new stage.
+	 */
+	public <R> TaskCompat<R> then(Continuation<? super TResult, R> continuation) {
+		return then(continuation, null);
+	}
+
+	/**
+	 * Chains a stage that runs on the given executor after this one succeeds.
+	 *
+	 * @param continuation the body of the stage.
+	 * @param executor the executor to run it on, or null to stay on the completing worker thread.
+	 * @return the new stage.
+	 */
+	public <R> TaskCompat<R> then(final Continuation<? super TResult, R> continuation, final Executor executor) {
+		final TaskCompat<R> next = new TaskCompat<R>(this);
+		addContinuation(new Runnable() {
+			@Override
+			public void run() {
+				if (propagateFailure(next)) {
+					next.run(continuation, getResult(), executor);
+				}
+			}
+		});
+		return next;
+	}
+
+	/**
+	 * Chains a stage that runs on the UI thread after this one succeeds.
+	 *
+	 * @param continuation the body of the stage.
+	 * @return the new stage.
+	 */
+	public <R> TaskCompat<R> thenOnMain(Continuation<? super TResult, R> continuation) {
+		return then(continuation, MAIN_EXECUTOR);
+	}
+
+	/**
+	 * Chains a stage that runs after this one completes, whatever the outcome.
+	 * The continuation receives this stage, to inspect its result or error.
+	 *
+	 * @param continuation the body of the stage.
+	 * @param executor the executor to run it on, or null to stay on the completing worker thread.
+	 * @return the new stage.
+	 */
+	public <R> TaskCompat<R> continueWith(final Continuation<? super TaskCompat<TResult>, R> continuation, final Executor executor) {
+		final TaskCompat<R> next = new TaskCompat<R>(this);
+		addContinuation(new Runnable() {
+			@Override
+			public void run() {
+				next.run(continuation, TaskCompat.this, executor);
+			}
+		});
+		return next;
+	}
+
+	/**
+	 * Chains a stage that runs on the UI thread after this one completes,
+	 * whatever the outcome.
+	 *
+	 * @param continuation the body of the stage.
+	 * @return the new stage.
+	 */
+	public <R> TaskCompat<R> continueWithOnMain(Continuation<? super TaskCompat<TResult>, R> continuation) {
+		return continueWith(continuation, MAIN_EXECUTOR);
+	}
+
+	/**
+	 * Cancels this stage. Stages chained after it are cancelled as well. The
+	 * stages it depends on are cancelled once no other stage chained after
+	 * them is still waiting for them. A running callable is interrupted.
+	 *
+	 * @return false if this stage had already completed.
+	 */
+	public boolean cancel() {
+		if (!complete(CANCELLED, null, null)) {
+			return false;
+		}
+		FutureTask<Void> future = mFuture;
+		if (future != null) {
+			future.cancel(true);
+		}
+		for (TaskCompat<?> upstream : mUpstream) {
+			upstream.onDependentCancelled();
+		}
+		return true;
+	}
+
+	/**
+	 * Cancels this stage when every stage chained after it was cancelled.
+	 */
+	private void onDependentCancelled() {
+		synchronized (mLock) {
+			if (++mCancelledDependents < mDependents) {
+				return;
+			}
+		}
+		cancel();
+	}
+
+	/**
+	 * @return true if the stage completed, whatever the outcome.
+	 */
+	public boolean isDone() {
+		synchronized (mLock) {
+			return mState != PENDING;
+		}
+	}
+
+	/**
+	 * @return true if the stage was cancelled.
+	 */
+	public boolean isCancelled() {
+		synchronized (mLock) {
+			return mState == CANCELLED;
+		}
+	}
+
+	/**
+	 * @return true if the stage failed.
+	 */
+	public boolean isFaulted() {
+		synchronized (mLock) {
+			return mState == FAILED;
+		}
+	}
+
+	/**
+	 * @return the result of the stage, or null if it did not succeed.
+	 */
+	public TResult getResult() {
+		synchronized (mLock) {
+			return mResult;
+		}
+	}
+
+	/**
+	 * @return the error that failed the stage, or null.
+	 */
+	public Exception getError() {
+		synchronized (mLock) {
+			return mError;
+		}
+	}
+
+	/**
+	 * Waits for the stage to complete. Must not be called on the UI thread.
+	 *
+	 * @return the result of the stage.
+	 * @throws CancellationException if the stage was cancelled.
+	 * @throws ExecutionException if the stage failed.
+	 * @throws InterruptedException if the current thread was interrupted while waiting.
+	 */
+	public TResult get() throws InterruptedException, ExecutionException {
+		synchronized (mLock) {
+			while (mState == PENDING) {
+				mLock.wait();
+			}
+			switch (mState) {
+			case CANCELLED:
+				throw new CancellationException();
+			case FAILED:
+				throw new ExecutionException(mError);
+			default:
+				return mResult;
+			}
+		}
+	}
+
+	/**
+	 * Runs a continuation that produces the result of this stage.
+	 */
+	private <T> void run(final Continuation<? super T, TResult> continuation, final T value, Executor executor) {
+		Runnable body = new Runnable() {
+			@Override
+			public void run() {
+				if (isCancelled()) {
+					return;
+				}
+				try {
+					trySetResult(continuation.then(value));
+				} catch (Throwable t) {
+					trySetError(t);
+				}
+			}
+		};
+
+		if (executor != null) {
+			execute(executor, body);
+		} else if (AsyncTaskCompat.isMainThread()) {
+			// never run background stages on the UI thread
+			execute(AsyncTaskCompat.WORK_STEALING_EXECUTOR, body);
+		} else {
+			body.run();
+		}
+	}
+
+	/**
+	 * Hands the body of this stage to an executor, failing the stage if it is rejected.
+	 */
+	private void execute(Executor executor, Runnable body) {
+		try {
+			executor.execute(body);
+		} catch (RejectedExecutionException e) {
+			trySetError(e);
+		}
+	}
+
+	/**
+	 * Completes the given stage like this one if this one did not succeed.
+	 *
+	 * @return true if this stage succeeded.
+	 */
+	private boolean propagateFailure(TaskCompat<?> next) {
+		int state;
+		Exception error;
+		synchronized (mLock) {
+			state = mState;
+			error = mError;
+		}
+		if (state == FAILED) {
+			next.trySetError(error);
+			return false;
+		}
+		if (state == CANCELLED) {
+			next.complete(CANCELLED, null, null);
+			return false;
+		}
+		return true;
+	}
+
+	private void trySetResult(TResult result) {
+		complete(SUCCEEDED, result, null);
+	}
+
+	private void trySetError(Throwable error) {
+		// errors are wrapped, so that a stage never stays pending because its body threw one
+		complete(FAILED, null, error instanceof Exception ? (Exception) error : new ExecutionException(error));
+	}
+
+	private boolean complete(int state, TResult result, Exception error) {
+		ArrayList<Runnable> continuations;
+		synchronized (mLock) {
+			if (mState != PENDING) {
+				return false;
+			}
+			mState = state;
+			mResult = result;
+			mError = error;
+			continuations = mContinuations;
+			mContinuations = null;
+			mLock.notifyAll();
+		}
+		for (Runnable continuation : continuations) {
+			continuation.run();
+		}
+		return true;
+	}
+
+	private void addContinuation(Runnable continuation) {
+		synchronized (mLock) {
+			if (mState == PENDING) {
+				mContinuations.add(continuation);
+				return;
+			}
+		}
+		continuation.run();
+	}
+}
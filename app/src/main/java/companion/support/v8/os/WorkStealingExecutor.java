@@ -0,0 +1,238 @@
+package companion.support.v8.os;
+
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import companion.support.v8.util.LogHelper;
+
+/**
+ * An {@link Executor} with a fixed number of workers, each owning a deque of
+ * tasks. Tasks submitted from a worker are pushed on the front of its own
+ * deque and run last in first out, which keeps fan-out work local and cache
+ * friendly. Tasks submitted from other threads are spread over the workers.
+ * Idle workers steal the oldest tasks from the back of the other deques.
+ *
+ * <p>The number of queued tasks is bounded. Instead of silently discarding
+ * work when the bound is reached, the executor applies back-pressure: a
+ * worker submitting more work runs it inline, and any other thread blocks
+ * until there is room. The main thread is never blocked, its submissions are
+ * accepted over the bound.</p>
+ *
+ * <p>This is a lightweight equivalent of {@code java.util.concurrent.ForkJoinPool},
+ * which is not available before API 21.</p>
+ *
+ * @author Vitor Ribeiro
+ *
+ */
+public class WorkStealingExecutor implements Executor {
+
+	/** Log tag. */
+	private static final String TAG = WorkStealingExecutor.class.getSimpleName();
+
+	/** How long an idle worker waits before scanning the deques again. */
+	private static final long IDLE_WAIT_MILLIS = 1000;
+
+	private final String mName;
+	private final int mCapacity;
+	private final Worker[] mWorkers;
+
+	private final AtomicInteger mQueued = new AtomicInteger();
+	private final AtomicInteger mIdle = new AtomicInteger();
+	private final AtomicInteger mActive = new AtomicInteger();
+	private final AtomicInteger mNextWorker = new AtomicInteger();
+	private final AtomicInteger mSpaceWaiters = new AtomicInteger();
+	private final Object mIdleLock = new Object();
+	private final Object mSpaceLock = new Object();
+	private volatile boolean mStarted;
+
+	/**
+	 * Creates an executor.
+	 *
+	 * @param name name reported to the {@link ExecutorMonitor}, also the prefix of the worker thread names.
+	 * @param parallelism number of worker threads, must be positive.
+	 * @param capacity maximum number of queued tasks before back-pressure is applied, must be positive.
+	 */
+	public WorkStealingExecutor(String name, int parallelism, int capacity) {
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("parallelism <= 0");
+		}
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity <= 0");
+		}
+		mName = name;
+		mCapacity = capacity;
+		mWorkers = new Worker[parallelism];
+		for (int i = 0; i < parallelism; i++) {
+			mWorkers[i] = new Worker(i);
+		}
+	}
+
+	@Override
+	public void execute(@NonNull Runnable command) {
+		if (command == null) {
+			throw new NullPointerException();
+		}
+		command = ExecutorMonitor.wrap(mName, command);
+		startWorkers();
+
+		final Thread thread = Thread.currentThread();
+		final Worker self = thread instanceof Worker && ((Worker) thread).owner() == this ? (Worker) thread : null;
+
+		if (mQueued.get() >= mCapacity) {
+			if (self != null) {
+				// a saturated pool absorbs the fan-out of its own workers by running it inline
+				command.run();
+				return;
+			}
+			if (Looper.myLooper() != Looper.getMainLooper()) {
+				awaitSpace();
+			}
+		}
+
+		if (self != null) {
+			self.mDeque.addFirst(command);
+		} else {
+			int index = (mNextWorker.getAndIncrement() & Integer.MAX_VALUE) % mWorkers.length;
+			mWorkers[index].mDeque.addLast(command);
+		}
+		mQueued.incrementAndGet();
+
+		if (mIdle.get() > 0) {
+			synchronized (mIdleLock) {
+				mIdleLock.notify();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of worker threads.
+	 */
+	public int getParallelism() {
+		return mWorkers.length;
+	}
+
+	/**
+	 * @return the maximum number of queued tasks before back-pressure is applied.
+	 */
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * @return an estimate of the number of tasks waiting to run.
+	 */
+	public int getQueuedTaskCount() {
+		return Math.max(mQueued.get(), 0);
+	}
+
+	/**
+	 * @return an estimate of the number of workers running a task.
+	 */
+	public int getActiveCount() {
+		return mActive.get();
+	}
+
+	private void startWorkers() {
+		if (!mStarted) {
+			synchronized (this) {
+				if (!mStarted) {
+					for (Worker worker : mWorkers) {
+						worker.start();
+					}
+					mStarted = true;
+				}
+			}
+		}
+	}
+
+	private void awaitSpace() {
+		mSpaceWaiters.incrementAndGet();
+		try {
+			synchronized (mSpaceLock) {
+				while (mQueued.get() >= mCapacity) {
+					try {
+						mSpaceLock.wait(IDLE_WAIT_MILLIS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+			}
+		} finally {
+			mSpaceWaiters.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Takes a task from the front of the given worker deque, or steals one
+	 * from the back of another deque.
+	 */
+	private Runnable take(Worker worker) {
+		Runnable task = worker.mDeque.pollFirst();
+		for (int i = 1; task == null && i < mWorkers.length; i++) {
+			task = mWorkers[(worker.mIndex + i) % mWorkers.length].mDeque.pollLast();
+		}
+		if (task != null && mQueued.decrementAndGet() < mCapacity && mSpaceWaiters.get() > 0) {
+			synchronized (mSpaceLock) {
+				mSpaceLock.notifyAll();
+			}
+		}
+		return task;
+	}
+
+	private void awaitWork() {
+		synchronized (mIdleLock) {
+			mIdle.incrementAndGet();
+			try {
+				if (mQueued.get() <= 0) {
+					mIdleLock.wait(IDLE_WAIT_MILLIS);
+				}
+			} catch (InterruptedException e) {
+				// Ignore, the worker rescans the deques
+			} finally {
+				mIdle.decrementAndGet();
+			}
+		}
+	}
+
+	private final class Worker extends Thread {
+		private final int mIndex;
+		private final LinkedBlockingDeque<Runnable> mDeque = new LinkedBlockingDeque<Runnable>();
+
+		private Worker(int index) {
+			super(mName + " #" + (index + 1));
+			mIndex = index;
+		}
+
+		private WorkStealingExecutor owner() {
+			return WorkStealingExecutor.this;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Runnable task = take(this);
+				if (task == null) {
+					awaitWork();
+					continue;
+				}
+
+				mActive.incrementAndGet();
+				try {
+					task.run();
+				} catch (Throwable e) {
+					LogHelper.e(TAG, "Task failed on " + getName(), e);
+				} finally {
+					mActive.decrementAndGet();
+					// clear an interrupt meant for the task that just finished
+					Thread.interrupted();
+				}
+			}
+		}
+	}
+}
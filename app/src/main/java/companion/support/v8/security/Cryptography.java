@@ -1,13 +1,21 @@
 package companion.support.v8.security;
 
 import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.KeyFactory;
@@ -30,19 +38,26 @@ import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.RSAPrivateKeySpec;
 import java.security.spec.RSAPublicKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.DESedeKeySpec;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import android.annotation.SuppressLint;
 import companion.support.v8.lang.ParsingUtils;
+import companion.support.v8.os.AsyncTaskCompat;
 import companion.support.v8.util.LogHelper;
 
 /**
@@ -56,6 +71,60 @@ public class Cryptography {
 	/** Log tag. */
 	private static final String TAG = Cryptography.class.getSimpleName();
 
+	/** Default size of the chunks hashed in parallel by {@link #hashFileTree(String, String, int)}. */
+	public static final int DEFAULT_TREE_CHUNK_SIZE = 4 * 1024 * 1024;
+
+	/** Size of the buffer used to read files and streams. */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** AES in CBC mode. The streaming methods write its random IV before the encrypted data. */
+	public static final String AES_CBC = "AES/CBC/PKCS5Padding";
+
+	/** 3DES in CBC mode. The streaming methods write its random IV before the encrypted data. */
+	public static final String TRIPLE_DES_CBC = "DESede/CBC/PKCS5Padding";
+
+	/** Cipher, MAC and IV and tag lengths of the authenticated streams. */
+	private static final String AUTHENTICATED_CIPHER = "AES/CTR/NoPadding";
+	private static final String AUTHENTICATED_MAC = "HmacSHA256";
+	private static final int AUTHENTICATED_IV_LENGTH = 16;
+	private static final int AUTHENTICATED_TAG_LENGTH = 32;
+
+	/** Source of the IVs. */
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	/** Prefixes of the leaves and of the root of a tree hash. */
+	private static final byte TREE_LEAF = 0;
+	private static final byte TREE_ROOT = 1;
+
+	/** Message digests of each thread, by algorithm. */
+	private static final ThreadLocal<HashMap<String, MessageDigest>> DIGESTS =
+			new ThreadLocal<HashMap<String, MessageDigest>>() {
+		@Override
+		protected HashMap<String, MessageDigest> initialValue() {
+			return new HashMap<String, MessageDigest>();
+		}
+	};
+
+	/**
+	 * Ciphers of each thread that are not in use, by algorithm. A cipher is removed while
+	 * it is in use, so a nested call on the same thread gets a cipher of its own.
+	 */
+	private static final ThreadLocal<HashMap<String, Cipher>> CIPHERS =
+			new ThreadLocal<HashMap<String, Cipher>>() {
+		@Override
+		protected HashMap<String, Cipher> initialValue() {
+			return new HashMap<String, Cipher>();
+		}
+	};
+
+	/** Read buffer of each thread. It is backed by an array, which the digests consume without a copy. */
+	private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(BUFFER_SIZE);
+		}
+	};
+
 	/** This prevents the class from being instantiated. 
 	 */
 	private Cryptography() {
@@ -98,11 +167,8 @@ public class Cryptography {
 	 */
 	public static byte[] hash(byte[] data, String algorithm) {
 		byte[] checksum = null;
-		MessageDigest md = null;
 		try {
-			md = MessageDigest.getInstance(algorithm);
-			md.reset();
-			checksum = md.digest(data);
+			checksum = getDigest(algorithm).digest(data);
 		} catch (NoSuchAlgorithmException e) {
 			LogHelper.e(TAG, "Unidentified Error", e);
 			return null;
@@ -120,23 +186,106 @@ public class Cryptography {
 	 */
 	public static byte[] hashFile(String path, String algorithm) {
 		byte[] checksum = null;
-		MessageDigest md = null;
-		InputStream fis = null;
+		FileInputStream fis = null;
 		try {
-			md = MessageDigest.getInstance(algorithm);
-			md.reset();
-
+			MessageDigest md = getDigest(algorithm);
 			fis = new FileInputStream(path);
-			byte[] buffer = new byte[1024];
-			int numRead = 0;
-
-			do {
-				numRead = fis.read(buffer);
-				if (numRead > 0) {
-					md.update(buffer, 0, numRead);
+			update(md, fis.getChannel(), 0, Long.MAX_VALUE);
+			checksum = md.digest();
+		} catch (NoSuchAlgorithmException e) {
+			LogHelper.e(TAG, "Unidentified Error", e);
+			return null;
+		} catch (FileNotFoundException e) {
+			LogHelper.e(TAG, "Unidentified Error", e);
+			return null;
+		} catch (IOException e) {
+			LogHelper.e(TAG, "Unidentified Error", e);
+			return null;
+		} catch (Exception e) {
+			LogHelper.e(TAG, "Unidentified Error", e);
+			return null;
+		} finally {
+			try {
+				if (fis != null) {
+					fis.close();
 				}
-			} while (numRead != -1);
+			} catch (IOException ex) {
+				LogHelper.e(TAG, "Unidentified Error", ex);
+			}
+		}
+
+		return checksum;
+	}
+
+	/**
+	 * Generate Checksum of everything left in a stream, such as a download
+	 * being received, with a secure one-way hash function. The stream is not closed.
+	 * 
+	 * @param in stream to read until its end.
+	 * @param algorithm used (like MD or SHA).
+	 * @return checksum bytes.
+	 */
+	public static byte[] hashStream(InputStream in, String algorithm) {
+		byte[] checksum = null;
+		try {
+			MessageDigest md = getDigest(algorithm);
+			byte[] buffer = BUFFERS.get().array();
+			int numRead;
+			while ((numRead = in.read(buffer)) != -1) {
+				md.update(buffer, 0, numRead);
+			}
+			checksum = md.digest();
+		} catch (NoSuchAlgorithmException e) {
+			LogHelper.e(TAG, "Unidentified Error", e);
+			return null;
+		} catch (IOException e) {
+			LogHelper.e(TAG, "Unidentified Error", e);
+			return null;
+		}
+
+		return checksum;
+	}
+
+	/**
+	 * Generate a tree hash of a file, hashing its chunks in parallel on
+	 * {@link AsyncTaskCompat#CPU_EXECUTOR} and on the calling thread. Each chunk is
+	 * hashed with a 0 byte prefix, and the result is the hash of a 1 byte followed by
+	 * the hashes of all chunks in order. It differs from {@link #hashFile(String, String)},
+	 * and both sides of a verification must use the same chunk size.
+	 * 
+	 * @param path of the file to generate hash.
+	 * @param algorithm used (like MD or SHA).
+	 * @param chunkSize size of the chunks, like {@link #DEFAULT_TREE_CHUNK_SIZE}.
+	 * @return checksum bytes.
+	 */
+	public static byte[] hashFileTree(String path, String algorithm, int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("chunkSize <= 0");
+		}
 
+		byte[] checksum = null;
+		FileInputStream fis = null;
+		try {
+			// fail before starting any helper if the algorithm is not available
+			getDigest(algorithm);
+			fis = new FileInputStream(path);
+			FileChannel channel = fis.getChannel();
+			long size = channel.size();
+			int chunkCount = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+
+			TreeHash tree = new TreeHash(channel, algorithm, size, chunkSize, chunkCount);
+			int helpers = Math.min(chunkCount, Runtime.getRuntime().availableProcessors()) - 1;
+			for (int i = 0; i < helpers; i++) {
+				AsyncTaskCompat.CPU_EXECUTOR.execute(tree);
+			}
+			tree.run();
+			byte[][] leaves = tree.await();
+
+			MessageDigest md = getDigest(algorithm);
+			md.update(TREE_ROOT);
+			for (byte[] leaf : leaves) {
+				md.update(leaf);
+			}
 			checksum = md.digest();
 		} catch (NoSuchAlgorithmException e) {
 			LogHelper.e(TAG, "Unidentified Error", e);
@@ -147,7 +296,8 @@ public class Cryptography {
 		} catch (IOException e) {
 			LogHelper.e(TAG, "Unidentified Error", e);
 			return null;
-		} catch (Exception e) {
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 			LogHelper.e(TAG, "Unidentified Error", e);
 			return null;
 		} finally {
@@ -163,6 +313,102 @@ public class Cryptography {
 		return checksum;
 	}
 
+	/**
+	 * Returns the digest of the calling thread for the given algorithm, ready to be used.
+	 */
+	private static MessageDigest getDigest(String algorithm) throws NoSuchAlgorithmException {
+		HashMap<String, MessageDigest> digests = DIGESTS.get();
+		MessageDigest md = digests.get(algorithm);
+		if (md == null) {
+			md = MessageDigest.getInstance(algorithm);
+			digests.put(algorithm, md);
+		} else {
+			md.reset();
+		}
+		return md;
+	}
+
+	/**
+	 * Feeds a range of a file to a digest, with positional reads so that several
+	 * threads can share the channel.
+	 */
+	private static void update(MessageDigest md, FileChannel channel, long position, long length) throws IOException {
+		ByteBuffer buffer = BUFFERS.get();
+		while (length > 0) {
+			buffer.clear();
+			if (length < buffer.capacity()) {
+				buffer.limit((int) length);
+			}
+			int numRead = channel.read(buffer, position);
+			if (numRead == -1) {
+				break;
+			}
+			md.update(buffer.array(), 0, numRead);
+			position += numRead;
+			length -= numRead;
+		}
+	}
+
+	/**
+	 * Hashes the chunks of a file. Every thread running it claims chunks until none
+	 * is left, so the calling thread finishes the work alone if no helper gets to run.
+	 */
+	private static final class TreeHash implements Runnable {
+		private final FileChannel mChannel;
+		private final String mAlgorithm;
+		private final long mSize;
+		private final int mChunkSize;
+		private final int mChunkCount;
+		private final byte[][] mLeaves;
+		private final AtomicInteger mNextChunk = new AtomicInteger();
+		private final CountDownLatch mDone;
+		private volatile Exception mError;
+
+		TreeHash(FileChannel channel, String algorithm, long size, int chunkSize, int chunkCount) {
+			mChannel = channel;
+			mAlgorithm = algorithm;
+			mSize = size;
+			mChunkSize = chunkSize;
+			mChunkCount = chunkCount;
+			mLeaves = new byte[chunkCount][];
+			mDone = new CountDownLatch(chunkCount);
+		}
+
+		@Override
+		public void run() {
+			int index;
+			while ((index = mNextChunk.getAndIncrement()) < mChunkCount) {
+				try {
+					if (mError == null) {
+						MessageDigest md = getDigest(mAlgorithm);
+						md.update(TREE_LEAF);
+						long position = (long) index * mChunkSize;
+						update(md, mChannel, position, Math.min(mChunkSize, mSize - position));
+						mLeaves[index] = md.digest();
+					}
+				} catch (Exception e) {
+					mError = e;
+				} finally {
+					mDone.countDown();
+				}
+			}
+		}
+
+		/**
+		 * Waits for the chunks claimed by other threads and returns the hashes of all chunks.
+		 */
+		byte[][] await() throws IOException, InterruptedException {
+			mDone.await();
+			Exception error = mError;
+			if (error instanceof IOException) {
+				throw (IOException) error;
+			} else if (error != null) {
+				throw new IOException(error);
+			}
+			return mLeaves;
+		}
+	}
+
 	/**
 	 * Encrypt data given a key.
 	 *
@@ -174,88 +420,459 @@ public class Cryptography {
 	 */
 	@SuppressLint("TrulyRandom")
 	public static byte[] encrypt(byte[] data, Key key, String algorithm) {
+		return doFinal(Cipher.ENCRYPT_MODE, data, key, algorithm);
+	}
 
-		// Construct Cipher Algorithm
+	/**
+	 * Decrypt data given a key.
+	 *
+	 * @param data bytes of data to decrypt.
+	 * @param key used for decryption.
+	 * @param algorithm used for decryption.
+	 * @return decrypted bytes.
+	 *
+	 */
+	public static byte[] decrypt(byte[] data, Key key, String algorithm) {
+		return doFinal(Cipher.DECRYPT_MODE, data, key, algorithm);
+	}
+
+	/**
+	 * Encrypt a stream given a key. The data goes through the cipher in chunks, so
+	 * memory use does not depend on its size. Modes that need an IV, like {@link #AES_CBC}
+	 * or {@link #TRIPLE_DES_CBC}, get a random one, which is written before the encrypted
+	 * data. The streams are not closed.
+	 *
+	 * @param in stream of data to encrypt.
+	 * @param out stream receiving the encrypted data.
+	 * @param key used for encryption.
+	 * @param algorithm used for encryption.
+	 * @return true if all the data was encrypted.
+	 */
+	@SuppressLint("TrulyRandom")
+	public static boolean encrypt(InputStream in, OutputStream out, Key key, String algorithm) {
 		Cipher cipher = null;
 		try {
-			cipher = Cipher.getInstance(algorithm,"BC");
-		} catch (NoSuchAlgorithmException e) {
-			LogHelper.e(TAG, "Unidentified Error", e);
-			return null;
-		} catch (NoSuchPaddingException e) {
+			cipher = obtainCipher(algorithm);
+			if (needsIv(algorithm)) {
+				byte[] iv = new byte[cipher.getBlockSize()];
+				RANDOM.nextBytes(iv);
+				cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+				out.write(iv);
+			} else {
+				cipher.init(Cipher.ENCRYPT_MODE, key);
+			}
+			transform(cipher, in, out);
+		} catch (GeneralSecurityException e) {
 			LogHelper.e(TAG, "Unidentified Error", e);
-			return null;
-		} catch (NoSuchProviderException e) {
+			return false;
+		} catch (IOException e) {
 			LogHelper.e(TAG, "Unidentified Error", e);
-			return null;
+			return false;
+		} finally {
+			releaseCipher(algorithm, cipher);
 		}
 
-		try {
-			cipher.init(Cipher.ENCRYPT_MODE, key);
-		} catch (InvalidKeyException e) {
-			LogHelper.e(TAG, "Unidentified Error", e);
-			return null;
-		}
+		return true;
+	}
 
-		byte[] cipherData = null;
+	/**
+	 * Decrypt a stream encrypted by {@link #encrypt(InputStream, OutputStream, Key, String)}.
+	 * The streams are not closed.
+	 *
+	 * @param in stream of data to decrypt.
+	 * @param out stream receiving the decrypted data.
+	 * @param key used for decryption.
+	 * @param algorithm used for decryption.
+	 * @return true if all the data was decrypted.
+	 */
+	public static boolean decrypt(InputStream in, OutputStream out, Key key, String algorithm) {
+		Cipher cipher = null;
 		try {
-			cipherData = cipher.doFinal(data);
-		} catch (IllegalBlockSizeException e) {
+			cipher = obtainCipher(algorithm);
+			if (needsIv(algorithm)) {
+				byte[] iv = new byte[cipher.getBlockSize()];
+				readFully(in, iv);
+				cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+			} else {
+				cipher.init(Cipher.DECRYPT_MODE, key);
+			}
+			transform(cipher, in, out);
+		} catch (GeneralSecurityException e) {
 			LogHelper.e(TAG, "Unidentified Error", e);
-			return null;
-		} catch (BadPaddingException e) {
+			return false;
+		} catch (IOException e) {
 			LogHelper.e(TAG, "Unidentified Error", e);
-			return null;
+			return false;
+		} finally {
+			releaseCipher(algorithm, cipher);
 		}
 
-		return cipherData;
+		return true;
 	}
 
 	/**
-	 * Decrypt data given a key.
+	 * Encrypt the rest of a file into another, like
+	 * {@link #encrypt(InputStream, OutputStream, Key, String)}.
 	 *
-	 * @param data bytes of data to decrypt.
+	 * @param in channel to read from its position.
+	 * @param out channel to write at its position.
+	 * @param key used for encryption.
+	 * @param algorithm used for encryption.
+	 * @return true if all the data was encrypted.
+	 */
+	public static boolean encrypt(FileChannel in, FileChannel out, Key key, String algorithm) {
+		return encrypt(Channels.newInputStream(in), Channels.newOutputStream(out), key, algorithm);
+	}
+
+	/**
+	 * Decrypt the rest of a file into another, like
+	 * {@link #decrypt(InputStream, OutputStream, Key, String)}.
+	 *
+	 * @param in channel to read from its position.
+	 * @param out channel to write at its position.
 	 * @param key used for decryption.
 	 * @param algorithm used for decryption.
-	 * @return decrypted bytes.
-	 *
+	 * @return true if all the data was decrypted.
 	 */
-	public static byte[] decrypt(byte[] data, Key key, String algorithm) {
+	public static boolean decrypt(FileChannel in, FileChannel out, Key key, String algorithm) {
+		return decrypt(Channels.newInputStream(in), Channels.newOutputStream(out), key, algorithm);
+	}
 
-		// Construct Cipher Algorithm
+	/**
+	 * Encrypt and authenticate a stream. The data is encrypted with AES in CTR mode and
+	 * the IV and encrypted data are authenticated with HMAC-SHA256, with keys derived from
+	 * the given one. The output is the 16 byte IV, the encrypted data and the 32 byte tag.
+	 * The data goes through in chunks, so memory use does not depend on its size.
+	 * The streams are not closed.
+	 *
+	 * @param in stream of data to encrypt.
+	 * @param out stream receiving the encrypted data.
+	 * @param key AES Key, its encoded form is used to derive the keys.
+	 * @return true if all the data was encrypted.
+	 */
+	@SuppressLint("TrulyRandom")
+	public static boolean encryptAuthenticated(InputStream in, OutputStream out, SecretKey key) {
 		Cipher cipher = null;
 		try {
-			cipher = Cipher.getInstance(algorithm,"BC");
-		} catch (NoSuchAlgorithmException e) {
+			SecretKeySpec[] keys = deriveKeys(key, new byte[0]);
+			Mac mac = Mac.getInstance(AUTHENTICATED_MAC);
+			mac.init(keys[1]);
+			cipher = obtainCipher(AUTHENTICATED_CIPHER);
+			byte[] iv = new byte[AUTHENTICATED_IV_LENGTH];
+			RANDOM.nextBytes(iv);
+			cipher.init(Cipher.ENCRYPT_MODE, keys[0], new IvParameterSpec(iv));
+
+			mac.update(iv);
+			out.write(iv);
+			byte[] buffer = BUFFERS.get().array();
+			byte[] output = new byte[buffer.length];
+			int numRead;
+			while ((numRead = in.read(buffer)) != -1) {
+				int numWritten = cipher.update(buffer, 0, numRead, output);
+				mac.update(output, 0, numWritten);
+				out.write(output, 0, numWritten);
+			}
+			int numWritten = cipher.doFinal(output, 0);
+			mac.update(output, 0, numWritten);
+			out.write(output, 0, numWritten);
+			out.write(mac.doFinal());
+		} catch (GeneralSecurityException e) {
 			LogHelper.e(TAG, "Unidentified Error", e);
-			return null;
-		} catch (NoSuchPaddingException e) {
+			return false;
+		} catch (IOException e) {
 			LogHelper.e(TAG, "Unidentified Error", e);
-			return null;
-		} catch (NoSuchProviderException e) {
+			return false;
+		} finally {
+			releaseCipher(AUTHENTICATED_CIPHER, cipher);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Decrypt a stream encrypted by {@link #encryptAuthenticated(InputStream, OutputStream, SecretKey)}
+	 * and verify that it was not modified. Nothing is written before the whole stream was
+	 * verified, so the encrypted stream is first copied to a temporary file, which is deleted
+	 * afterwards. Use {@link #decryptAuthenticated(FileChannel, FileChannel, SecretKey)} when
+	 * the encrypted data is already in a file. The streams are not closed.
+	 *
+	 * @param in stream of data to decrypt.
+	 * @param out stream receiving the decrypted data.
+	 * @param key AES Key used for encryption.
+	 * @return true if all the data was decrypted and is authentic.
+	 */
+	public static boolean decryptAuthenticated(InputStream in, OutputStream out, SecretKey key) {
+		File file = null;
+		FileInputStream input = null;
+		try {
+			file = File.createTempFile("decrypt", null);
+			FileOutputStream copy = new FileOutputStream(file);
+			try {
+				byte[] buffer = BUFFERS.get().array();
+				int numRead;
+				while ((numRead = in.read(buffer)) != -1) {
+					copy.write(buffer, 0, numRead);
+				}
+			} finally {
+				copy.close();
+			}
+
+			input = new FileInputStream(file);
+			return decryptVerified(input.getChannel(), out, key);
+		} catch (IOException e) {
 			LogHelper.e(TAG, "Unidentified Error", e);
-			return null;
+			return false;
+		} finally {
+			try {
+				if (input != null) {
+					input.close();
+				}
+			} catch (IOException e) {
+				// Ignore
+			}
+			if (file != null && !file.delete()) {
+				file.deleteOnExit();
+			}
 		}
+	}
+
+	/**
+	 * Encrypt and authenticate the rest of a file into another, like
+	 * {@link #encryptAuthenticated(InputStream, OutputStream, SecretKey)}.
+	 *
+	 * @param in channel to read from its position.
+	 * @param out channel to write at its position.
+	 * @param key AES Key, its encoded form is used to derive the keys.
+	 * @return true if all the data was encrypted.
+	 */
+	public static boolean encryptAuthenticated(FileChannel in, FileChannel out, SecretKey key) {
+		return encryptAuthenticated(Channels.newInputStream(in), Channels.newOutputStream(out), key);
+	}
+
+	/**
+	 * Decrypt and verify the rest of a file into another, like
+	 * {@link #decryptAuthenticated(InputStream, OutputStream, SecretKey)}. The file is read
+	 * twice: the tag is verified first, and only then is the data decrypted and written.
+	 *
+	 * @param in channel to read from its position.
+	 * @param out channel to write at its position.
+	 * @param key AES Key used for encryption.
+	 * @return true if all the data was decrypted and is authentic.
+	 */
+	public static boolean decryptAuthenticated(FileChannel in, FileChannel out, SecretKey key) {
+		return decryptVerified(in, Channels.newOutputStream(out), key);
+	}
 
+	/**
+	 * Derives the keys of the authenticated formats from a key and a salt with HMAC-SHA256,
+	 * so that encryption and authentication never share a key. The AES key has the length
+	 * of the given key.
+	 *
+	 * @param key AES Key of 16, 24 or 32 bytes.
+	 * @param salt bytes mixed into both keys, may be empty.
+	 * @return the AES key followed by the HMAC-SHA256 key.
+	 * @throws GeneralSecurityException if the key is not an AES key.
+	 */
+	static SecretKeySpec[] deriveKeys(SecretKey key, byte[] salt) throws GeneralSecurityException {
+		byte[] encoded = key.getEncoded();
+		if (encoded == null) {
+			throw new InvalidKeyException("Key has no encoded form");
+		}
+		if (encoded.length != 16 && encoded.length != 24 && encoded.length != 32) {
+			throw new InvalidKeyException("Invalid AES key length " + encoded.length);
+		}
+		Mac kdf = Mac.getInstance(AUTHENTICATED_MAC);
+		kdf.init(new SecretKeySpec(encoded, AUTHENTICATED_MAC));
+		kdf.update(salt);
+		kdf.update((byte) 1);
+		byte[] cipherKey = Arrays.copyOf(kdf.doFinal(), encoded.length);
+		kdf.update(salt);
+		kdf.update((byte) 2);
+		byte[] macKey = kdf.doFinal();
+
+		return new SecretKeySpec[] {
+				new SecretKeySpec(cipherKey, "AES"), new SecretKeySpec(macKey, AUTHENTICATED_MAC) };
+	}
+
+	/**
+	 * Verifies the tag of an authenticated stream held in a file, from the position of the
+	 * channel to its end, and decrypts it only if the tag is valid.
+	 */
+	private static boolean decryptVerified(FileChannel in, OutputStream out, SecretKey key) {
+		Cipher cipher = null;
 		try {
-			cipher.init(Cipher.DECRYPT_MODE, key);
-		} catch (InvalidKeyException e) {
+			long start = in.position();
+			long end = in.size();
+			long dataStart = start + AUTHENTICATED_IV_LENGTH;
+			long dataEnd = end - AUTHENTICATED_TAG_LENGTH;
+			if (dataEnd < dataStart) {
+				LogHelper.e(TAG, "Encrypted stream is truncated");
+				return false;
+			}
+			byte[] iv = new byte[AUTHENTICATED_IV_LENGTH];
+			readFully(in, ByteBuffer.wrap(iv), start);
+			byte[] tag = new byte[AUTHENTICATED_TAG_LENGTH];
+			readFully(in, ByteBuffer.wrap(tag), dataEnd);
+
+			SecretKeySpec[] keys = deriveKeys(key, new byte[0]);
+			Mac mac = Mac.getInstance(AUTHENTICATED_MAC);
+			mac.init(keys[1]);
+			mac.update(iv);
+			ByteBuffer buffer = BUFFERS.get();
+			for (long position = dataStart; position < dataEnd; ) {
+				int numRead = read(in, buffer, position, dataEnd - position);
+				mac.update(buffer.array(), 0, numRead);
+				position += numRead;
+			}
+			if (!MessageDigest.isEqual(mac.doFinal(), tag)) {
+				LogHelper.e(TAG, "Encrypted stream failed authentication");
+				return false;
+			}
+
+			cipher = obtainCipher(AUTHENTICATED_CIPHER);
+			cipher.init(Cipher.DECRYPT_MODE, keys[0], new IvParameterSpec(iv));
+			byte[] output = new byte[buffer.capacity()];
+			for (long position = dataStart; position < dataEnd; ) {
+				int numRead = read(in, buffer, position, dataEnd - position);
+				out.write(output, 0, cipher.update(buffer.array(), 0, numRead, output));
+				position += numRead;
+			}
+			out.write(output, 0, cipher.doFinal(output, 0));
+			in.position(end);
+		} catch (GeneralSecurityException e) {
 			LogHelper.e(TAG, "Unidentified Error", e);
-			return null;
+			return false;
+		} catch (IOException e) {
+			LogHelper.e(TAG, "Unidentified Error", e);
+			return false;
+		} finally {
+			releaseCipher(AUTHENTICATED_CIPHER, cipher);
 		}
 
-		byte[] cipherData = null;
+		return true;
+	}
+
+	private static byte[] doFinal(int mode, byte[] data, Key key, String algorithm) {
+
+		// Construct Cipher Algorithm
+		Cipher cipher = null;
 		try {
-			cipherData = cipher.doFinal(data);
-		} catch (IllegalBlockSizeException e) {
+			cipher = obtainCipher(algorithm);
+		} catch (NoSuchAlgorithmException e) {
 			LogHelper.e(TAG, "Unidentified Error", e);
 			return null;
-		} catch (BadPaddingException e) {
+		} catch (NoSuchPaddingException e) {
 			LogHelper.e(TAG, "Unidentified Error", e);
 			return null;
 		}
 
-		return cipherData;
+		try {
+			try {
+				cipher.init(mode, key);
+			} catch (InvalidKeyException e) {
+				LogHelper.e(TAG, "Unidentified Error", e);
+				return null;
+			}
+
+			byte[] cipherData = null;
+			try {
+				cipherData = cipher.doFinal(data);
+			} catch (IllegalBlockSizeException e) {
+				LogHelper.e(TAG, "Unidentified Error", e);
+				return null;
+			} catch (BadPaddingException e) {
+				LogHelper.e(TAG, "Unidentified Error", e);
+				return null;
+			}
+
+			return cipherData;
+		} finally {
+			releaseCipher(algorithm, cipher);
+		}
+	}
+
+	/**
+	 * Takes a cipher of the calling thread out of its pool, or creates one. Ciphers come from
+	 * the Bouncy Castle provider when it has them, as before, and from the default providers
+	 * on platforms that no longer include them there.
+	 */
+	private static Cipher obtainCipher(String algorithm) throws NoSuchAlgorithmException, NoSuchPaddingException {
+		Cipher cipher = CIPHERS.get().remove(algorithm);
+		if (cipher == null) {
+			try {
+				cipher = Cipher.getInstance(algorithm, "BC");
+			} catch (NoSuchAlgorithmException e) {
+				cipher = Cipher.getInstance(algorithm);
+			} catch (NoSuchProviderException e) {
+				cipher = Cipher.getInstance(algorithm);
+			}
+		}
+		return cipher;
+	}
+
+	/**
+	 * Returns a cipher to the pool of the calling thread. It is initialized again before any use.
+	 */
+	private static void releaseCipher(String algorithm, Cipher cipher) {
+		if (cipher != null) {
+			CIPHERS.get().put(algorithm, cipher);
+		}
+	}
+
+	/**
+	 * @return true if the mode of the transformation needs an IV, false for ECB or no mode.
+	 */
+	private static boolean needsIv(String algorithm) {
+		String[] parts = algorithm.split("/");
+		return parts.length > 1 && !"ECB".equalsIgnoreCase(parts[1]) && !"NONE".equalsIgnoreCase(parts[1]);
+	}
+
+	private static void transform(Cipher cipher, InputStream in, OutputStream out)
+			throws IOException, GeneralSecurityException {
+		byte[] buffer = BUFFERS.get().array();
+		// room for a chunk plus the blocks a padded cipher may be holding back
+		byte[] output = new byte[Math.max(cipher.getOutputSize(buffer.length), buffer.length)
+				+ 2 * Math.max(cipher.getBlockSize(), 1)];
+		int numRead;
+		while ((numRead = in.read(buffer)) != -1) {
+			out.write(output, 0, cipher.update(buffer, 0, numRead, output));
+		}
+		out.write(output, 0, cipher.doFinal(output, 0));
+	}
+
+	private static void readFully(InputStream in, byte[] data) throws IOException {
+		int offset = 0;
+		while (offset < data.length) {
+			int numRead = in.read(data, offset, data.length - offset);
+			if (numRead == -1) {
+				throw new IOException("Unexpected end of stream");
+			}
+			offset += numRead;
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer data, long position) throws IOException {
+		while (data.hasRemaining()) {
+			int numRead = channel.read(data, position);
+			if (numRead == -1) {
+				throw new EOFException("Unexpected end of file");
+			}
+			position += numRead;
+		}
+	}
+
+	/**
+	 * Reads up to a buffer of a range of a file at the given position.
+	 *
+	 * @return the number of bytes read, at the start of the buffer array.
+	 */
+	private static int read(FileChannel channel, ByteBuffer buffer, long position, long remaining) throws IOException {
+		buffer.clear();
+		if (remaining < buffer.capacity()) {
+			buffer.limit((int) remaining);
+		}
+		readFully(channel, buffer, position);
+		return buffer.position();
 	}
 
 	/* 3DES */
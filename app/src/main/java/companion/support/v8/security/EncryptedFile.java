@@ -0,0 +1,446 @@
+package companion.support.v8.security;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * An encrypted file format that can be read at any position. The data is split in
+ * segments of a fixed size, each encrypted with AES in CTR mode under its own counter
+ * block and authenticated by its own HMAC-SHA256 tag. Reading a range of bytes only
+ * reads, verifies and decrypts the segments covering it.
+ *
+ * <p>A file is a header, holding a magic number, the segment size and a random salt,
+ * followed by the segments. The keys of a file are derived from the given key and the
+ * salt, so every file is encrypted under different keys. The tag of a segment covers
+ * the header, the index of the segment and whether it is the last one, so segments
+ * cannot be reordered, moved between files, dropped from the end or appended.</p>
+ *
+ * <p>Files are written once, from start to end, by the stream of
+ * {@link #newOutputStream(OutputStream, SecretKey)}, and read by
+ * {@link #open(FileChannel, SecretKey)}:</p>
+ * <pre>
+ *     EncryptedFile file = EncryptedFile.open(path, key);
+ *     try {
+ *         file.read(position, buffer, 0, buffer.length);
+ *     } finally {
+ *         file.close();
+ *     }
+ * </pre>
+ *
+ * @author Vitor Ribeiro
+ *
+ */
+public final class EncryptedFile implements Closeable {
+
+	/** Default number of data bytes of a segment. */
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+
+	/**
+	 * Largest number of data bytes of a segment. The segment size is read from the header
+	 * before anything is authenticated, so it is bounded before buffers are allocated for it.
+	 */
+	public static final int MAX_SEGMENT_SIZE = 1024 * 1024;
+
+	/** Magic number at the start of the header, "CEF1". */
+	private static final int MAGIC = 0x43454631;
+
+	/** Length of the header: magic number, segment size and salt. */
+	private static final int SALT_LENGTH = 16;
+	private static final int HEADER_LENGTH = 8 + SALT_LENGTH;
+
+	/** Length of the tag of a segment, a truncated HMAC-SHA256. */
+	private static final int TAG_LENGTH = 16;
+
+	/** Block size of AES, the unit of the counter. */
+	private static final int BLOCK_SIZE = 16;
+
+	private static final String CIPHER = "AES/CTR/NoPadding";
+	private static final String MAC = "HmacSHA256";
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	/**
+	 * Returns a stream that encrypts everything written to it into the given stream.
+	 * The last segment is written by {@link OutputStream#close()}, which also closes
+	 * the given stream; a file that was not closed cannot be read.
+	 *
+	 * @param out stream receiving the encrypted file.
+	 * @param key AES Key, its encoded form is used to derive the keys of the file.
+	 * @return the encrypting stream.
+	 * @throws IOException if the header could not be written or the key is invalid.
+	 */
+	public static OutputStream newOutputStream(OutputStream out, SecretKey key) throws IOException {
+		return newOutputStream(out, key, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Returns a stream that encrypts everything written to it into the given stream,
+	 * in segments of the given size. Smaller segments make small random reads cheaper,
+	 * larger ones lower the space taken by the tags.
+	 *
+	 * @param out stream receiving the encrypted file.
+	 * @param key AES Key, its encoded form is used to derive the keys of the file.
+	 * @param segmentSize number of data bytes of a segment, a positive multiple of 16 up to
+	 * {@link #MAX_SEGMENT_SIZE}.
+	 * @return the encrypting stream.
+	 * @throws IOException if the header could not be written or the key is invalid.
+	 */
+	public static OutputStream newOutputStream(OutputStream out, SecretKey key, int segmentSize) throws IOException {
+		if (!isValidSegmentSize(segmentSize)) {
+			throw new IllegalArgumentException("segmentSize must be a positive multiple of " + BLOCK_SIZE
+					+ " up to " + MAX_SEGMENT_SIZE);
+		}
+		byte[] salt = new byte[SALT_LENGTH];
+		RANDOM.nextBytes(salt);
+		byte[] header = ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC).putInt(segmentSize).put(salt).array();
+
+		SegmentOutputStream stream = new SegmentOutputStream(out, new Segments(header, key));
+		out.write(header);
+		return stream;
+	}
+
+	/**
+	 * Opens an encrypted file for reading.
+	 *
+	 * @param path path of the file.
+	 * @param key AES Key used to write the file.
+	 * @return the file, to be closed after use.
+	 * @throws IOException if the file could not be read or is not an encrypted file.
+	 */
+	public static EncryptedFile open(String path, SecretKey key) throws IOException {
+		FileInputStream in = new FileInputStream(new File(path));
+		try {
+			return open(in.getChannel(), key);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens an encrypted file for reading. The channel is only read with positional reads,
+	 * so its position is left alone, and it is closed by {@link #close()}.
+	 *
+	 * @param channel channel of the file.
+	 * @param key AES Key used to write the file.
+	 * @return the file, to be closed after use.
+	 * @throws IOException if the file could not be read or is not an encrypted file.
+	 */
+	public static EncryptedFile open(FileChannel channel, SecretKey key) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		readFully(channel, header, 0);
+		if (header.getInt(0) != MAGIC) {
+			throw new IOException("Not an encrypted file");
+		}
+		int segmentSize = header.getInt(4);
+		if (!isValidSegmentSize(segmentSize)) {
+			throw new IOException("Invalid segment size " + segmentSize);
+		}
+
+		long body = channel.size() - HEADER_LENGTH;
+		long encryptedSegmentSize = segmentSize + TAG_LENGTH;
+		long segmentCount = (body + encryptedSegmentSize - 1) / encryptedSegmentSize;
+		long lastLength = body - (segmentCount - 1) * encryptedSegmentSize - TAG_LENGTH;
+		if (segmentCount == 0 || lastLength < 0 || (lastLength == 0 && segmentCount > 1)) {
+			throw new IOException("Encrypted file is truncated");
+		}
+
+		EncryptedFile file = new EncryptedFile(channel, new Segments(header.array(), key), segmentSize,
+				segmentCount, (segmentCount - 1) * segmentSize + lastLength);
+		if (file.mLength == 0) {
+			// no read would reach the only segment, so a file cut down to it is caught here
+			file.decryptSegment(0);
+		}
+		return file;
+	}
+
+	private final FileChannel mChannel;
+	private final Segments mSegments;
+	private final int mSegmentSize;
+	private final long mSegmentCount;
+	private final long mLength;
+
+	// Last segment read, kept for reads that continue in it
+	private final ByteBuffer mEncrypted;
+	private final byte[] mDecrypted;
+	private long mDecryptedIndex = -1;
+	private int mDecryptedLength;
+
+	private EncryptedFile(FileChannel channel, Segments segments, int segmentSize, long segmentCount, long length) {
+		mChannel = channel;
+		mSegments = segments;
+		mSegmentSize = segmentSize;
+		mSegmentCount = segmentCount;
+		mLength = length;
+		mEncrypted = ByteBuffer.allocate(segmentSize + TAG_LENGTH);
+		mDecrypted = new byte[segmentSize];
+	}
+
+	/**
+	 * @return the number of data bytes of the file.
+	 */
+	public long length() {
+		return mLength;
+	}
+
+	/**
+	 * Reads data bytes starting at the given position. Only the segments covering the
+	 * range are read and each of them is verified before any of its bytes is returned.
+	 *
+	 * @param position position of the first byte to read.
+	 * @param buffer array receiving the bytes.
+	 * @param offset offset in the array.
+	 * @param count maximum number of bytes to read.
+	 * @return the number of bytes read, or -1 if the position is at or past the end.
+	 * @throws IOException if the file could not be read or a segment failed authentication.
+	 */
+	public synchronized int read(long position, byte[] buffer, int offset, int count) throws IOException {
+		if (position < 0 || offset < 0 || count < 0 || offset + count > buffer.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (position >= mLength) {
+			return -1;
+		}
+		count = (int) Math.min(count, mLength - position);
+
+		int total = 0;
+		while (total < count) {
+			long index = position / mSegmentSize;
+			int start = (int) (position - index * mSegmentSize);
+			decryptSegment(index);
+			int numRead = Math.min(count - total, mDecryptedLength - start);
+			System.arraycopy(mDecrypted, start, buffer, offset + total, numRead);
+			total += numRead;
+			position += numRead;
+		}
+		return total;
+	}
+
+	/**
+	 * Returns a stream reading the data bytes from the given position to the end.
+	 * The stream does not need to be closed, closing it does not close this file.
+	 *
+	 * @param position position of the first byte to read.
+	 * @return the stream.
+	 */
+	public InputStream newInputStream(final long position) {
+		return new InputStream() {
+			private long mPosition = position;
+
+			@Override
+			public int read() throws IOException {
+				byte[] single = new byte[1];
+				return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int count) throws IOException {
+				if (count == 0) {
+					return 0;
+				}
+				int numRead = EncryptedFile.this.read(mPosition, buffer, offset, count);
+				if (numRead > 0) {
+					mPosition += numRead;
+				}
+				return numRead;
+			}
+
+			@Override
+			public long skip(long count) {
+				long skipped = Math.max(0, Math.min(count, mLength - mPosition));
+				mPosition += skipped;
+				return skipped;
+			}
+
+			@Override
+			public int available() {
+				return (int) Math.min(Integer.MAX_VALUE, Math.max(0, mLength - mPosition));
+			}
+		};
+	}
+
+	@Override
+	public void close() throws IOException {
+		mChannel.close();
+	}
+
+	private void decryptSegment(long index) throws IOException {
+		if (index == mDecryptedIndex) {
+			return;
+		}
+		mDecryptedIndex = -1;
+
+		boolean last = index == mSegmentCount - 1;
+		int length = last ? (int) (mLength - index * mSegmentSize) : mSegmentSize;
+		mEncrypted.clear().limit(length + TAG_LENGTH);
+		readFully(mChannel, mEncrypted, HEADER_LENGTH + index * (mSegmentSize + TAG_LENGTH));
+
+		byte[] encrypted = mEncrypted.array();
+		byte[] tag = mSegments.tag(index, last, encrypted, length);
+		byte[] expected = Arrays.copyOfRange(encrypted, length, length + TAG_LENGTH);
+		if (!MessageDigest.isEqual(tag, expected)) {
+			throw new IOException("Segment " + index + " failed authentication");
+		}
+		mSegments.crypt(index, encrypted, length, mDecrypted);
+
+		mDecryptedIndex = index;
+		mDecryptedLength = length;
+	}
+
+	private static boolean isValidSegmentSize(int segmentSize) {
+		return segmentSize > 0 && segmentSize <= MAX_SEGMENT_SIZE && segmentSize % BLOCK_SIZE == 0;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int numRead = channel.read(buffer, position);
+			if (numRead == -1) {
+				throw new EOFException("Encrypted file is truncated");
+			}
+			position += numRead;
+		}
+	}
+
+	/**
+	 * The keys of a file and the encryption and authentication of its segments.
+	 */
+	private static final class Segments {
+		private final byte[] mHeader;
+		private final int mSegmentSize;
+		private final Cipher mCipher;
+		private final Mac mMac;
+		private final SecretKeySpec mCipherKey;
+		private final byte[] mIv = new byte[BLOCK_SIZE];
+		private final ByteBuffer mPosition = ByteBuffer.allocate(9);
+
+		Segments(byte[] header, SecretKey key) throws IOException {
+			mHeader = header;
+			mSegmentSize = ByteBuffer.wrap(header).getInt(4);
+			try {
+				SecretKeySpec[] keys = Cryptography.deriveKeys(key, Arrays.copyOfRange(header, 8, HEADER_LENGTH));
+				mCipherKey = keys[0];
+				mCipher = Cipher.getInstance(CIPHER);
+				mMac = Mac.getInstance(MAC);
+				mMac.init(keys[1]);
+			} catch (GeneralSecurityException e) {
+				throw new IOException(e);
+			}
+		}
+
+		/**
+		 * Encrypts or decrypts the data of a segment. The counter of a segment starts
+		 * after the blocks of the segments before it, so no counter block is used twice.
+		 */
+		void crypt(long index, byte[] input, int length, byte[] output) throws IOException {
+			ByteBuffer.wrap(mIv).putLong(8, index * (mSegmentSize / BLOCK_SIZE));
+			try {
+				mCipher.init(Cipher.ENCRYPT_MODE, mCipherKey, new IvParameterSpec(mIv));
+				mCipher.doFinal(input, 0, length, output, 0);
+			} catch (GeneralSecurityException e) {
+				throw new IOException(e);
+			}
+		}
+
+		/**
+		 * Calculates the tag of a segment from its encrypted data.
+		 */
+		byte[] tag(long index, boolean last, byte[] encrypted, int length) {
+			mPosition.clear();
+			mPosition.putLong(index).put((byte) (last ? 1 : 0));
+			mMac.update(mHeader);
+			mMac.update(mPosition.array());
+			mMac.update(encrypted, 0, length);
+			return Arrays.copyOf(mMac.doFinal(), TAG_LENGTH);
+		}
+	}
+
+	/**
+	 * Buffers a segment of data and writes it encrypted once the next byte arrives,
+	 * so that the last segment is only known, and marked, on close.
+	 */
+	private static final class SegmentOutputStream extends OutputStream {
+		private final OutputStream mOut;
+		private final Segments mSegments;
+		private final byte[] mBuffer;
+		private final byte[] mEncrypted;
+		private int mCount;
+		private long mIndex;
+		private boolean mClosed;
+
+		SegmentOutputStream(OutputStream out, Segments segments) {
+			mOut = out;
+			mSegments = segments;
+			mBuffer = new byte[segments.mSegmentSize];
+			mEncrypted = new byte[segments.mSegmentSize + TAG_LENGTH];
+		}
+
+		@Override
+		public void write(int oneByte) throws IOException {
+			write(new byte[] { (byte) oneByte }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int count) throws IOException {
+			if (mClosed) {
+				throw new IOException("Stream is closed");
+			}
+			while (count > 0) {
+				if (mCount == mBuffer.length) {
+					writeSegment(false);
+				}
+				int numCopied = Math.min(count, mBuffer.length - mCount);
+				System.arraycopy(buffer, offset, mBuffer, mCount, numCopied);
+				mCount += numCopied;
+				offset += numCopied;
+				count -= numCopied;
+			}
+		}
+
+		/**
+		 * Flushes the given stream. Data of a segment that is not complete stays buffered.
+		 */
+		@Override
+		public void flush() throws IOException {
+			mOut.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (mClosed) {
+				return;
+			}
+			mClosed = true;
+			try {
+				writeSegment(true);
+			} finally {
+				mOut.close();
+			}
+		}
+
+		private void writeSegment(boolean last) throws IOException {
+			mSegments.crypt(mIndex, mBuffer, mCount, mEncrypted);
+			byte[] tag = mSegments.tag(mIndex, last, mEncrypted, mCount);
+			System.arraycopy(tag, 0, mEncrypted, mCount, TAG_LENGTH);
+			mOut.write(mEncrypted, 0, mCount + TAG_LENGTH);
+			mIndex++;
+			mCount = 0;
+		}
+	}
+}
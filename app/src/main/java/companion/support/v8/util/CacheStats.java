@@ -0,0 +1,168 @@
+package companion.support.v8.util;
+
+/**
+ * Statistics of a cache, recorded with striped counters and latency
+ * histograms so that they can stay enabled in production. Used by
+ * {@link DiskLruCache} and by the memory tier of {@link ImageCache}; the
+ * latencies that do not apply to a cache simply stay empty.
+ *
+ * @author Vitor Ribeiro
+ *
+ */
+public final class CacheStats {
+
+	private final StripedCounter hitCount = new StripedCounter();
+	private final StripedCounter missCount = new StripedCounter();
+	private final StripedCounter putCount = new StripedCounter();
+	private final StripedCounter evictionCount = new StripedCounter();
+	private final StripedCounter evictedBytes = new StripedCounter();
+	private final StripedCounter bytesRead = new StripedCounter();
+	private final StripedCounter bytesWritten = new StripedCounter();
+	private final LatencyHistogram getLatency = new LatencyHistogram();
+	private final LatencyHistogram editLatency = new LatencyHistogram();
+	private final LatencyHistogram commitLatency = new LatencyHistogram();
+
+	/**
+	 * Records a successful lookup.
+	 *
+	 * @param bytes the number of bytes served by the hit.
+	 * @param startNanos the {@link System#nanoTime()} when the lookup started, or zero to skip timing.
+	 */
+	public void recordHit(long bytes, long startNanos) {
+		hitCount.increment();
+		bytesRead.add(bytes);
+		if (startNanos != 0) {
+			getLatency.recordSince(startNanos);
+		}
+	}
+
+	/**
+	 * Records a failed lookup.
+	 *
+	 * @param startNanos the {@link System#nanoTime()} when the lookup started, or zero to skip timing.
+	 */
+	public void recordMiss(long startNanos) {
+		missCount.increment();
+		if (startNanos != 0) {
+			getLatency.recordSince(startNanos);
+		}
+	}
+
+	/**
+	 * Records the time taken to open an editor.
+	 *
+	 * @param startNanos the {@link System#nanoTime()} when the edit started.
+	 */
+	public void recordEdit(long startNanos) {
+		editLatency.recordSince(startNanos);
+	}
+
+	/**
+	 * Records a value being stored.
+	 *
+	 * @param bytes the number of bytes stored.
+	 * @param startNanos the {@link System#nanoTime()} when the commit started, or zero to skip timing.
+	 */
+	public void recordPut(long bytes, long startNanos) {
+		putCount.increment();
+		bytesWritten.add(bytes);
+		if (startNanos != 0) {
+			commitLatency.recordSince(startNanos);
+		}
+	}
+
+	/**
+	 * Records an entry being evicted.
+	 *
+	 * @param bytes the size of the evicted entry.
+	 */
+	public void recordEviction(long bytes) {
+		evictionCount.increment();
+		evictedBytes.add(bytes);
+	}
+
+	/**
+	 * Clears all the statistics.
+	 */
+	public void reset() {
+		hitCount.reset();
+		missCount.reset();
+		putCount.reset();
+		evictionCount.reset();
+		evictedBytes.reset();
+		bytesRead.reset();
+		bytesWritten.reset();
+		getLatency.reset();
+		editLatency.reset();
+		commitLatency.reset();
+	}
+
+	/**
+	 * @return a copy of the current statistics.
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	/**
+	 * Writes the current statistics to the log.
+	 *
+	 * @param tag the log tag.
+	 * @param name the name of the cache.
+	 */
+	public void dump(String tag, String name) {
+		LogHelper.d(tag, name + " " + snapshot());
+	}
+
+	/**
+	 * An immutable copy of the statistics of a cache.
+	 */
+	public static final class Snapshot {
+		public final long hitCount;
+		public final long missCount;
+		public final long putCount;
+		public final long evictionCount;
+		public final long evictedBytes;
+		public final long bytesRead;
+		public final long bytesWritten;
+		public final LatencyHistogram.Snapshot getLatency;
+		public final LatencyHistogram.Snapshot editLatency;
+		public final LatencyHistogram.Snapshot commitLatency;
+
+		private Snapshot(CacheStats stats) {
+			hitCount = stats.hitCount.sum();
+			missCount = stats.missCount.sum();
+			putCount = stats.putCount.sum();
+			evictionCount = stats.evictionCount.sum();
+			evictedBytes = stats.evictedBytes.sum();
+			bytesRead = stats.bytesRead.sum();
+			bytesWritten = stats.bytesWritten.sum();
+			getLatency = stats.getLatency.snapshot();
+			editLatency = stats.editLatency.snapshot();
+			commitLatency = stats.commitLatency.snapshot();
+		}
+
+		/**
+		 * @return the ratio of hits over lookups, or 1 if there were no lookups.
+		 */
+		public double getHitRate() {
+			long requests = hitCount + missCount;
+			return requests == 0 ? 1d : (double) hitCount / requests;
+		}
+
+		@Override
+		public String toString() {
+			return "hits=" + hitCount
+				+ " misses=" + missCount
+				+ " hitRate=" + Math.round(getHitRate() * 100) + "%"
+				+ " puts=" + putCount
+				+ " evictions=" + evictionCount
+				+ " evictedBytes=" + evictedBytes
+				+ " bytesRead=" + bytesRead
+				+ " bytesWritten=" + bytesWritten
+				+ " get[" + getLatency + "]"
+				+ " edit[" + editLatency + "]"
+				+ " commit[" + commitLatency + "]";
+		}
+	}
+}
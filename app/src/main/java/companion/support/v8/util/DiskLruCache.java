@@ -10,7 +10,6 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -27,14 +26,16 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import javax.crypto.SecretKey;
+
 import companion.support.v8.lang.ParsingUtils;
+import companion.support.v8.security.EncryptedFile;
 
 /**
  * A cache that uses a bounded amount of space on a filesystem. Each cache
@@ -54,6 +55,12 @@ import companion.support.v8.lang.ParsingUtils;
  * deleted. The limit does not include filesystem overhead or the cache
  * journal so space-sensitive applications should set a conservative limit.
  *
+ * <p>The cache may also be bounded by entry count, and the size of each entry
+ * may be measured by a custom {@link Weigher} instead of its length in bytes.
+ * Background trimming runs in small batches so that readers and writers are
+ * never held off for the whole duration of a large eviction. An
+ * {@link EvictionListener} is notified of every entry the cache drops.
+ *
  * <p>Clients call {@link #edit} to create or update the values of an entry. An
  * entry may have only one editor at one time; if a value is not available to be
  * edited then {@link #edit} will return null.
@@ -63,11 +70,14 @@ import companion.support.v8.lang.ParsingUtils;
  *         placeholder if necessary.
  *     <li>When an entry is being <strong>edited</strong>, it is not necessary
  *         to supply data for every value; values default to their previous
- *         value.
+ *         value, and their files are kept as they are instead of being copied.
  * </ul>
  * Every {@link #edit} call must be matched by a call to {@link Editor#commit}
  * or {@link Editor#abort}. Committing is atomic: a read observes the full set
  * of values as they were before or after the commit, but never a mix of values.
+ * Commits are also crash consistent: the new values are synced to storage
+ * before a single journal record publishes them, so after a crash an entry
+ * holds either all of its old values or all of its new ones.
  *
  * <p>Clients call {@link #get} to read a snapshot of an entry. The read will
  * observe the value at the time that {@link #get} was called. Updates and
@@ -90,8 +100,11 @@ public final class DiskLruCache implements Closeable {
 	static final String JOURNAL_FILE_TMP = "journal.tmp";
 	static final String MAGIC = "libcore.io.DiskLruCache";
 	static final String VERSION_1 = "1";
+	static final String VERSION_2 = "2";
 	static final long ANY_SEQUENCE_NUMBER = -1;
 	private static final String CLEAN = "CLEAN";
+	private static final String COMMIT = "COMMIT";
+	private static final String UNCHANGED = "-";
 	private static final String DIRTY = "DIRTY";
 	private static final String REMOVE = "REMOVE";
 	private static final String READ = "READ";
@@ -99,20 +112,36 @@ public final class DiskLruCache implements Closeable {
 	private static final Charset UTF_8 = Charset.forName("UTF-8");
 	private static final int IO_BUFFER_SIZE = 8 * 1024;
 
+	/** Maximum number of entries evicted by the background cleanup while holding the lock. */
+	private static final int TRIM_BATCH_SIZE = 16;
+
+	/** Weigher that measures an entry by the total length in bytes of its values. */
+	public static final Weigher BYTE_WEIGHER = new Weigher() {
+		@Override public long weigh(String key, long[] lengths) {
+			long weight = 0;
+			for (long length : lengths) {
+				weight += length;
+			}
+			return weight;
+		}
+	};
+
 	/*
 	 * This cache uses a journal file named "journal". A typical journal file
 	 * looks like this:
 	 *     libcore.io.DiskLruCache
-	 *     1
+	 *     2
 	 *     100
 	 *     2
 	 *
 	 *     CLEAN 3400330d1dfc7f3f7f4b8d4d803dfcf6 832 21054
 	 *     DIRTY 335c4c6028171cfddfbaae1a9c313c52
-	 *     CLEAN 335c4c6028171cfddfbaae1a9c313c52 3934 2342
+	 *     COMMIT 335c4c6028171cfddfbaae1a9c313c52 3934 2342
 	 *     REMOVE 335c4c6028171cfddfbaae1a9c313c52
 	 *     DIRTY 1ab96a171faeeee38496d8b330771a7a
-	 *     CLEAN 1ab96a171faeeee38496d8b330771a7a 1600 234
+	 *     COMMIT 1ab96a171faeeee38496d8b330771a7a 1600 234
+	 *     DIRTY 1ab96a171faeeee38496d8b330771a7a
+	 *     COMMIT 1ab96a171faeeee38496d8b330771a7a - 512
 	 *     READ 335c4c6028171cfddfbaae1a9c313c52
 	 *     READ 3400330d1dfc7f3f7f4b8d4d803dfcf6
 	 *
@@ -124,19 +153,30 @@ public final class DiskLruCache implements Closeable {
 	 * cache entry. Each line contains space-separated values: a state, a key,
 	 * and optional state-specific values.
 	 *   o DIRTY lines track that an entry is actively being created or updated.
-	 *     Every successful DIRTY action should be followed by a CLEAN or REMOVE
-	 *     action. DIRTY lines without a matching CLEAN or REMOVE indicate that
-	 *     temporary files may need to be deleted.
+	 *     Every successful DIRTY action should be followed by a COMMIT, CLEAN or
+	 *     REMOVE action. DIRTY lines without a matching COMMIT, CLEAN or REMOVE
+	 *     indicate that temporary files may need to be deleted; the previously
+	 *     published values of the entry are kept.
+	 *   o COMMIT lines track an edit that has been published. They are written
+	 *     and synced after the dirty files of the edit were synced, and before
+	 *     the dirty files are renamed, so they are the atomic commit point of
+	 *     an edit. A commit line is followed by the new length of each value,
+	 *     or "-" for values the edit did not change, which keep their clean
+	 *     file untouched. If the cache is reopened after a crash, the dirty
+	 *     files of a commit that were not renamed yet are rolled forward.
 	 *   o CLEAN lines track a cache entry that has been successfully published
-	 *     and may be read. A publish line is followed by the lengths of each of
-	 *     its values.
+	 *     and may be read, and whose files are all in place. A publish line is
+	 *     followed by the lengths of each of its values.
 	 *   o READ lines track accesses for LRU.
 	 *   o REMOVE lines track entries that have been deleted.
 	 *
 	 * The journal file is appended to as cache operations occur. The journal may
 	 * occasionally be compacted by dropping redundant lines. A temporary file named
 	 * "journal.tmp" will be used during compaction; that file should be deleted if
-	 * it exists when the cache is opened.
+	 * it exists when the cache is opened. Compaction turns every commit into a
+	 * clean line, so crash recovery only inspects the entries committed since
+	 * the last compaction. Journals of version 1, which have no commit lines,
+	 * are still read.
 	 */
 
 	private final File directory;
@@ -144,12 +184,23 @@ public final class DiskLruCache implements Closeable {
 	private final File journalFileTmp;
 	private final int appVersion;
 	private final long maxSize;
+	private final int maxEntryCount;
 	private final int valueCount;
+	private final Weigher weigher;
+	private volatile EvictionListener evictionListener;
+	private final CacheStats stats = new CacheStats();
 	private long size = 0;
 	private Writer journalWriter;
+	private FileOutputStream journalStream;
 	private final LinkedHashMap<String, Entry> lruEntries = new LinkedHashMap<String, Entry>(0, 0.75f, true);
 	private int redundantOpCount;
 
+	/** Version of the journal read while opening. */
+	private String journalVersion = VERSION_2;
+
+	/** Entries read from COMMIT lines while opening, whose renames may have been interrupted. */
+	private final ArrayList<Entry> pendingCommits = new ArrayList<Entry>();
+
 	/**
 	 * To differentiate between old and current snapshots, each entry is given
 	 * a sequence number each time an edit is committed. A snapshot is stale if
@@ -161,27 +212,33 @@ public final class DiskLruCache implements Closeable {
 	private final ExecutorService executorService = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
 	private final Callable<Void> cleanupCallable = new Callable<Void>() {
 		@Override public Void call() throws Exception {
-			synchronized (DiskLruCache.this) {
-				if (journalWriter == null) {
-					return null; // closed
-				}
-				trimToSize();
-				if (journalRebuildRequired()) {
-					rebuildJournal();
-					redundantOpCount = 0;
+			boolean overLimit;
+			do {
+				// release the lock between batches so that pending reads and edits can proceed
+				synchronized (DiskLruCache.this) {
+					if (journalWriter == null) {
+						return null; // closed
+					}
+					overLimit = trimToSize(TRIM_BATCH_SIZE);
+					if (!overLimit && journalRebuildRequired()) {
+						rebuildJournal();
+						redundantOpCount = 0;
+					}
 				}
-			}
+			} while (overLimit);
 			return null;
 		}
 	};
 
-	private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+	private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize, int maxEntryCount, Weigher weigher) {
 		this.directory = directory;
 		this.appVersion = appVersion;
 		this.journalFile = new File(directory, JOURNAL_FILE);
 		this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
 		this.valueCount = valueCount;
 		this.maxSize = maxSize;
+		this.maxEntryCount = maxEntryCount;
+		this.weigher = weigher;
 	}
 
 	/**
@@ -195,20 +252,47 @@ public final class DiskLruCache implements Closeable {
 	 * @throws IOException if reading or writing the cache directory fails
 	 */
 	public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize) throws IOException {
+		return open(directory, appVersion, valueCount, maxSize, Integer.MAX_VALUE, BYTE_WEIGHER);
+	}
+
+	/**
+	 * Opens the cache in {@code directory}, creating a cache if none exists
+	 * there.
+	 *
+	 * @param directory a writable directory
+	 * @param appVersion version number.
+	 * @param valueCount the number of values per cache entry. Must be positive.
+	 * @param maxSize the maximum total weight this cache should store
+	 * @param maxEntryCount the maximum number of entries this cache should store. Must be positive.
+	 * @param weigher measures the weight of each entry, {@link #BYTE_WEIGHER} if null.
+	 * @throws IOException if reading or writing the cache directory fails
+	 */
+	public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize, int maxEntryCount, Weigher weigher) throws IOException {
 		if (maxSize <= 0) {
 			throw new IllegalArgumentException("maxSize <= 0");
 		}
+		if (maxEntryCount <= 0) {
+			throw new IllegalArgumentException("maxEntryCount <= 0");
+		}
 		if (valueCount <= 0) {
 			throw new IllegalArgumentException("valueCount <= 0");
 		}
+		if (weigher == null) {
+			weigher = BYTE_WEIGHER;
+		}
 
 		// prefer to pick up where we left off
-		DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+		DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, maxEntryCount, weigher);
 		if (cache.journalFile.exists()) {
 			try {
 				cache.readJournal();
 				cache.processJournal();
-				cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true), IO_BUFFER_SIZE);
+				if (VERSION_2.equals(cache.journalVersion)) {
+					cache.openJournalWriter();
+				} else {
+					// commit records must not be appended to an older journal
+					cache.rebuildJournal();
+				}
 				return cache;
 			} catch (IOException journalIsCorrupt) {
 				cache.delete();
@@ -217,7 +301,7 @@ public final class DiskLruCache implements Closeable {
 
 		// create a new empty cache
 		directory.mkdirs();
-		cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+		cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, maxEntryCount, weigher);
 		cache.rebuildJournal();
 		return cache;
 	}
@@ -227,7 +311,7 @@ public final class DiskLruCache implements Closeable {
 	 */
 	public synchronized void flush() throws IOException {
 		checkNotClosed();
-		trimToSize();
+		trimToSize(Integer.MAX_VALUE);
 		journalWriter.flush();
 	}
 
@@ -243,9 +327,10 @@ public final class DiskLruCache implements Closeable {
 				entry.currentEditor.abort();
 			}
 		}
-		trimToSize();
+		trimToSize(Integer.MAX_VALUE);
 		journalWriter.close();
 		journalWriter = null;
+		journalStream = null;
 	}
 
 	/**
@@ -275,12 +360,38 @@ public final class DiskLruCache implements Closeable {
 		}
 	}
 
-	private void trimToSize() throws IOException {
-		while (size > maxSize) {
-			//Map.Entry<String, Entry> toEvict = lruEntries.eldest();
-			final Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-			remove(toEvict.getKey());
+	private boolean isOverLimit() {
+		return size > maxSize || lruEntries.size() > maxEntryCount;
+	}
+
+	/**
+	 * Evicts the least recently used entries until the cache is within its
+	 * limits or {@code maxEvictions} entries have been evicted. Entries that
+	 * are being edited are skipped.
+	 *
+	 * @return true if the cache is still over its limits.
+	 */
+	private boolean trimToSize(int maxEvictions) throws IOException {
+		int evicted = 0;
+		while (isOverLimit()) {
+			Entry eldest = null;
+			for (Entry entry : lruEntries.values()) {
+				if (entry.currentEditor == null) {
+					eldest = entry;
+					break;
+				}
+			}
+			if (eldest == null) {
+				return false;
+			}
+			if (evicted == maxEvictions) {
+				return true;
+			}
+			EvictionCause cause = size > maxSize ? EvictionCause.SIZE : EvictionCause.ENTRY_COUNT;
+			removeEntry(eldest, cause);
+			evicted++;
 		}
+		return false;
 	}
 
 	/**
@@ -399,22 +510,54 @@ public final class DiskLruCache implements Closeable {
 	}
 
 	/**
-	 * Returns the maximum number of bytes that this cache should use to store
-	 * its data.
+	 * Returns the maximum weight that this cache should use to store its data.
+	 * With the default weigher this is a number of bytes.
 	 */
 	public long getMaxSize() {
 		return maxSize;
 	}
 
 	/**
-	 * Returns the number of bytes currently being used to store the values in
-	 * this cache. This may be greater than the max size if a background
-	 * deletion is pending.
+	 * Returns the maximum number of entries that this cache should store.
+	 */
+	public int getMaxEntryCount() {
+		return maxEntryCount;
+	}
+
+	/**
+	 * Returns the weight currently being used to store the values in this
+	 * cache. With the default weigher this is a number of bytes. This may be
+	 * greater than the max size if a background deletion is pending.
 	 */
 	public synchronized long getSize() {
 		return size;
 	}
 
+	/**
+	 * Returns the number of entries currently in this cache, including the
+	 * ones being created. This may be greater than the max entry count if a
+	 * background deletion is pending.
+	 */
+	public synchronized int getEntryCount() {
+		return lruEntries.size();
+	}
+
+	/**
+	 * Sets the listener notified when entries are dropped from this cache.
+	 *
+	 * @param listener the listener, or null to remove it.
+	 */
+	public void setEvictionListener(EvictionListener listener) {
+		evictionListener = listener;
+	}
+
+	/**
+	 * Returns the hit, miss, eviction and latency statistics of this cache.
+	 */
+	public CacheStats getStats() {
+		return stats;
+	}
+
 	/**
 	 * Returns a snapshot of the entry named {@code key}, or null if it doesn't
 	 * exist is not currently readable. If a value is returned, it is moved to
@@ -423,12 +566,10 @@ public final class DiskLruCache implements Closeable {
 	public synchronized Snapshot get(String key) throws IOException {
 		checkNotClosed();
 		validateKey(key);
+		final long start = System.nanoTime();
 		Entry entry = lruEntries.get(key);
-		if (entry == null) {
-			return null;
-		}
-
-		if (!entry.readable) {
+		if (entry == null || !entry.readable) {
+			stats.recordMiss(start);
 			return null;
 		}
 
@@ -438,12 +579,15 @@ public final class DiskLruCache implements Closeable {
 		 * from different edits.
 		 */
 		InputStream[] ins = new InputStream[valueCount];
+		long length = 0;
 		try {
 			for (int i = 0; i < valueCount; i++) {
 				ins[i] = new FileInputStream(entry.getCleanFile(i));
+				length += entry.lengths[i];
 			}
 		} catch (FileNotFoundException e) {
 			// a file must have been deleted manually!
+			stats.recordMiss(start);
 			return null;
 		}
 
@@ -453,9 +597,22 @@ public final class DiskLruCache implements Closeable {
 			executorService.submit(cleanupCallable);
 		}
 
+		stats.recordHit(length, start);
 		return new Snapshot(key, entry.sequenceNumber, ins);
 	}
 
+	/**
+	 * Returns true if the entry named {@code key} exists and is readable. Unlike
+	 * {@link #get(String)}, the entry is not opened, moved in the LRU queue or
+	 * counted in the statistics.
+	 */
+	public synchronized boolean contains(String key) {
+		checkNotClosed();
+		validateKey(key);
+		Entry entry = lruEntries.get(key);
+		return entry != null && entry.readable;
+	}
+
 	/**
 	 * Returns an editor for the entry named {@code key}, or null if another
 	 * edit is in progress.
@@ -467,6 +624,7 @@ public final class DiskLruCache implements Closeable {
 	private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
 		checkNotClosed();
 		validateKey(key);
+		final long start = System.nanoTime();
 		Entry entry = lruEntries.get(key);
 		if (
 			expectedSequenceNumber != ANY_SEQUENCE_NUMBER && 
@@ -487,6 +645,7 @@ public final class DiskLruCache implements Closeable {
 		// flush the journal before creating files to prevent file leaks
 		journalWriter.write(DIRTY + ' ' + key + '\n');
 		journalWriter.flush();
+		stats.recordEdit(start);
 		return editor;
 	}
 
@@ -495,6 +654,7 @@ public final class DiskLruCache implements Closeable {
 		if (entry.currentEditor != editor) {
 			throw new IllegalStateException();
 		}
+		final long start = System.nanoTime();
 
 		// if this edit is creating the entry for the first time, every index must have a value
 		if (success && !entry.readable) {
@@ -506,40 +666,80 @@ public final class DiskLruCache implements Closeable {
 			}
 		}
 
-		for (int i = 0; i < valueCount; i++) {
-			File dirty = entry.getDirtyFile(i);
-			if (success) {
-				if (dirty.exists()) {
-					File clean = entry.getCleanFile(i);
-					dirty.renameTo(clean);
-					long oldLength = entry.lengths[i];
-					long newLength = clean.length();
-					entry.lengths[i] = newLength;
-					size = size - oldLength + newLength;
+		redundantOpCount++;
+		if (success) {
+			// make the new values durable, then publish them with a single journal record
+			boolean[] changed = new boolean[valueCount];
+			long[] lengths = entry.lengths.clone();
+			StringBuilder record = new StringBuilder(COMMIT).append(' ').append(entry.key);
+			long written = 0;
+			try {
+				for (int i = 0; i < valueCount; i++) {
+					File dirty = entry.getDirtyFile(i);
+					if (dirty.exists()) {
+						syncFile(dirty);
+						changed[i] = true;
+						lengths[i] = dirty.length();
+						written += lengths[i];
+						record.append(' ').append(lengths[i]);
+					} else {
+						record.append(' ').append(UNCHANGED);
+					}
 				}
-			} else {
-				deleteIfExists(dirty);
+				journalWriter.write(record.append('\n').toString());
+				syncJournal();
+			} catch (IOException e) {
+				// the edit was not published, the entry keeps its previous values
+				entry.currentEditor = null;
+				try {
+					discardEdit(entry);
+				} catch (IOException ignored) {
+					// the original failure is more relevant
+				}
+				throw e;
 			}
-		}
 
-		redundantOpCount++;
-		entry.currentEditor = null;
-		if (entry.readable | success) {
-			entry.readable = true;
-			journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
-			if (success) {
-				entry.sequenceNumber = nextSequenceNumber++;
+			// the edit is committed, the renames can be replayed if they are interrupted
+			entry.currentEditor = null;
+			System.arraycopy(lengths, 0, entry.lengths, 0, valueCount);
+			for (int i = 0; i < valueCount; i++) {
+				if (changed[i]) {
+					entry.getDirtyFile(i).renameTo(entry.getCleanFile(i));
+				}
 			}
+
+			long newWeight = weigher.weigh(entry.key, entry.lengths);
+			size = size - entry.weight + newWeight;
+			entry.weight = newWeight;
+			entry.readable = true;
+			entry.sequenceNumber = nextSequenceNumber++;
+			stats.recordPut(written, start);
 		} else {
-			lruEntries.remove(entry.key);
-			journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+			entry.currentEditor = null;
+			discardEdit(entry);
 		}
 
-		if (size > maxSize || journalRebuildRequired()) {
+		if (isOverLimit() || journalRebuildRequired()) {
 			executorService.submit(cleanupCallable);
 		}
 	}
 
+	/**
+	 * Deletes the dirty files of an edit that was not published and journals
+	 * that the entry keeps its previous values, or drops it if it had none.
+	 */
+	private void discardEdit(Entry entry) throws IOException {
+		for (int i = 0; i < valueCount; i++) {
+			deleteIfExists(entry.getDirtyFile(i));
+		}
+		if (entry.readable) {
+			journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+		} else {
+			lruEntries.remove(entry.key);
+			journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+		}
+	}
+
 	private void readJournal() throws IOException {
 		InputStream in = new BufferedInputStream(new FileInputStream(journalFile), IO_BUFFER_SIZE);
 		try {
@@ -550,13 +750,14 @@ public final class DiskLruCache implements Closeable {
 			String blank = readAsciiLine(in);
 			if (
 				!MAGIC.equals(magic) || 
-				!VERSION_1.equals(version) || 
+				!(VERSION_1.equals(version) || VERSION_2.equals(version)) || 
 				!Integer.toString(appVersion).equals(appVersionString) || 
 				!Integer.toString(valueCount).equals(valueCountString) || 
 				!"".equals(blank)
 			) {
 				throw new IOException("unexpected journal header: [" + magic + ", " + version + ", " + valueCountString + ", " + blank + "]");
 			}
+			journalVersion = version;
 
 			while (true) {
 				try {
@@ -592,6 +793,11 @@ public final class DiskLruCache implements Closeable {
 			entry.readable = true;
 			entry.currentEditor = null;
 			entry.setLengths(ArraysUtils.copyOfRange(parts, 2, parts.length));
+		} else if (parts[0].equals(COMMIT) && parts.length == 2 + valueCount && VERSION_2.equals(journalVersion)) {
+			entry.readable = true;
+			entry.currentEditor = null;
+			entry.setLengths(ArraysUtils.copyOfRange(parts, 2, parts.length));
+			pendingCommits.add(entry);
 		} else if (parts[0].equals(DIRTY) && parts.length == 2) {
 			entry.currentEditor = new Editor(entry);
 		} else if (parts[0].equals(READ) && parts.length == 2) {
@@ -603,27 +809,88 @@ public final class DiskLruCache implements Closeable {
 
 	/**
 	 * Computes the initial size and collects garbage as a part of opening the
-	 * cache. Dirty entries are assumed to be inconsistent and will be deleted.
+	 * cache. Committed edits whose files were not all renamed are rolled
+	 * forward. Uncommitted edits are assumed to be inconsistent: their dirty
+	 * files are deleted and the entry keeps its last published values, or is
+	 * dropped if it was never published. Version 1 renamed the files before
+	 * journaling CLEAN, so there an uncommitted edit may have replaced some of
+	 * the values and the whole entry is dropped.
 	 */
 	private void processJournal() throws IOException {
 		deleteIfExists(journalFileTmp);
+		for (Entry entry : pendingCommits) {
+			if (entry.currentEditor == null && lruEntries.get(entry.key) == entry) {
+				rollForward(entry);
+			}
+		}
+		pendingCommits.clear();
+
 		for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
 			Entry entry = i.next();
-			if (entry.currentEditor == null) {
-				for (int t = 0; t < valueCount; t++) {
-					size += entry.lengths[t];
-				}
-			} else {
+			if (entry.currentEditor != null) {
 				entry.currentEditor = null;
 				for (int t = 0; t < valueCount; t++) {
-					deleteIfExists(entry.getCleanFile(t));
 					deleteIfExists(entry.getDirtyFile(t));
 				}
-				i.remove();
+				if (!entry.readable || VERSION_1.equals(journalVersion)) {
+					for (int t = 0; t < valueCount; t++) {
+						deleteIfExists(entry.getCleanFile(t));
+					}
+					i.remove();
+					continue;
+				}
+			}
+			entry.weight = weigher.weigh(entry.key, entry.lengths);
+			size += entry.weight;
+		}
+	}
+
+	/**
+	 * Completes the renames of a committed edit. A dirty file is only
+	 * published if it has the length recorded by the commit.
+	 */
+	private void rollForward(Entry entry) throws IOException {
+		for (int i = 0; i < valueCount; i++) {
+			File dirty = entry.getDirtyFile(i);
+			if (dirty.exists()) {
+				if (dirty.length() == entry.lengths[i]) {
+					File clean = entry.getCleanFile(i);
+					deleteIfExists(clean);
+					if (!dirty.renameTo(clean)) {
+						throw new IOException("failed to rename " + dirty);
+					}
+				} else {
+					deleteIfExists(dirty);
+				}
 			}
 		}
 	}
 
+	/**
+	 * Forces the contents of {@code file} to the storage device.
+	 */
+	private static void syncFile(File file) throws IOException {
+		FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			out.getFD().sync();
+		} finally {
+			closeQuietly(out);
+		}
+	}
+
+	/**
+	 * Flushes the journal and forces it to the storage device.
+	 */
+	private void syncJournal() throws IOException {
+		journalWriter.flush();
+		journalStream.getFD().sync();
+	}
+
+	private void openJournalWriter() throws IOException {
+		journalStream = new FileOutputStream(journalFile, true);
+		journalWriter = new BufferedWriter(new OutputStreamWriter(journalStream, UTF_8), IO_BUFFER_SIZE);
+	}
+
 	/**
 	 * Creates a new journal that omits redundant information. This replaces the
 	 * current journal if it exists.
@@ -633,10 +900,11 @@ public final class DiskLruCache implements Closeable {
 			journalWriter.close();
 		}
 
-		Writer writer = new BufferedWriter(new FileWriter(journalFileTmp), IO_BUFFER_SIZE);
+		FileOutputStream out = new FileOutputStream(journalFileTmp);
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8), IO_BUFFER_SIZE);
 		writer.write(MAGIC);
 		writer.write("\n");
-		writer.write(VERSION_1);
+		writer.write(VERSION_2);
 		writer.write("\n");
 		writer.write(Integer.toString(appVersion));
 		writer.write("\n");
@@ -652,9 +920,11 @@ public final class DiskLruCache implements Closeable {
 			}
 		}
 
+		writer.flush();
+		out.getFD().sync();
 		writer.close();
 		journalFileTmp.renameTo(journalFile);
-		journalWriter = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
+		openJournalWriter();
 	}
 
 	/**
@@ -680,24 +950,46 @@ public final class DiskLruCache implements Closeable {
 			return false;
 		}
 
+		removeEntry(entry, EvictionCause.REMOVED);
+
+		if (journalRebuildRequired()) {
+			executorService.submit(cleanupCallable);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Deletes the files of an entry, journals the removal, takes the entry out
+	 * of {@code lruEntries} and notifies the listener. If a file cannot be
+	 * deleted the entry stays in {@code lruEntries}.
+	 */
+	private void removeEntry(Entry entry, EvictionCause cause) throws IOException {
+		long length = 0;
 		for (int i = 0; i < valueCount; i++) {
 			File file = entry.getCleanFile(i);
 			if (!file.delete()) {
 				throw new IOException("failed to delete " + file);
 			}
-			size -= entry.lengths[i];
-			entry.lengths[i] = 0;
+			length += entry.lengths[i];
 		}
 
 		redundantOpCount++;
-		journalWriter.append(REMOVE + ' ').append(key).append(String.valueOf('\n'));
-		lruEntries.remove(key);
+		journalWriter.append(REMOVE + ' ').append(entry.key).append(String.valueOf('\n'));
+		lruEntries.remove(entry.key);
 
-		if (journalRebuildRequired()) {
-			executorService.submit(cleanupCallable);
-		}
+		Arrays.fill(entry.lengths, 0);
+		size -= entry.weight;
+		long weight = entry.weight;
+		entry.weight = 0;
 
-		return true;
+		if (cause != EvictionCause.REMOVED) {
+			stats.recordEviction(length);
+		}
+		EvictionListener listener = evictionListener;
+		if (listener != null) {
+			listener.onEntryEvicted(entry.key, length, weight, cause);
+		}
 	}
 
 	private static String inputStreamToString(InputStream in) throws IOException {
@@ -741,6 +1033,15 @@ public final class DiskLruCache implements Closeable {
 			return inputStreamToString(getInputStream(index));
 		}
 
+		/**
+		 * Opens the value for {@code index}, written by
+		 * {@link Editor#newEncryptedOutputStream(int, SecretKey)}, for random
+		 * reads. Closing the snapshot closes the returned file.
+		 */
+		public EncryptedFile getEncryptedFile(int index, SecretKey key) throws IOException {
+			return EncryptedFile.open(((FileInputStream) ins[index]).getChannel(), key);
+		}
+
 		@Override public void close() {
 			for (InputStream in : ins) {
 				closeQuietly(in);
@@ -800,6 +1101,16 @@ public final class DiskLruCache implements Closeable {
 			}
 		}
 
+		/**
+		 * Returns a new output stream that encrypts the value at {@code index}
+		 * with {@link EncryptedFile}, so that it can be read at any position
+		 * through {@link Snapshot#getEncryptedFile(int, SecretKey)}. The stream
+		 * must be closed before {@link #commit}, it writes the last segment.
+		 */
+		public OutputStream newEncryptedOutputStream(int index, SecretKey key) throws IOException {
+			return EncryptedFile.newOutputStream(newOutputStream(index), key);
+		}
+
 		/**
 		 * Sets the value at {@code index} to {@code value}.
 		 */
@@ -873,12 +1184,60 @@ public final class DiskLruCache implements Closeable {
 		}
 	}
 
+	/**
+	 * Calculates the weight of cache entries. The total weight of all the
+	 * entries is bounded by the maximum size of the cache.
+	 */
+	public interface Weigher {
+
+		/**
+		 * Returns the weight of an entry. Must not be negative and must be
+		 * stable for the same lengths.
+		 *
+		 * @param key the entry key.
+		 * @param lengths the length in bytes of each value, must not be modified.
+		 */
+		long weigh(String key, long[] lengths);
+	}
+
+	/**
+	 * The reason why an entry was dropped from the cache.
+	 */
+	public enum EvictionCause {
+		/** The entry was evicted because the total weight exceeded the maximum size. */
+		SIZE,
+		/** The entry was evicted because the cache held too many entries. */
+		ENTRY_COUNT,
+		/** The entry was removed explicitly with {@link DiskLruCache#remove}. */
+		REMOVED
+	}
+
+	/**
+	 * A listener notified every time an entry is dropped from the cache.
+	 * It is called while the cache lock is held, so it should return quickly.
+	 */
+	public interface EvictionListener {
+
+		/**
+		 * Called after the files of an entry were deleted.
+		 *
+		 * @param key the entry key.
+		 * @param length the total length in bytes of the entry values.
+		 * @param weight the weight of the entry.
+		 * @param cause the reason why the entry was dropped.
+		 */
+		void onEntryEvicted(String key, long length, long weight, EvictionCause cause);
+	}
+
 	private final class Entry {
 		private final String key;
 
 		/** Lengths of this entry's files. */
 		private final long[] lengths;
 
+		/** Weight of this entry as measured by the weigher when it was last published. */
+		private long weight;
+
 		/** True if this entry has ever been published */
 		private boolean readable;
 
@@ -902,7 +1261,8 @@ public final class DiskLruCache implements Closeable {
 		}
 
 		/**
-		 * Set lengths using decimal numbers like "10123".
+		 * Set lengths using decimal numbers like "10123". Values marked as
+		 * unchanged by a commit keep their current length.
 		 */
 		private void setLengths(String[] strings) throws IOException {
 			if (strings.length != valueCount) {
@@ -911,7 +1271,9 @@ public final class DiskLruCache implements Closeable {
 
 			try {
 				for (int i = 0; i < strings.length; i++) {
-					lengths[i] = Long.parseLong(strings[i]);
+					if (!UNCHANGED.equals(strings[i])) {
+						lengths[i] = Long.parseLong(strings[i]);
+					}
 				}
 			} catch (NumberFormatException e) {
 				throw invalidLengths(strings);
@@ -53,6 +53,9 @@ public class ImageCache {
 	// Default disk cache size
 	public static final int DEFAULT_DISK_CACHE_SIZE = 1024 * 1024 * 10;
 
+	// Default maximum number of disk cache entries
+	public static final int DEFAULT_DISK_CACHE_MAX_ENTRIES = Integer.MAX_VALUE;
+
 	// Disk cache directory
 	public static final String DEFAULT_CACHE_DIR = "thumbs";
 
@@ -69,6 +72,15 @@ public class ImageCache {
 
 	private Set<SoftReference<Bitmap>> mReusableBitmaps;
 
+	private final CacheStats mMemoryStats = new CacheStats();
+
+	private final DiskLruCache.EvictionListener mDiskEvictionListener = new DiskLruCache.EvictionListener() {
+		@Override
+		public void onEntryEvicted(String key, long length, long weight, DiskLruCache.EvictionCause cause) {
+			LogHelper.d(LOG, "Disk cache entry dropped (cause = " + cause + ", size = " + length + ")");
+		}
+	};
+
 	/**
 	 * Create a new ImageCache object using the specified parameters. This should not be
 	 * called directly by other classes, instead use
@@ -139,6 +151,9 @@ public class ImageCache {
 				 */
 				@Override
 				protected void entryRemoved(boolean evicted, String key, BitmapDrawable oldValue, BitmapDrawable newValue) {
+					if (evicted) {
+						mMemoryStats.recordEviction(ImageUtils.getBitmapSize(oldValue));
+					}
 					if (BitmapDrawableRecycled.class.isInstance(oldValue)) {
 						// The removed entry is a recycling drawable, so notify it 
 						// that it has been removed from the memory cache
@@ -191,7 +206,9 @@ public class ImageCache {
 					}
 					if (Storage.getUsableSpace(diskCacheDir) > mCacheParams.diskCacheSize) {
 						try {
-							mDiskLruCache = DiskLruCache.open(diskCacheDir, 1, 1, mCacheParams.diskCacheSize);
+							mDiskLruCache = DiskLruCache.open(diskCacheDir, 1, 1, mCacheParams.diskCacheSize,
+								mCacheParams.diskCacheMaxEntries, DiskLruCache.BYTE_WEIGHER);
+							mDiskLruCache.setEvictionListener(mDiskEvictionListener);
 
 							LogHelper.d(LOG, "Disk cache initialized");
 						} catch (final IOException e) {
@@ -225,6 +242,7 @@ public class ImageCache {
 				((BitmapDrawableRecycled) value).setIsCached(true);
 			}
 			mMemoryCache.put(key, value);
+			mMemoryStats.recordPut(ImageUtils.getBitmapSize(value), 0);
 		}
 
 		synchronized (mDiskCacheLock) {
@@ -239,8 +257,8 @@ public class ImageCache {
 						if (editor != null) {
 							out = editor.newOutputStream(DISK_CACHE_INDEX);
 							value.getBitmap().compress(mCacheParams.compressFormat, mCacheParams.compressQuality, out);
-							editor.commit();
 							out.close();
+							editor.commit();
 						}
 					} else {
 						snapshot.getInputStream(DISK_CACHE_INDEX).close();
@@ -272,7 +290,13 @@ public class ImageCache {
 		BitmapDrawable memValue = null;
 
 		if (mMemoryCache != null) {
+			final long start = System.nanoTime();
 			memValue = mMemoryCache.get(key);
+			if (memValue != null) {
+				mMemoryStats.recordHit(ImageUtils.getBitmapSize(memValue), start);
+			} else {
+				mMemoryStats.recordMiss(start);
+			}
 		}
 
 		if (memValue != null) {
@@ -331,6 +355,32 @@ public class ImageCache {
 		}
 	}
 
+	/**
+	 * Checks the disk cache without decoding the bitmap.
+	 *
+	 * @param key Unique identifier for which item to check
+	 * @return true if the bitmap is in the disk cache
+	 */
+	public boolean isInDiskCache(String key) {
+		final String hashKey = DiskLruCache.hashKeyForDisk(key);
+
+		synchronized (mDiskCacheLock) {
+			while (mDiskCacheStarting) {
+				try {
+					mDiskCacheLock.wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+			try {
+				return mDiskLruCache != null && mDiskLruCache.contains(hashKey);
+			} catch (IllegalStateException e) {
+				// the cache was closed
+				return false;
+			}
+		}
+	}
+
 	/**
 	 * @param options - BitmapFactory.Options with out* options populated
 	 * @return Bitmap that case be used for inBitmap
@@ -391,6 +441,33 @@ public class ImageCache {
 		}
 	}
 
+	/**
+	 * @return the statistics of the memory cache. Sizes are in bytes.
+	 */
+	public CacheStats getMemoryCacheStats() {
+		return mMemoryStats;
+	}
+
+	/**
+	 * @return the statistics of the disk cache, or null if the disk cache is not open.
+	 */
+	public CacheStats getDiskCacheStats() {
+		synchronized (mDiskCacheLock) {
+			return mDiskLruCache != null ? mDiskLruCache.getStats() : null;
+		}
+	}
+
+	/**
+	 * Writes the statistics of both caches to the log.
+	 */
+	public void dumpStats() {
+		mMemoryStats.dump(LOG, "Memory cache");
+		CacheStats diskStats = getDiskCacheStats();
+		if (diskStats != null) {
+			diskStats.dump(LOG, "Disk cache");
+		}
+	}
+
 	/**
 	 * Flushes the disk cache associated with this ImageCache object. Note that this includes
 	 * disk access so this should not be executed on the main/UI thread.
@@ -434,6 +511,7 @@ public class ImageCache {
 	public static class ImageCacheParams {
 		public int memCacheSize = DEFAULT_MEM_CACHE_SIZE;
 		public int diskCacheSize = DEFAULT_DISK_CACHE_SIZE;
+		public int diskCacheMaxEntries = DEFAULT_DISK_CACHE_MAX_ENTRIES;
 		public File diskCacheDir;
 
 		public CompressFormat compressFormat = DEFAULT_COMPRESS_FORMAT;
@@ -40,7 +40,7 @@ public abstract class IntProperty<T> extends PropertyCompat<T, Integer> {
 
     @Override
     final public void set(T object, Integer value) {
-        set(object, value.intValue());
+        setValue(object, value.intValue());
     }
 
 }
\ No newline at end of file
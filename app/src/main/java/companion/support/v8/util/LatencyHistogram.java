@@ -0,0 +1,142 @@
+package companion.support.v8.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds. Durations are grouped
+ * in power of two buckets, so recording is a couple of atomic additions and
+ * percentiles are accurate to a factor of two, which is enough to size caches
+ * and spot outliers.
+ *
+ * @author Vitor Ribeiro
+ *
+ */
+public final class LatencyHistogram {
+
+	/** One bucket for each possible bit length of a positive long. */
+	private static final int BUCKET_COUNT = 64;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+	private final StripedCounter count = new StripedCounter();
+	private final StripedCounter totalNanos = new StripedCounter();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	/**
+	 * Records a duration.
+	 *
+	 * @param nanos the duration in nanoseconds, negative values are recorded as zero.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		buckets.getAndIncrement(bucketOf(nanos));
+		count.increment();
+		totalNanos.add(nanos);
+
+		long max;
+		while (nanos > (max = maxNanos.get())) {
+			if (maxNanos.compareAndSet(max, nanos)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Records the time elapsed since {@code startNanos}.
+	 *
+	 * @param startNanos a value previously returned by {@link System#nanoTime()}.
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Returns a consistent enough copy of the current state of the histogram.
+	 *
+	 * @return the snapshot.
+	 */
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			copy[i] = buckets.get(i);
+		}
+		return new Snapshot(copy, count.sum(), totalNanos.sum(), maxNanos.get());
+	}
+
+	/**
+	 * Clears all the recorded durations.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			buckets.set(i, 0);
+		}
+		count.reset();
+		totalNanos.reset();
+		maxNanos.set(0);
+	}
+
+	private static int bucketOf(long nanos) {
+		return nanos == 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+	}
+
+	/**
+	 * An immutable copy of a histogram.
+	 */
+	public static final class Snapshot {
+		private final long[] buckets;
+		public final long count;
+		public final long totalNanos;
+		public final long maxNanos;
+
+		private Snapshot(long[] buckets, long count, long totalNanos, long maxNanos) {
+			this.buckets = buckets;
+			this.count = count;
+			this.totalNanos = totalNanos;
+			this.maxNanos = maxNanos;
+		}
+
+		/**
+		 * @return the mean duration in nanoseconds, or zero if nothing was recorded.
+		 */
+		public long getMeanNanos() {
+			return count == 0 ? 0 : totalNanos / count;
+		}
+
+		/**
+		 * Returns the upper bound of the bucket holding the given percentile.
+		 *
+		 * @param percentile a value between 0 and 100.
+		 * @return the duration in nanoseconds, or zero if nothing was recorded.
+		 */
+		public long getPercentileNanos(double percentile) {
+			long total = 0;
+			for (long bucket : buckets) {
+				total += bucket;
+			}
+			if (total == 0) {
+				return 0;
+			}
+
+			long rank = (long) Math.ceil(total * Math.min(Math.max(percentile, 0), 100) / 100d);
+			long seen = 0;
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				seen += buckets[i];
+				if (seen >= rank && buckets[i] > 0) {
+					return Math.min(i == 63 ? Long.MAX_VALUE : (1L << (i + 1)) - 1, maxNanos);
+				}
+			}
+			return maxNanos;
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + count
+				+ " mean=" + getMeanNanos() / 1000 + "us"
+				+ " p50=" + getPercentileNanos(50) / 1000 + "us"
+				+ " p99=" + getPercentileNanos(99) / 1000 + "us"
+				+ " max=" + maxNanos / 1000 + "us";
+		}
+	}
+}
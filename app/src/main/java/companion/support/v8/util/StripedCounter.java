@@ -0,0 +1,80 @@
+package companion.support.v8.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that spreads its updates over several padded cells, selected by
+ * the calling thread, so that concurrent writers rarely contend on the same
+ * cache line. Reading the value sums all the cells and is therefore more
+ * expensive than updating it.
+ *
+ * @author Vitor Ribeiro
+ *
+ */
+public final class StripedCounter {
+
+	/** Number of longs between two cells, enough to keep them on different cache lines. */
+	private static final int PADDING = 8;
+
+	/** Number of cells, a power of two close to twice the number of processors. */
+	private static final int STRIPES;
+
+	static {
+		int stripes = 1;
+		int target = Runtime.getRuntime().availableProcessors() * 2;
+		while (stripes < target) {
+			stripes <<= 1;
+		}
+		STRIPES = stripes;
+	}
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	/**
+	 * Adds one to the counter.
+	 */
+	public void increment() {
+		add(1);
+	}
+
+	/**
+	 * Adds the given value to the counter.
+	 *
+	 * @param value the value to add.
+	 */
+	public void add(long value) {
+		cells.getAndAdd(cellIndex(), value);
+	}
+
+	/**
+	 * Returns the current sum. Updates that happen concurrently with this
+	 * call may or may not be included.
+	 *
+	 * @return the sum of all the cells.
+	 */
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			sum += cells.get(i * PADDING);
+		}
+		return sum;
+	}
+
+	/**
+	 * Resets all the cells to zero.
+	 */
+	public void reset() {
+		for (int i = 0; i < STRIPES; i++) {
+			cells.set(i * PADDING, 0);
+		}
+	}
+
+	private static int cellIndex() {
+		return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(sum());
+	}
+}
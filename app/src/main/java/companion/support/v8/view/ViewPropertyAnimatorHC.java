@@ -113,8 +113,6 @@ class ViewPropertyAnimatorHC extends ViewPropertyAnimatorCompat {
     private static final int Y              = 0x0100;
     private static final int ALPHA          = 0x0200;
 
-    private static final int TRANSFORM_MASK = TRANSLATION_X | TRANSLATION_Y | SCALE_X | SCALE_Y |
-            ROTATION | ROTATION_X | ROTATION_Y | X | Y;
 
     /**
      * The mechanism by which the user can request several properties that are then animated
@@ -138,12 +136,7 @@ class ViewPropertyAnimatorHC extends ViewPropertyAnimatorCompat {
      */
     private static class PropertyBundle {
         int mPropertyMask;
-        ArrayList<NameValuesHolder> mNameValuesHolder;
-
-        PropertyBundle(int propertyMask, ArrayList<NameValuesHolder> nameValuesHolder) {
-            mPropertyMask = propertyMask;
-            mNameValuesHolder = nameValuesHolder;
-        }
+        final ArrayList<NameValuesHolder> mNameValuesHolder = new ArrayList<NameValuesHolder>();
 
         /**
          * Removes the given property from being animated as a part of this
@@ -183,6 +176,19 @@ class ViewPropertyAnimatorHC extends ViewPropertyAnimatorCompat {
     private HashMap<AnimatorCompat, PropertyBundle> mAnimatorMap =
             new HashMap<AnimatorCompat, PropertyBundle>();
 
+    /**
+     * The maximum number of bundles and holders kept for reuse. A view rarely runs more
+     * than a couple of animations at a time, each on a few properties.
+     */
+    private static final int MAX_POOL_SIZE = 4;
+
+    /**
+     * Bundles and holders of finished animations, reused by the next animations so that
+     * requesting an animation does not allocate them every time.
+     */
+    private final ArrayList<PropertyBundle> mBundlePool = new ArrayList<PropertyBundle>();
+    private final ArrayList<NameValuesHolder> mHolderPool = new ArrayList<NameValuesHolder>();
+
     /**
      * This is the information we need to set each property during the animation.
      * mNameConstant is used to set the appropriate field in View, and the from/delta
@@ -429,19 +435,21 @@ class ViewPropertyAnimatorHC extends ViewPropertyAnimatorCompat {
      * simply runs from 0 to 1, and then use that fractional value to set each property
      * value accordingly.
      */
-    @SuppressWarnings("unchecked")
-	private void startAnimation() {
+    private void startAnimation() {
         ValueAnimatorCompat animator = ValueAnimatorCompat.ofFloat(1.0f);
-        ArrayList<NameValuesHolder> nameValueList =
-                (ArrayList<NameValuesHolder>) mPendingAnimations.clone();
-        mPendingAnimations.clear();
+        int poolSize = mBundlePool.size();
+        PropertyBundle bundle = poolSize > 0 ? mBundlePool.remove(poolSize - 1) : new PropertyBundle();
+        ArrayList<NameValuesHolder> nameValueList = bundle.mNameValuesHolder;
         int propertyMask = 0;
-        int propertyCount = nameValueList.size();
+        int propertyCount = mPendingAnimations.size();
         for (int i = 0; i < propertyCount; ++i) {
-            NameValuesHolder nameValuesHolder = nameValueList.get(i);
+            NameValuesHolder nameValuesHolder = mPendingAnimations.get(i);
             propertyMask |= nameValuesHolder.mNameConstant;
+            nameValueList.add(nameValuesHolder);
         }
-        mAnimatorMap.put(animator, new PropertyBundle(propertyMask, nameValueList));
+        mPendingAnimations.clear();
+        bundle.mPropertyMask = propertyMask;
+        mAnimatorMap.put(animator, bundle);
         animator.addUpdateListener(mAnimatorEventListener);
         animator.addListener(mAnimatorEventListener);
         if (mStartDelaySet) {
@@ -519,7 +527,16 @@ class ViewPropertyAnimatorHC extends ViewPropertyAnimatorCompat {
             }
         }
 
-        NameValuesHolder nameValuePair = new NameValuesHolder(constantName, startValue, byValue);
+        NameValuesHolder nameValuePair;
+        int poolSize = mHolderPool.size();
+        if (poolSize > 0) {
+            nameValuePair = mHolderPool.remove(poolSize - 1);
+            nameValuePair.mNameConstant = constantName;
+            nameValuePair.mFromValue = startValue;
+            nameValuePair.mDeltaValue = byValue;
+        } else {
+            nameValuePair = new NameValuesHolder(constantName, startValue, byValue);
+        }
         mPendingAnimations.add(nameValuePair);
         View v = mView.get();
         if (v != null) {
@@ -528,61 +545,77 @@ class ViewPropertyAnimatorHC extends ViewPropertyAnimatorCompat {
         }
     }
 
+    /**
+     * Returns the bundle of a finished animation and its holders to the pools.
+     *
+     * @param bundle The bundle that is no longer associated with an animator
+     */
+    private void recycle(PropertyBundle bundle) {
+        ArrayList<NameValuesHolder> nameValueList = bundle.mNameValuesHolder;
+        int count = nameValueList.size();
+        for (int i = 0; i < count && mHolderPool.size() < MAX_POOL_SIZE; ++i) {
+            mHolderPool.add(nameValueList.get(i));
+        }
+        nameValueList.clear();
+        bundle.mPropertyMask = NONE;
+        if (mBundlePool.size() < MAX_POOL_SIZE) {
+            mBundlePool.add(bundle);
+        }
+    }
+
     /**
      * This method handles setting the property values directly in the View object's fields.
      * propertyConstant tells it which property should be set, value is the value to set
      * the property to.
      *
+     * @param v The view whose property is set
      * @param propertyConstant The property to be set
      * @param value The value to set the property to
      */
     @SuppressLint("NewApi")
-    private void setValue(int propertyConstant, float value) {
+    private void setValue(View v, int propertyConstant, float value) {
         //final View.TransformationInfo info = mView.mTransformationInfo;
-        View v = mView.get();
-        if (v != null) {
-            switch (propertyConstant) {
-                case TRANSLATION_X:
-                    //info.mTranslationX = value;
-                    v.setTranslationX(value);
-                    break;
-                case TRANSLATION_Y:
-                    //info.mTranslationY = value;
-                    v.setTranslationY(value);
-                    break;
-                case ROTATION:
-                    //info.mRotation = value;
-                    v.setRotation(value);
-                    break;
-                case ROTATION_X:
-                    //info.mRotationX = value;
-                    v.setRotationX(value);
-                    break;
-                case ROTATION_Y:
-                    //info.mRotationY = value;
-                    v.setRotationY(value);
-                    break;
-                case SCALE_X:
-                    //info.mScaleX = value;
-                    v.setScaleX(value);
-                    break;
-                case SCALE_Y:
-                    //info.mScaleY = value;
-                    v.setScaleY(value);
-                    break;
-                case X:
-                    //info.mTranslationX = value - v.mLeft;
-                    v.setX(value);
-                    break;
-                case Y:
-                    //info.mTranslationY = value - v.mTop;
-                    v.setY(value);
-                    break;
-                case ALPHA:
-                    //info.mAlpha = value;
-                    v.setAlpha(value);
-                    break;
-            }
+        switch (propertyConstant) {
+            case TRANSLATION_X:
+                //info.mTranslationX = value;
+                v.setTranslationX(value);
+                break;
+            case TRANSLATION_Y:
+                //info.mTranslationY = value;
+                v.setTranslationY(value);
+                break;
+            case ROTATION:
+                //info.mRotation = value;
+                v.setRotation(value);
+                break;
+            case ROTATION_X:
+                //info.mRotationX = value;
+                v.setRotationX(value);
+                break;
+            case ROTATION_Y:
+                //info.mRotationY = value;
+                v.setRotationY(value);
+                break;
+            case SCALE_X:
+                //info.mScaleX = value;
+                v.setScaleX(value);
+                break;
+            case SCALE_Y:
+                //info.mScaleY = value;
+                v.setScaleY(value);
+                break;
+            case X:
+                //info.mTranslationX = value - v.mLeft;
+                v.setX(value);
+                break;
+            case Y:
+                //info.mTranslationY = value - v.mTop;
+                v.setY(value);
+                break;
+            case ALPHA:
+                //info.mAlpha = value;
+                v.setAlpha(value);
+                break;
         }
     }
 
@@ -667,7 +700,10 @@ class ViewPropertyAnimatorHC extends ViewPropertyAnimatorCompat {
             if (mListener != null) {
                 mListener.onAnimationEnd(animation);
             }
-            mAnimatorMap.remove(animation);
+            PropertyBundle propertyBundle = mAnimatorMap.remove(animation);
+            if (propertyBundle != null) {
+                recycle(propertyBundle);
+            }
             // If the map is empty, it means all animation are done or canceled, so the listener
             // isn't needed anymore. Not nulling it would cause it to leak any objects used in
             // its implementation
@@ -686,44 +722,19 @@ class ViewPropertyAnimatorHC extends ViewPropertyAnimatorCompat {
          */
         @Override
         public void onAnimationUpdate(ValueAnimatorCompat animation) {
-            // alpha requires slightly different treatment than the other (transform) properties.
-            // The logic in setAlpha() is not simply setting mAlpha, plus the invalidation
-            // logic is dependent on how the view handles an internal call to onSetAlpha().
-            // We track what kinds of properties are set, and how alpha is handled when it is
-            // set, and perform the invalidation steps appropriately.
-            //boolean alphaHandled = false;
-            //mView.invalidateParentCaches();
+            View v = mView.get();
+            if (v == null) {
+                return;
+            }
             float fraction = animation.getAnimatedFraction();
             PropertyBundle propertyBundle = mAnimatorMap.get(animation);
-            int propertyMask = propertyBundle.mPropertyMask;
-            if ((propertyMask & TRANSFORM_MASK) != 0) {
-                View v = mView.get();
-                if (v != null) {
-                    v.invalidate(/*false*/);
-                }
-            }
             ArrayList<NameValuesHolder> valueList = propertyBundle.mNameValuesHolder;
-            if (valueList != null) {
-                int count = valueList.size();
-                for (int i = 0; i < count; ++i) {
-                    NameValuesHolder values = valueList.get(i);
-                    float value = values.mFromValue + fraction * values.mDeltaValue;
-                    //if (values.mNameConstant == ALPHA) {
-                    //    alphaHandled = mView.setAlphaNoInvalidation(value);
-                    //} else {
-                        setValue(values.mNameConstant, value);
-                    //}
-                }
-            }
-            /*if ((propertyMask & TRANSFORM_MASK) != 0) {
-                mView.mTransformationInfo.mMatrixDirty = true;
-                mView.mPrivateFlags |= View.DRAWN; // force another invalidation
-            }*/
-            // invalidate(false) in all cases except if alphaHandled gets set to true
-            // via the call to setAlphaNoInvalidation(), above
-            View v = mView.get();
-            if (v != null) {
-                v.invalidate(/*alphaHandled*/);
+            // The View setters invalidate the view themselves, and further invalidations are
+            // coalesced until the next draw, so the view is not invalidated again here
+            int count = valueList.size();
+            for (int i = 0; i < count; ++i) {
+                NameValuesHolder values = valueList.get(i);
+                setValue(v, values.mNameConstant, values.mFromValue + fraction * values.mDeltaValue);
             }
         }
     }
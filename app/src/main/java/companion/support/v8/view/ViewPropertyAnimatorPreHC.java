@@ -118,8 +118,6 @@ class ViewPropertyAnimatorPreHC extends ViewPropertyAnimatorCompat {
     private static final int Y              = 0x0100;
     private static final int ALPHA          = 0x0200;
 
-    private static final int TRANSFORM_MASK = TRANSLATION_X | TRANSLATION_Y | SCALE_X | SCALE_Y |
-            ROTATION | ROTATION_X | ROTATION_Y | X | Y;
 
     /**
      * The mechanism by which the user can request several properties that are then animated
@@ -143,12 +141,7 @@ class ViewPropertyAnimatorPreHC extends ViewPropertyAnimatorCompat {
      */
     private static class PropertyBundle {
         int mPropertyMask;
-        ArrayList<NameValuesHolder> mNameValuesHolder;
-
-        PropertyBundle(int propertyMask, ArrayList<NameValuesHolder> nameValuesHolder) {
-            mPropertyMask = propertyMask;
-            mNameValuesHolder = nameValuesHolder;
-        }
+        final ArrayList<NameValuesHolder> mNameValuesHolder = new ArrayList<NameValuesHolder>();
 
         /**
          * Removes the given property from being animated as a part of this
@@ -188,6 +181,19 @@ class ViewPropertyAnimatorPreHC extends ViewPropertyAnimatorCompat {
     private HashMap<AnimatorCompat, PropertyBundle> mAnimatorMap =
             new HashMap<AnimatorCompat, PropertyBundle>();
 
+    /**
+     * The maximum number of bundles and holders kept for reuse. A view rarely runs more
+     * than a couple of animations at a time, each on a few properties.
+     */
+    private static final int MAX_POOL_SIZE = 4;
+
+    /**
+     * Bundles and holders of finished animations, reused by the next animations so that
+     * requesting an animation does not allocate them every time.
+     */
+    private final ArrayList<PropertyBundle> mBundlePool = new ArrayList<PropertyBundle>();
+    private final ArrayList<NameValuesHolder> mHolderPool = new ArrayList<NameValuesHolder>();
+
     /**
      * This is the information we need to set each property during the animation.
      * mNameConstant is used to set the appropriate field in View, and the from/delta
@@ -435,19 +441,21 @@ class ViewPropertyAnimatorPreHC extends ViewPropertyAnimatorCompat {
      * simply runs from 0 to 1, and then use that fractional value to set each property
      * value accordingly.
      */
-    @SuppressWarnings("unchecked")
-	private void startAnimation() {
+    private void startAnimation() {
         ValueAnimatorCompat animator = ValueAnimatorCompat.ofFloat(1.0f);
-        ArrayList<NameValuesHolder> nameValueList =
-                (ArrayList<NameValuesHolder>) mPendingAnimations.clone();
-        mPendingAnimations.clear();
+        int poolSize = mBundlePool.size();
+        PropertyBundle bundle = poolSize > 0 ? mBundlePool.remove(poolSize - 1) : new PropertyBundle();
+        ArrayList<NameValuesHolder> nameValueList = bundle.mNameValuesHolder;
         int propertyMask = 0;
-        int propertyCount = nameValueList.size();
+        int propertyCount = mPendingAnimations.size();
         for (int i = 0; i < propertyCount; ++i) {
-            NameValuesHolder nameValuesHolder = nameValueList.get(i);
+            NameValuesHolder nameValuesHolder = mPendingAnimations.get(i);
             propertyMask |= nameValuesHolder.mNameConstant;
+            nameValueList.add(nameValuesHolder);
         }
-        mAnimatorMap.put(animator, new PropertyBundle(propertyMask, nameValueList));
+        mPendingAnimations.clear();
+        bundle.mPropertyMask = propertyMask;
+        mAnimatorMap.put(animator, bundle);
         animator.addUpdateListener(mAnimatorEventListener);
         animator.addListener(mAnimatorEventListener);
         if (mStartDelaySet) {
@@ -525,7 +533,16 @@ class ViewPropertyAnimatorPreHC extends ViewPropertyAnimatorCompat {
             }
         }
 
-        NameValuesHolder nameValuePair = new NameValuesHolder(constantName, startValue, byValue);
+        NameValuesHolder nameValuePair;
+        int poolSize = mHolderPool.size();
+        if (poolSize > 0) {
+            nameValuePair = mHolderPool.remove(poolSize - 1);
+            nameValuePair.mNameConstant = constantName;
+            nameValuePair.mFromValue = startValue;
+            nameValuePair.mDeltaValue = byValue;
+        } else {
+            nameValuePair = new NameValuesHolder(constantName, startValue, byValue);
+        }
         mPendingAnimations.add(nameValuePair);
         View v = mView.get();
         if (v != null) {
@@ -534,6 +551,24 @@ class ViewPropertyAnimatorPreHC extends ViewPropertyAnimatorCompat {
         }
     }
 
+    /**
+     * Returns the bundle of a finished animation and its holders to the pools.
+     *
+     * @param bundle The bundle that is no longer associated with an animator
+     */
+    private void recycle(PropertyBundle bundle) {
+        ArrayList<NameValuesHolder> nameValueList = bundle.mNameValuesHolder;
+        int count = nameValueList.size();
+        for (int i = 0; i < count && mHolderPool.size() < MAX_POOL_SIZE; ++i) {
+            mHolderPool.add(nameValueList.get(i));
+        }
+        nameValueList.clear();
+        bundle.mPropertyMask = NONE;
+        if (mBundlePool.size() < MAX_POOL_SIZE) {
+            mBundlePool.add(bundle);
+        }
+    }
+
     /**
      * This method handles setting the property values directly in the View object's fields.
      * propertyConstant tells it which property should be set, value is the value to set
@@ -665,7 +700,10 @@ class ViewPropertyAnimatorPreHC extends ViewPropertyAnimatorCompat {
             if (mListener != null) {
                 mListener.onAnimationEnd(animation);
             }
-            mAnimatorMap.remove(animation);
+            PropertyBundle propertyBundle = mAnimatorMap.remove(animation);
+            if (propertyBundle != null) {
+                recycle(propertyBundle);
+            }
             // If the map is empty, it means all animation are done or canceled, so the listener
             // isn't needed anymore. Not nulling it would cause it to leak any objects used in
             // its implementation
@@ -684,44 +722,21 @@ class ViewPropertyAnimatorPreHC extends ViewPropertyAnimatorCompat {
          */
         @Override
         public void onAnimationUpdate(ValueAnimatorCompat animation) {
-            // alpha requires slightly different treatment than the other (transform) properties.
-            // The logic in setAlpha() is not simply setting mAlpha, plus the invalidation
-            // logic is dependent on how the view handles an internal call to onSetAlpha().
-            // We track what kinds of properties are set, and how alpha is handled when it is
-            // set, and perform the invalidation steps appropriately.
-            //boolean alphaHandled = false;
-            //mView.invalidateParentCaches();
             float fraction = animation.getAnimatedFraction();
             PropertyBundle propertyBundle = mAnimatorMap.get(animation);
-            int propertyMask = propertyBundle.mPropertyMask;
-            if ((propertyMask & TRANSFORM_MASK) != 0) {
-                View v = mView.get();
-                if (v != null) {
-                    v.invalidate(/*false*/);
-                }
-            }
             ArrayList<NameValuesHolder> valueList = propertyBundle.mNameValuesHolder;
-            if (valueList != null) {
+            // The proxy records every value of the frame, then recomputes its transformation
+            // and invalidates the area covered by the view once, instead of once per property.
+            // Alpha changes alone invalidate the view itself.
+            mProxy.beginUpdate();
+            try {
                 int count = valueList.size();
                 for (int i = 0; i < count; ++i) {
                     NameValuesHolder values = valueList.get(i);
-                    float value = values.mFromValue + fraction * values.mDeltaValue;
-                    //if (values.mNameConstant == ALPHA) {
-                    //    alphaHandled = mView.setAlphaNoInvalidation(value);
-                    //} else {
-                        setValue(values.mNameConstant, value);
-                    //}
+                    setValue(values.mNameConstant, values.mFromValue + fraction * values.mDeltaValue);
                 }
-            }
-            /*if ((propertyMask & TRANSFORM_MASK) != 0) {
-                mView.mTransformationInfo.mMatrixDirty = true;
-                mView.mPrivateFlags |= View.DRAWN; // force another invalidation
-            }*/
-            // invalidate(false) in all cases except if alphaHandled gets set to true
-            // via the call to setAlphaNoInvalidation(), above
-            View v = mView.get();
-            if (v != null) {
-                v.invalidate(/*alphaHandled*/);
+            } finally {
+                mProxy.endUpdate();
             }
         }
     }
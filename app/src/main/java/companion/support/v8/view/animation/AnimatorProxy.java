@@ -1,7 +1,6 @@
 package companion.support.v8.view.animation;
 
 import java.lang.ref.WeakReference;
-import java.util.WeakHashMap;
 
 import android.graphics.Camera;
 import android.graphics.Matrix;
@@ -21,25 +20,24 @@ public final class AnimatorProxy extends Animation {
     /** Whether or not the current running platform needs to be proxied. */
 	public static final boolean NEEDS_PROXY = Integer.valueOf(Build.VERSION.SDK).intValue() < Build.VERSION_CODES.HONEYCOMB;
 
-    private static final WeakHashMap<View, AnimatorProxy> PROXIES =
-            new WeakHashMap<View, AnimatorProxy>();
-
     /**
      * Create a proxy to allow for modifying post-3.0 view properties on all
      * pre-3.0 platforms. <strong>DO NOT</strong> wrap your views if you are
      * using {@code ObjectAnimator} as it will handle that itself.
      *
+     * <p>The proxy is installed as the animation of the view, so looking it up on
+     * every frame is a field read. Keyed tags are no cheaper before 4.0, they are
+     * kept in a global, synchronized map.</p>
+     *
      * @param view View to wrap.
      * @return Proxy to post-3.0 properties.
      */
     public static AnimatorProxy wrap(View view) {
-        AnimatorProxy proxy = PROXIES.get(view);
-        // This checks if the proxy already exists and whether it still is the animation of the given view
-        if (proxy == null || proxy != view.getAnimation()) {
-            proxy = new AnimatorProxy(view);
-            PROXIES.put(view, proxy);
+        Animation animation = view.getAnimation();
+        if (animation instanceof AnimatorProxy) {
+            return (AnimatorProxy) animation;
         }
-        return proxy;
+        return new AnimatorProxy(view);
     }
 
     private final WeakReference<View> mView;
@@ -57,6 +55,10 @@ public final class AnimatorProxy extends Animation {
     private float mTranslationX;
     private float mTranslationY;
 
+    private int mUpdateDepth;
+    private boolean mTransformChanged;
+    private boolean mAlphaChanged;
+
     private final RectF mBefore = new RectF();
     private final RectF mAfter = new RectF();
     private final Matrix mTempMatrix = new Matrix();
@@ -74,6 +76,10 @@ public final class AnimatorProxy extends Animation {
     public void setAlpha(float alpha) {
         if (mAlpha != alpha) {
             mAlpha = alpha;
+            if (mUpdateDepth > 0) {
+                mAlphaChanged = true;
+                return;
+            }
             View view = mView.get();
             if (view != null) {
                 view.invalidate();
@@ -227,13 +233,58 @@ public final class AnimatorProxy extends Animation {
         }
     }
 
+    /**
+     * Starts a batch of property changes. Until the matching {@link #endUpdate()}, the setters
+     * only record their values, and the area covered by the view is computed and invalidated
+     * once for the whole batch instead of once per property.
+     */
+    public void beginUpdate() {
+        if (mUpdateDepth++ == 0) {
+            mTransformChanged = false;
+            mAlphaChanged = false;
+            View view = mView.get();
+            if (view != null) {
+                computeRect(mBefore, view);
+            }
+        }
+    }
+
+    /**
+     * Ends a batch of property changes started by {@link #beginUpdate()} and invalidates
+     * the view if anything changed.
+     */
+    public void endUpdate() {
+        if (mUpdateDepth == 0) {
+            throw new IllegalStateException("endUpdate() called without beginUpdate()");
+        }
+        if (--mUpdateDepth > 0) {
+            return;
+        }
+        if (mTransformChanged) {
+            invalidateAfterUpdate();
+        } else if (mAlphaChanged) {
+            View view = mView.get();
+            if (view != null) {
+                view.invalidate();
+            }
+        }
+    }
+
     private void prepareForUpdate() {
+        if (mUpdateDepth > 0) {
+            // the batch already captured the area before the first change
+            return;
+        }
         View view = mView.get();
         if (view != null) {
             computeRect(mBefore, view);
         }
     }
     private void invalidateAfterUpdate() {
+        if (mUpdateDepth > 0) {
+            mTransformChanged = true;
+            return;
+        }
         View view = mView.get();
         if (view == null || view.getParent() == null) {
             return;
@@ -261,7 +312,7 @@ public final class AnimatorProxy extends Animation {
         final Matrix m = mTempMatrix;
         m.reset();
         transformMatrix(m, view);
-        mTempMatrix.mapRect(r);
+        m.mapRect(r);
 
         r.offset(view.getLeft(), view.getTop());
 
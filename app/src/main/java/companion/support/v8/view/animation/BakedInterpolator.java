@@ -0,0 +1,155 @@
+package companion.support.v8.view.animation;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.support.v4.view.animation.FastOutLinearInInterpolator;
+import android.support.v4.view.animation.FastOutSlowInInterpolator;
+import android.support.v4.view.animation.LinearOutSlowInInterpolator;
+import android.view.animation.AccelerateDecelerateInterpolator;
+import android.view.animation.BounceInterpolator;
+import android.view.animation.Interpolator;
+import android.view.animation.LinearInterpolator;
+
+/**
+ * An interpolator that samples another one into a table once and then evaluates
+ * it by looking up the two nearest samples and interpolating linearly between
+ * them. Easing curves built on {@link Math#pow(double, double)} or trigonometry
+ * cost the same as a linear one on every frame after that.
+ *
+ * <p>With the default number of samples the error of smooth curves stays below
+ * 1e-4. Curves with sharp corners, such as a bounce, need more samples to keep
+ * the corners. Inputs outside [0-1] are passed to the sampled interpolator.</p>
+ *
+ * <p>Tables are shared through {@link #obtain(Interpolator, float...)}, keyed by
+ * the class of the interpolator and the parameters it was built with, so every
+ * animation using, for example, a <code>DecelerateInterpolator(2f)</code> uses
+ * the same table:</p>
+ * <pre>
+ *     animator.setInterpolator(BakedInterpolator.obtain(new DecelerateInterpolator(2f), 2f));
+ * </pre>
+ * <p>Without parameters, a table is only shared for the classes known to have a
+ * single curve, such as {@link AccelerateDecelerateInterpolator}. Other
+ * interpolators are baked into a table of their own, since two instances of
+ * their class may differ.</p>
+ */
+public final class BakedInterpolator implements Interpolator {
+
+    /** Number of samples taken by default. */
+    public static final int DEFAULT_SAMPLE_COUNT = 256;
+
+    private static final ConcurrentHashMap<Key, BakedInterpolator> CACHE =
+            new ConcurrentHashMap<Key, BakedInterpolator>();
+
+    /** Classes whose constructor takes no parameters, so their class alone determines the curve. */
+    private static final Set<Class<?>> PARAMETERLESS = new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+            AccelerateDecelerateInterpolator.class, BounceInterpolator.class, LinearInterpolator.class,
+            FastOutLinearInInterpolator.class, FastOutSlowInInterpolator.class,
+            LinearOutSlowInInterpolator.class));
+
+    /**
+     * Returns the shared baked version of the given interpolator. The interpolator is only
+     * sampled the first time its class is seen with these parameters. Without parameters,
+     * the table is only shared if the class takes none, otherwise a table of its own is
+     * returned.
+     *
+     * @param interpolator Interpolator to sample, it must be free of side effects.
+     * @param parameters The values the interpolator was built with, or none if its class
+     * alone determines its curve.
+     * @return The baked interpolator.
+     */
+    public static BakedInterpolator obtain(Interpolator interpolator, float... parameters) {
+        if (interpolator instanceof BakedInterpolator) {
+            return (BakedInterpolator) interpolator;
+        }
+        if ((parameters == null || parameters.length == 0)
+                && !PARAMETERLESS.contains(interpolator.getClass())) {
+            // the curve may depend on how the instance was built, it cannot be shared
+            return new BakedInterpolator(interpolator, DEFAULT_SAMPLE_COUNT);
+        }
+        Key key = new Key(interpolator.getClass(), parameters);
+        BakedInterpolator baked = CACHE.get(key);
+        if (baked == null) {
+            BakedInterpolator created = new BakedInterpolator(interpolator, DEFAULT_SAMPLE_COUNT);
+            baked = CACHE.putIfAbsent(key, created);
+            if (baked == null) {
+                baked = created;
+            }
+        }
+        return baked;
+    }
+
+    /**
+     * Clears the shared tables. Interpolators already obtained keep working.
+     */
+    public static void clearCache() {
+        CACHE.clear();
+    }
+
+    private final Interpolator mSource;
+    private final float[] mSamples;
+    private final int mLastSample;
+
+    /**
+     * Samples an interpolator into a table that is not shared.
+     *
+     * @param interpolator Interpolator to sample, it must be free of side effects.
+     * @param sampleCount Number of samples, at least 2.
+     */
+    public BakedInterpolator(Interpolator interpolator, int sampleCount) {
+        if (sampleCount < 2) {
+            throw new IllegalArgumentException("sampleCount < 2");
+        }
+        mSource = interpolator;
+        mSamples = new float[sampleCount];
+        mLastSample = sampleCount - 1;
+        for (int i = 0; i < sampleCount; ++i) {
+            mSamples[i] = interpolator.getInterpolation((float) i / mLastSample);
+        }
+    }
+
+    @Override
+    public float getInterpolation(float input) {
+        if (input < 0f || input > 1f) {
+            return mSource.getInterpolation(input);
+        }
+        final float position = input * mLastSample;
+        final int index = (int) position;
+        if (index >= mLastSample) {
+            return mSamples[mLastSample];
+        }
+        final float start = mSamples[index];
+        return start + (position - index) * (mSamples[index + 1] - start);
+    }
+
+    private static final class Key {
+        private final Class<?> mType;
+        private final float[] mParameters;
+        private final int mHashCode;
+
+        Key(Class<?> type, float[] parameters) {
+            mType = type;
+            mParameters = parameters == null ? new float[0] : parameters.clone();
+            mHashCode = 31 * type.hashCode() + Arrays.hashCode(mParameters);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mType == other.mType && Arrays.equals(mParameters, other.mParameters);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+}
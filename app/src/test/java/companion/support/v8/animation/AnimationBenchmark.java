@@ -0,0 +1,218 @@
+package companion.support.v8.animation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.Method;
+import java.util.Locale;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.view.animation.Interpolator;
+
+import companion.support.v8.util.FloatProperty;
+
+/**
+ * Measures the per-frame cost and allocation of the animation engine on the JVM. Time is
+ * driven by a fake clock and every animator is stepped through
+ * {@link ValueAnimatorCompat#setCurrentPlayTime(long)}, so neither a Looper nor a display
+ * is needed. Every case runs with 1, 10 and 100 animators and prints one line each:
+ *
+ * <pre>
+ * ./gradlew :app:testDebugUnitTest --tests '*AnimationBenchmark' -i
+ * </pre>
+ *
+ * <p>Allocation is read from the HotSpot thread bean and is reported as -1 on VMs that
+ * do not provide it.</p>
+ */
+public class AnimationBenchmark {
+
+    private static final int[] ANIMATOR_COUNTS = { 1, 10, 100 };
+    private static final int WARMUP_FRAMES = 5000;
+    private static final int MEASURED_FRAMES = 20000;
+    private static final long FRAME_MILLIS = 16;
+    private static final long DURATION_MILLIS = 1000;
+
+    // Linear, so the cost measured is the engine's and not the easing curve's
+    private static final Interpolator LINEAR = new Interpolator() {
+        @Override
+        public float getInterpolation(float input) {
+            return input;
+        }
+    };
+
+    private static final FloatProperty<Target> VALUE = new FloatProperty<Target>("value") {
+        @Override
+        public void setValue(Target object, float value) {
+            object.mValue = value;
+        }
+
+        @Override
+        public Float get(Target object) {
+            return object.mValue;
+        }
+    };
+
+    private final FakeClock mClock = new FakeClock();
+
+    @Before
+    public void setUp() {
+        ValueAnimatorCompat.setAnimationClock(mClock);
+    }
+
+    @After
+    public void tearDown() {
+        ValueAnimatorCompat.setAnimationClock(null);
+    }
+
+    @Test
+    public void intValues() {
+        run("int", new Factory() {
+            @Override
+            public ValueAnimatorCompat create(Target target) {
+                return ValueAnimatorCompat.ofInt(0, 1000);
+            }
+        });
+    }
+
+    @Test
+    public void floatValues() {
+        run("float", new Factory() {
+            @Override
+            public ValueAnimatorCompat create(Target target) {
+                return ValueAnimatorCompat.ofFloat(0f, 1f);
+            }
+        });
+    }
+
+    @Test
+    public void argbValues() {
+        run("argb", new Factory() {
+            @Override
+            public ValueAnimatorCompat create(Target target) {
+                ValueAnimatorCompat anim = ValueAnimatorCompat.ofInt(0xFF0000FF, 0x80FF0000);
+                anim.setEvaluator(new ArgbEvaluatorCompat());
+                return anim;
+            }
+        });
+    }
+
+    @Test
+    public void multiKeyframeValues() {
+        run("8 keyframes", new Factory() {
+            @Override
+            public ValueAnimatorCompat create(Target target) {
+                return ValueAnimatorCompat.ofFloat(0f, 0.4f, 0.1f, 0.8f, 0.3f, 0.9f, 0.6f, 1f);
+            }
+        });
+    }
+
+    @Test
+    public void reflectiveSetter() {
+        run("reflective setter", new Factory() {
+            @Override
+            public ValueAnimatorCompat create(Target target) {
+                return ObjectAnimatorCompat.ofFloat(target, "value", 0f, 1f);
+            }
+        });
+    }
+
+    @Test
+    public void floatPropertySetter() {
+        run("FloatProperty", new Factory() {
+            @Override
+            public ValueAnimatorCompat create(Target target) {
+                return ObjectAnimatorCompat.ofPropertyValuesHolder(target,
+                        PropertyValuesHolderCompat.ofFloat(VALUE, 0f, 1f));
+            }
+        });
+    }
+
+    private void run(String name, Factory factory) {
+        for (int count : ANIMATOR_COUNTS) {
+            mClock.mFrame = 0;
+            Target[] targets = new Target[count];
+            ValueAnimatorCompat[] animators = new ValueAnimatorCompat[count];
+            for (int i = 0; i < count; ++i) {
+                targets[i] = new Target();
+                animators[i] = factory.create(targets[i]);
+                animators[i].setDuration(DURATION_MILLIS);
+                animators[i].setInterpolator(LINEAR);
+            }
+
+            runFrames(animators, WARMUP_FRAMES);
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            runFrames(animators, MEASURED_FRAMES);
+            long elapsed = System.nanoTime() - start;
+            if (allocated >= 0) {
+                allocated = allocatedBytes() - allocated;
+            }
+
+            System.out.println(String.format(Locale.US, "%-18s %3d animators %10.0f ns/frame %8.1f B/frame",
+                    name, count, (double) elapsed / MEASURED_FRAMES,
+                    allocated < 0 ? -1.0 : (double) allocated / MEASURED_FRAMES));
+
+            // every animator was last seeked to the play time of the final frame
+            float fraction = (float) (((MEASURED_FRAMES + WARMUP_FRAMES - 1) * FRAME_MILLIS) % DURATION_MILLIS)
+                    / DURATION_MILLIS;
+            assertEquals(fraction, animators[0].getAnimatedFraction(), 1e-6f);
+        }
+    }
+
+    private void runFrames(ValueAnimatorCompat[] animators, int frames) {
+        for (int frame = 0; frame < frames; ++frame) {
+            long playTime = (mClock.mFrame * FRAME_MILLIS) % DURATION_MILLIS;
+            mClock.mTime += FRAME_MILLIS;
+            mClock.mFrame++;
+            for (ValueAnimatorCompat anim : animators) {
+                anim.setCurrentPlayTime(playTime);
+            }
+        }
+    }
+
+    /**
+     * @return the bytes allocated so far by the current thread, or -1 if unknown.
+     */
+    private static long allocatedBytes() {
+        try {
+            Object bean = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+            Method method = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(bean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private interface Factory {
+        ValueAnimatorCompat create(Target target);
+    }
+
+    private static final class FakeClock implements ValueAnimatorCompat.AnimationClock {
+        long mTime = 1000;
+        long mFrame;
+
+        @Override
+        public long currentAnimationTimeMillis() {
+            return mTime;
+        }
+    }
+
+    /**
+     * Object animated by the setter cases.
+     */
+    public static final class Target {
+        float mValue;
+
+        public void setValue(float value) {
+            mValue = value;
+        }
+
+        public float getValue() {
+            return mValue;
+        }
+    }
+}
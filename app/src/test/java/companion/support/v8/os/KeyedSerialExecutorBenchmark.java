@@ -0,0 +1,129 @@
+package companion.support.v8.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Compares {@link KeyedSerialExecutor} with the process-wide
+ * {@link AsyncTaskCompat#SERIAL_EXECUTOR} on the same work: a fixed number of
+ * tasks spread over 1, 4 and 16 keys, each task blocking for a while like a
+ * database or file access would. Results are printed, one line per case:
+ *
+ * <pre>
+ * ./gradlew :app:testDebugUnitTest --tests '*KeyedSerialExecutorBenchmark' -i
+ * </pre>
+ */
+public class KeyedSerialExecutorBenchmark {
+
+	private static final int[] KEY_COUNTS = { 1, 4, 16 };
+	private static final int TASKS = 256;
+	private static final long TASK_MICROS = 500;
+	private static final long TIMEOUT_SECONDS = 60;
+
+	@Test
+	public void compareWithSerialExecutor() throws InterruptedException {
+		WorkStealingExecutor pool = new WorkStealingExecutor("Benchmark", 4, 256);
+		KeyedSerialExecutor keyed = new KeyedSerialExecutor(pool);
+
+		for (int keys : KEY_COUNTS) {
+			long serial = run(AsyncTaskCompat.SERIAL_EXECUTOR, null, keys);
+			long perKey = run(null, keyed, keys);
+
+			System.out.println(String.format(Locale.US, "%2d keys %4d tasks   serial %8.1f ms   keyed %8.1f ms",
+					keys, TASKS, serial / 1e6, perKey / 1e6));
+		}
+	}
+
+	/**
+	 * A long queue on a saturated pool, whose submissions run inline, must not
+	 * grow the stack with the number of queued tasks.
+	 */
+	@Test
+	public void longQueueOnSaturatedExecutor() throws InterruptedException {
+		final int count = 100000;
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger done = new AtomicInteger();
+
+		// runs every task inline, as a saturated WorkStealingExecutor does for its workers
+		final KeyedSerialExecutor keyed = new KeyedSerialExecutor(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		});
+
+		Thread first = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				keyed.execute("key", new Runnable() {
+					@Override
+					public void run() {
+						blocked.countDown();
+						await(release);
+					}
+				});
+			}
+		});
+		first.start();
+		await(blocked);
+		for (int i = 0; i < count; ++i) {
+			keyed.execute("key", new Runnable() {
+				@Override
+				public void run() {
+					done.incrementAndGet();
+				}
+			});
+		}
+		release.countDown();
+		first.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+
+		assertEquals(count, done.get());
+		assertEquals(0, keyed.getActiveKeyCount());
+	}
+
+	/**
+	 * @return the nanoseconds taken to run all the tasks.
+	 */
+	private static long run(Executor serial, KeyedSerialExecutor keyed, int keys) throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(TASKS);
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					TimeUnit.MICROSECONDS.sleep(TASK_MICROS);
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+				latch.countDown();
+			}
+		};
+
+		long start = System.nanoTime();
+		for (int i = 0; i < TASKS; ++i) {
+			if (keyed != null) {
+				keyed.execute(i % keys, task);
+			} else {
+				serial.execute(task);
+			}
+		}
+		assertTrue(latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		return System.nanoTime() - start;
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}